@@ -1,5 +1,7 @@
 package net.sacredlabyrinth.phaed.simpleclans;
 
+import net.sacredlabyrinth.phaed.simpleclans.managers.SettingsManager;
+import net.sacredlabyrinth.phaed.simpleclans.storage.StorageRepository;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
 import org.bukkit.World;
@@ -8,6 +10,9 @@ import org.stringtree.json.JSONReader;
 import org.stringtree.json.JSONValidatingReader;
 import org.stringtree.json.JSONWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.sql.Timestamp;
 import java.text.MessageFormat;
@@ -30,12 +35,27 @@ public class Clan implements Serializable, Comparable<Clan>
     private List<String> allies = new ArrayList<String>();
     private List<String> rivals = new ArrayList<String>();
     private List<String> bb = new ArrayList<String>();
-    private List<String> members = new ArrayList<String>();
+    private HashMap<String, ClanPlayer> membersByName = new HashMap<String, ClanPlayer>();
+    private List<ClanPlayer> members = new ArrayList<ClanPlayer>();
+    private List<ClanPlayer> leaders = new ArrayList<ClanPlayer>();
+    private List<ClanPlayer> nonLeaders = new ArrayList<ClanPlayer>();
+    private List<ClanPlayer> membersView = Collections.unmodifiableList(members);
+    private List<ClanPlayer> leadersView = Collections.unmodifiableList(leaders);
+    private List<ClanPlayer> nonLeadersView = Collections.unmodifiableList(nonLeaders);
+    private List<ClanPlayer> onlineMembers = new ArrayList<ClanPlayer>();
+    private List<ClanPlayer> onlineLeaders = new ArrayList<ClanPlayer>();
+    private List<ClanPlayer> onlineMembersView = Collections.unmodifiableList(onlineMembers);
+    private List<ClanPlayer> onlineLeadersView = Collections.unmodifiableList(onlineLeaders);
+    private int totalRival;
+    private int totalNeutral;
+    private int totalCivilian;
+    private int totalDeaths;
     private HashMap<String, Clan> warringClans = new HashMap<String, Clan>();
     private int homeX = 0;
     private int homeY = 0;
     private int homeZ = 0;
     private String homeWorld = "";
+    private transient Map<String, Object> persistedColumns;
 
     /**
      *
@@ -203,7 +223,7 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public boolean isMember(Player player)
     {
-        return this.members.contains(player.getName().toLowerCase());
+        return this.membersByName.containsKey(player.getName().toLowerCase());
     }
 
     /**
@@ -214,7 +234,7 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public boolean isMember(String playerName)
     {
-        return this.members.contains(playerName.toLowerCase());
+        return this.membersByName.containsKey(playerName.toLowerCase());
     }
 
     /**
@@ -240,6 +260,7 @@ public class Clan implements Serializable, Comparable<Clan>
     private void addAlly(String tag)
     {
         allies.add(tag);
+        SimpleClans.getInstance().getStorageManager().insertRelation(this, StorageRepository.ALLY, tag);
     }
 
     private boolean removeAlly(String ally)
@@ -250,6 +271,7 @@ public class Clan implements Serializable, Comparable<Clan>
         }
 
         allies.remove(ally);
+        SimpleClans.getInstance().getStorageManager().deleteRelation(this, StorageRepository.ALLY, ally);
         return true;
     }
 
@@ -316,7 +338,7 @@ public class Clan implements Serializable, Comparable<Clan>
         }
 
         bb.add(msg);
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
+        SimpleClans.getInstance().getStorageManager().insertBb(this, msg);
     }
 
     /**
@@ -326,9 +348,18 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public void importMember(ClanPlayer cp)
     {
-        if (!this.members.contains(cp.getCleanName()))
+        if (!this.membersByName.containsKey(cp.getCleanName()))
         {
-            this.members.add(cp.getCleanName());
+            this.membersByName.put(cp.getCleanName(), cp);
+            this.members.add(cp);
+            addToRoster(cp);
+
+            if (Helper.isOnline(cp.getName()))
+            {
+                setMemberOnline(cp, true);
+            }
+
+            addStats(cp.getRivalKills(), cp.getNeutralKills(), cp.getCivilianKills(), cp.getDeaths());
         }
     }
 
@@ -339,7 +370,118 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public void removeMember(String playerName)
     {
-        this.members.remove(playerName.toLowerCase());
+        ClanPlayer cp = this.membersByName.remove(playerName.toLowerCase());
+
+        if (cp != null)
+        {
+            removeSame(members, cp);
+            removeSame(leaders, cp);
+            removeSame(nonLeaders, cp);
+            removeSame(onlineMembers, cp);
+            removeSame(onlineLeaders, cp);
+            addStats(-cp.getRivalKills(), -cp.getNeutralKills(), -cp.getCivilianKills(), -cp.getDeaths());
+        }
+    }
+
+    /**
+     * (used internally) Move a member between the leaders and the non-leaders after a promotion or demotion
+     *
+     * @param cp
+     */
+    public void updateRoster(ClanPlayer cp)
+    {
+        if (this.membersByName.get(cp.getCleanName()) != cp)
+        {
+            return;
+        }
+
+        if (!removeSame(leaders, cp))
+        {
+            removeSame(nonLeaders, cp);
+        }
+
+        addToRoster(cp);
+
+        if (onlineMembers.contains(cp))
+        {
+            setMemberOnline(cp, true);
+        }
+    }
+
+    /**
+     * (used internally) Track a member going online or offline
+     *
+     * @param cp
+     * @param online
+     */
+    public void setMemberOnline(ClanPlayer cp, boolean online)
+    {
+        if (this.membersByName.get(cp.getCleanName()) != cp)
+        {
+            return;
+        }
+
+        removeSame(onlineMembers, cp);
+        removeSame(onlineLeaders, cp);
+
+        if (online)
+        {
+            onlineMembers.add(cp);
+
+            if (cp.isLeader())
+            {
+                onlineLeaders.add(cp);
+            }
+        }
+    }
+
+    /**
+     * Get the members that are online
+     *
+     * @return a read-only view of the online members, copy it before changing it
+     */
+    public List<ClanPlayer> getOnlineMembers()
+    {
+        return onlineMembersView;
+    }
+
+    /**
+     * Get the leaders that are online
+     *
+     * @return a read-only view of the online leaders, copy it before changing it
+     */
+    public List<ClanPlayer> getOnlineLeaders()
+    {
+        return onlineLeadersView;
+    }
+
+    /**
+     * Leaders are kept in the order they became leaders, non-leaders sorted by name
+     */
+    private void addToRoster(ClanPlayer cp)
+    {
+        if (cp.isLeader())
+        {
+            leaders.add(cp);
+            return;
+        }
+
+        int index = Collections.binarySearch(nonLeaders, cp);
+        nonLeaders.add(index < 0 ? -index - 1 : index, cp);
+    }
+
+    private static boolean removeSame(List<ClanPlayer> list, ClanPlayer cp)
+    {
+        for (int i = 0; i < list.size(); i++)
+        {
+            if (list.get(i) == cp)
+            {
+                list.remove(i);
+                return true;
+            }
+        }
+
+        return false;
     }
 
     /**
@@ -365,6 +507,7 @@ public class Clan implements Serializable, Comparable<Clan>
     private void addRival(String tag)
     {
         rivals.add(tag);
+        SimpleClans.getInstance().getStorageManager().insertRelation(this, StorageRepository.RIVAL, tag);
     }
 
     private boolean removeRival(String rival)
@@ -375,6 +518,7 @@ public class Clan implements Serializable, Comparable<Clan>
         }
 
         rivals.remove(rival);
+        SimpleClans.getInstance().getStorageManager().deleteRelation(this, StorageRepository.RIVAL, rival);
         return true;
     }
 
@@ -580,14 +724,9 @@ public class Clan implements Serializable, Comparable<Clan>
     {
         String out = "";
 
-        for (String member : members)
+        for (ClanPlayer cp : leaders)
         {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-
-            if (cp.isLeader())
-            {
-                out += prefix + cp.getName() + sep;
-            }
+            out += prefix + cp.getName() + sep;
         }
 
         return Helper.stripTrailing(out, sep);
@@ -612,100 +751,49 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public boolean isLeader(String playerName)
     {
-        if (isMember(playerName))
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(playerName.toLowerCase());
-
-            if (cp.isLeader())
-            {
-                return true;
-            }
-        }
-
-        return false;
+        ClanPlayer cp = membersByName.get(playerName.toLowerCase());
+        return cp != null && cp.isLeader();
     }
 
     /**
-     * Get all members (leaders, and non-leaders) in the clan
+     * Get all members (leaders, and non-leaders) in the clan, in the order they joined
      *
-     * @return the members
+     * @return a read-only view of the members, copy it before sorting
      */
     public List<ClanPlayer> getMembers()
     {
-        List<ClanPlayer> out = new ArrayList<ClanPlayer>();
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            out.add(cp);
-        }
-
-        return out;
+        return membersView;
     }
 
     /**
      * Get all leaders in the clan
      *
-     * @return the leaders
+     * @return a read-only view of the leaders, copy it before sorting
      */
     public List<ClanPlayer> getLeaders()
     {
-        List<ClanPlayer> out = new ArrayList<ClanPlayer>();
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-
-            if (cp.isLeader())
-            {
-                out.add(cp);
-            }
-        }
-
-        return out;
+        return leadersView;
     }
 
     /**
-     * Get all non-leader players in the clan
+     * Get all non-leader players in the clan, sorted by name
      *
-     * @return non leaders
+     * @return a read-only view of the non leaders, copy it before sorting
      */
     public List<ClanPlayer> getNonLeaders()
     {
-        List<ClanPlayer> out = new ArrayList<ClanPlayer>();
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-
-            if (!cp.isLeader())
-            {
-                out.add(cp);
-            }
-        }
-
-        Collections.sort(out);
-
-        return out;
+        return nonLeadersView;
     }
 
     /**
-     * Get all clan's members
+     * Get all clan's members sorted by name
      *
      * @return
      */
     public List<ClanPlayer> getAllMembers()
     {
-        List<ClanPlayer> out = new ArrayList<ClanPlayer>();
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            out.add(cp);
-        }
-
+        List<ClanPlayer> out = new ArrayList<ClanPlayer>(members);
         Collections.sort(out);
-
         return out;
     }
 
@@ -743,44 +831,16 @@ public class Clan implements Serializable, Comparable<Clan>
             return 0;
         }
 
-        double totalWeightedKills = 0;
-        int totalDeaths = 0;
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            totalWeightedKills += cp.getWeightedKills();
-            totalDeaths += cp.getDeaths();
-        }
-
-        if (totalDeaths == 0)
-        {
-            totalDeaths = 1;
-        }
-
-        return ((float) totalWeightedKills) / ((float) totalDeaths);
+        return ((float) getTotalWeightedKills()) / ((float) Math.max(1, totalDeaths));
     }
 
     /**
-     * Gets the clan's total KDR
+     * Gets the clan's total deaths
      *
      * @return
      */
     public int getTotalDeaths()
     {
-        int totalDeaths = 0;
-
-        if (members.isEmpty())
-        {
-            return totalDeaths;
-        }
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            totalDeaths += cp.getDeaths();
-        }
-
         return totalDeaths;
     }
 
@@ -791,20 +851,12 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public int getAverageWK()
     {
-        int total = 0;
-
         if (members.isEmpty())
         {
-            return total;
-        }
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            total += cp.getWeightedKills();
+            return 0;
         }
 
-        return total / getSize();
+        return (int) (getTotalWeightedKills() / getSize());
     }
 
     /**
@@ -814,20 +866,7 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public int getTotalRival()
     {
-        int total = 0;
-
-        if (members.isEmpty())
-        {
-            return total;
-        }
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            total += cp.getRivalKills();
-        }
-
-        return total;
+        return totalRival;
     }
 
     /**
@@ -837,20 +876,7 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public int getTotalNeutral()
     {
-        int total = 0;
-
-        if (members.isEmpty())
-        {
-            return total;
-        }
-
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            total += cp.getNeutralKills();
-        }
-
-        return total;
+        return totalNeutral;
     }
 
     /**
@@ -860,20 +886,33 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public int getTotalCivilian()
     {
-        int total = 0;
-
-        if (members.isEmpty())
-        {
-            return total;
-        }
+        return totalCivilian;
+    }
 
-        for (String member : members)
-        {
-            ClanPlayer cp = SimpleClans.getInstance().getClanManager().getClanPlayer(member.toLowerCase());
-            total += cp.getCivilianKills();
-        }
+    /**
+     * The kill weights are applied on read, so a reload with new weights applies to the totals at once
+     */
+    private double getTotalWeightedKills()
+    {
+        SettingsManager settings = SimpleClans.getInstance().getSettingsManager();
+        return ((double) totalRival * settings.getKwRival()) + ((double) totalNeutral * settings.getKwNeutral()) + ((double) totalCivilian * settings.getKwCivilian());
+    }
 
-        return total;
+    /**
+     * (used internally) Adjust the running totals after the kills or deaths of a member changed
+     *
+     * @param rival
+     * @param neutral
+     * @param civilian
+     * @param deaths
+     */
+    public void addStats(int rival, int neutral, int civilian, int deaths)
+    {
+        totalRival += rival;
+        totalNeutral += neutral;
+        totalCivilian += civilian;
+        totalDeaths += deaths;
+        SimpleClans.getInstance().getClanManager().updateRanking(this);
     }
 
     /**
@@ -887,9 +926,9 @@ public class Clan implements Serializable, Comparable<Clan>
 
         SimpleClans.getInstance().getStorageManager().updateClan(this);
 
-        for (String member : members)
+        for (ClanPlayer cp : members)
         {
-            SimpleClans.getInstance().getSpoutPluginManager().processPlayer(member);
+            SimpleClans.getInstance().getSpoutPluginManager().processPlayer(cp.getName());
         }
     }
 
@@ -1005,9 +1044,6 @@ public class Clan implements Serializable, Comparable<Clan>
 
         ally.removeRival(getTag());
         ally.addAlly(getTag());
-
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(ally);
     }
 
     /**
@@ -1019,9 +1055,6 @@ public class Clan implements Serializable, Comparable<Clan>
     {
         removeAlly(ally.getTag());
         ally.removeAlly(getTag());
-
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(ally);
     }
 
     /**
@@ -1036,9 +1069,6 @@ public class Clan implements Serializable, Comparable<Clan>
 
         rival.removeAlly(getTag());
         rival.addRival(getTag());
-
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(rival);
     }
 
     /**
@@ -1050,9 +1080,6 @@ public class Clan implements Serializable, Comparable<Clan>
     {
         removeRival(rival.getTag());
         rival.removeRival(getTag());
-
-        SimpleClans.getInstance().getStorageManager().updateClan(this);
-        SimpleClans.getInstance().getStorageManager().updateClan(rival);
     }
 
     /**
@@ -1071,15 +1098,7 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public boolean isAnyOnline()
     {
-        for (String member : members)
-        {
-            if (Helper.isOnline(member))
-            {
-                return true;
-            }
-        }
-
-        return false;
+        return !onlineMembers.isEmpty();
     }
 
     /**
@@ -1089,17 +1108,7 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public boolean allLeadersOnline()
     {
-        List<ClanPlayer> leaders = getLeaders();
-
-        for (ClanPlayer leader : leaders)
-        {
-            if (!Helper.isOnline(leader.getName()))
-            {
-                return false;
-            }
-        }
-
-        return true;
+        return onlineLeaders.size() == leaders.size();
     }
 
     /**
@@ -1110,22 +1119,21 @@ public class Clan implements Serializable, Comparable<Clan>
      */
     public boolean allOtherLeadersOnline(String playerName)
     {
-        List<ClanPlayer> leaders = getLeaders();
+        ClanPlayer cp = membersByName.get(playerName.toLowerCase());
+        int others = leaders.size();
+        int onlineOthers = onlineLeaders.size();
 
-        for (ClanPlayer leader : leaders)
+        if (cp != null && leaders.contains(cp))
         {
-            if (leader.getName().equalsIgnoreCase(playerName))
-            {
-                continue;
-            }
+            others--;
 
-            if (!Helper.isOnline(leader.getName()))
+            if (onlineLeaders.contains(cp))
             {
-                return false;
+                onlineOthers--;
             }
         }
 
-        return true;
+        return onlineOthers == others;
     }
 
     /**
@@ -1194,9 +1202,9 @@ public class Clan implements Serializable, Comparable<Clan>
     {
         clanAnnounce(playerName, msg);
 
-        for (String member : members)
+        for (ClanPlayer cp : members)
         {
-            Player pl = SimpleClans.getInstance().getServer().getPlayer(member);
+            Player pl = SimpleClans.getInstance().getServer().getPlayer(cp.getName());
 
             if (pl != null)
             {
@@ -1309,6 +1317,31 @@ public class Clan implements Serializable, Comparable<Clan>
 
     }
 
+    /**
+     * Quietly drop an inactive clan from memory, members become clanless and other clans forget it, the clan row is deleted by the purge
+     */
+    public void purge()
+    {
+        for (ClanPlayer cp : getMembers())
+        {
+            if (cp != null)
+            {
+                cp.setClan(null);
+                cp.setLeader(false);
+                SimpleClans.getInstance().getStorageManager().updateClanPlayer(cp);
+            }
+        }
+
+        for (Clan c : SimpleClans.getInstance().getClanManager().getClans())
+        {
+            c.removeWarringClan(this);
+            c.removeRival(getTag());
+            c.removeAlly(getTag());
+        }
+
+        SimpleClans.getInstance().getClanManager().removeClan(getTag());
+    }
+
     /**
      * Whether this clan can be rivaled
      *
@@ -1374,6 +1407,29 @@ public class Clan implements Serializable, Comparable<Clan>
         return false;
     }
 
+    /**
+     * (used internally) Link the warring clans read from the flags to the loaded clans, dropping the ones that no longer exist
+     */
+    public void resolveWarringClans()
+    {
+        Iterator<Map.Entry<String, Clan>> it = warringClans.entrySet().iterator();
+
+        while (it.hasNext())
+        {
+            Map.Entry<String, Clan> entry = it.next();
+            Clan clan = SimpleClans.getInstance().getClanManager().getClan(entry.getKey());
+
+            if (clan == null)
+            {
+                it.remove();
+            }
+            else
+            {
+                entry.setValue(clan);
+            }
+        }
+    }
+
     /**
      * Return a collection of all the warring clans
      *
@@ -1432,12 +1488,7 @@ public class Clan implements Serializable, Comparable<Clan>
                             {
                                 for (String tag : clans)
                                 {
-                                    Clan clan = SimpleClans.getInstance().getClanManager().getClan(tag);
-
-                                    if (clan != null)
-                                    {
-                                        warringClans.put(tag, clan);
-                                    }
+                                    warringClans.put(tag, null);
                                 }
                             }
                         }
@@ -1476,6 +1527,86 @@ public class Clan implements Serializable, Comparable<Clan>
         }
     }
 
+    /**
+     * (used internally) Write the clan to a startup snapshot, members and warring clans are linked again after reading
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeSnapshot(DataOutput out) throws IOException
+    {
+        out.writeBoolean(verified);
+        out.writeUTF(tag);
+        out.writeUTF(colorTag == null ? "" : colorTag);
+        out.writeUTF(name == null ? "" : name);
+        out.writeBoolean(friendlyFire);
+        out.writeLong(founded);
+        out.writeLong(lastUsed);
+        out.writeUTF(capeUrl == null ? "" : capeUrl);
+        writeSnapshotList(out, allies);
+        writeSnapshotList(out, rivals);
+        writeSnapshotList(out, bb);
+        writeSnapshotList(out, warringClans.keySet());
+        out.writeInt(homeX);
+        out.writeInt(homeY);
+        out.writeInt(homeZ);
+        out.writeUTF(homeWorld == null ? "" : homeWorld);
+    }
+
+    /**
+     * (used internally) Read the clan from a startup snapshot
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readSnapshot(DataInput in) throws IOException
+    {
+        verified = in.readBoolean();
+        tag = in.readUTF();
+        colorTag = in.readUTF();
+        name = in.readUTF();
+        friendlyFire = in.readBoolean();
+        founded = in.readLong();
+        lastUsed = in.readLong();
+        capeUrl = in.readUTF();
+        allies = readSnapshotList(in);
+        rivals = readSnapshotList(in);
+        bb = readSnapshotList(in);
+
+        for (String warring : readSnapshotList(in))
+        {
+            warringClans.put(warring, null);
+        }
+
+        homeX = in.readInt();
+        homeY = in.readInt();
+        homeZ = in.readInt();
+        homeWorld = in.readUTF();
+    }
+
+    private static void writeSnapshotList(DataOutput out, Collection<String> values) throws IOException
+    {
+        out.writeInt(values.size());
+
+        for (String value : values)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readSnapshotList(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+        List<String> values = new ArrayList<String>(size);
+
+        for (int i = 0; i < size; i++)
+        {
+            values.add(in.readUTF());
+        }
+
+        return values;
+    }
+
     public void setHomeLocation(Location home)
     {
         homeX = home.getBlockX();
@@ -1497,4 +1628,24 @@ public class Clan implements Serializable, Comparable<Clan>
 
         return null;
     }
+
+    /**
+     * (used internally)
+     *
+     * @return the column values as they were last written to the database, null if unknown
+     */
+    public Map<String, Object> getPersistedColumns()
+    {
+        return persistedColumns;
+    }
+
+    /**
+     * (used internally)
+     *
+     * @param persistedColumns the column values as they were last written to the database
+     */
+    public void setPersistedColumns(Map<String, Object> persistedColumns)
+    {
+        this.persistedColumns = persistedColumns;
+    }
 }
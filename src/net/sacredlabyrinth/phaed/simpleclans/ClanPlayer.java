@@ -6,6 +6,9 @@ import org.stringtree.json.JSONReader;
 import org.stringtree.json.JSONValidatingReader;
 import org.stringtree.json.JSONWriter;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.sql.Timestamp;
 import java.text.MessageFormat;
@@ -37,6 +40,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     private boolean clanChat = true;
     private boolean bbEnabled = true;
     private boolean capeEnabled = true;
+    private transient Map<String, Object> persistedColumns;
 
     /**
      *
@@ -143,7 +147,13 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
             trusted = leader;
         }
 
+        boolean changed = this.leader != leader;
         this.leader = leader;
+
+        if (changed && clan != null)
+        {
+            clan.updateRoster(this);
+        }
     }
 
     /**
@@ -243,6 +253,11 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setRivalKills(int rivalKills)
     {
+        if (clan != null)
+        {
+            clan.addStats(rivalKills - this.rivalKills, 0, 0, 0);
+        }
+
         this.rivalKills = rivalKills;
     }
 
@@ -252,6 +267,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void addRivalKill()
     {
         setRivalKills(getRivalKills() + 1);
+        SimpleClans.getInstance().getClanManager().updateRanking(this);
     }
 
     /**
@@ -271,6 +287,11 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setCivilianKills(int civilianKills)
     {
+        if (clan != null)
+        {
+            clan.addStats(0, 0, civilianKills - this.civilianKills, 0);
+        }
+
         this.civilianKills = civilianKills;
     }
 
@@ -280,6 +301,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void addCivilianKill()
     {
         setCivilianKills(getCivilianKills() + 1);
+        SimpleClans.getInstance().getClanManager().updateRanking(this);
     }
 
     /**
@@ -299,6 +321,11 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setNeutralKills(int neutralKills)
     {
+        if (clan != null)
+        {
+            clan.addStats(0, neutralKills - this.neutralKills, 0, 0);
+        }
+
         this.neutralKills = neutralKills;
     }
 
@@ -308,6 +335,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void addNeutralKill()
     {
         setNeutralKills(getNeutralKills() + 1);
+        SimpleClans.getInstance().getClanManager().updateRanking(this);
     }
 
     /**
@@ -367,6 +395,11 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
      */
     public void setDeaths(int deaths)
     {
+        if (clan != null)
+        {
+            clan.addStats(0, 0, 0, deaths - this.deaths);
+        }
+
         this.deaths = deaths;
     }
 
@@ -376,6 +409,7 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     public void addDeath()
     {
         setDeaths(getDeaths() + 1);
+        SimpleClans.getInstance().getClanManager().updateRanking(this);
     }
 
     /**
@@ -708,6 +742,72 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
         }
     }
 
+    /**
+     * (used internally) Write the player to a startup snapshot, the clan is linked again after reading
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeSnapshot(DataOutput out) throws IOException
+    {
+        out.writeUTF(name);
+        out.writeBoolean(leader);
+        out.writeBoolean(trusted);
+        out.writeBoolean(friendlyFire);
+        out.writeInt(neutralKills);
+        out.writeInt(rivalKills);
+        out.writeInt(civilianKills);
+        out.writeInt(deaths);
+        out.writeLong(lastSeen);
+        out.writeLong(joinDate);
+        out.writeInt(pastClans.size());
+
+        for (String pastClan : pastClans)
+        {
+            out.writeUTF(pastClan);
+        }
+
+        out.writeUTF(channel == null ? "" : channel.name());
+        out.writeBoolean(globalChat);
+        out.writeBoolean(allyChat);
+        out.writeBoolean(clanChat);
+        out.writeBoolean(bbEnabled);
+        out.writeBoolean(capeEnabled);
+    }
+
+    /**
+     * (used internally) Read the player from a startup snapshot
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readSnapshot(DataInput in) throws IOException
+    {
+        name = in.readUTF();
+        leader = in.readBoolean();
+        trusted = in.readBoolean();
+        friendlyFire = in.readBoolean();
+        neutralKills = in.readInt();
+        rivalKills = in.readInt();
+        civilianKills = in.readInt();
+        deaths = in.readInt();
+        lastSeen = in.readLong();
+        joinDate = in.readLong();
+
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            pastClans.add(in.readUTF());
+        }
+
+        String chn = in.readUTF();
+        channel = chn.isEmpty() ? Channel.NONE : Channel.valueOf(chn);
+        globalChat = in.readBoolean();
+        allyChat = in.readBoolean();
+        clanChat = in.readBoolean();
+        bbEnabled = in.readBoolean();
+        capeEnabled = in.readBoolean();
+    }
+
     public Channel getChannel()
     {
         return channel;
@@ -781,5 +881,24 @@ public class ClanPlayer implements Serializable, Comparable<ClanPlayer>
     {
         return SimpleClans.getInstance().getServer().getPlayer(this.name);
     }
-}
 
+    /**
+     * (used internally)
+     *
+     * @return the column values as they were last written to the database, null if unknown
+     */
+    public Map<String, Object> getPersistedColumns()
+    {
+        return persistedColumns;
+    }
+
+    /**
+     * (used internally)
+     *
+     * @param persistedColumns the column values as they were last written to the database
+     */
+    public void setPersistedColumns(Map<String, Object> persistedColumns)
+    {
+        this.persistedColumns = persistedColumns;
+    }
+}
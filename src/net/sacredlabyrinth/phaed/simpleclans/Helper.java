@@ -505,17 +505,7 @@ public class Helper
      */
     public static boolean isOnline(String playerName)
     {
-        Player[] online = SimpleClans.getInstance().getServer().getOnlinePlayers();
-
-        for (Player o : online)
-        {
-            if (o.getName().equalsIgnoreCase(playerName))
-            {
-                return true;
-            }
-        }
-
-        return false;
+        return SimpleClans.getInstance().getClanManager().isOnline(playerName);
     }
 
     /**
@@ -530,7 +520,7 @@ public class Helper
 
         for (ClanPlayer cp : in)
         {
-            if (SimpleClans.getInstance().getServer().getPlayer(cp.getName()) != null)
+            if (isOnline(cp.getName()))
             {
                 out.add(cp);
             }
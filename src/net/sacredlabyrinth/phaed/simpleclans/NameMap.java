@@ -0,0 +1,298 @@
+package net.sacredlabyrinth.phaed.simpleclans;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A hash map keyed by player names or clan tags that ignores case, hashing and comparing the key one character at a time
+ * so looking a name up does not need a lowercased copy of it.
+ *
+ * @author phaed
+ */
+public class NameMap<V> extends AbstractMap<String, V>
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private Node<V>[] table = newTable(INITIAL_CAPACITY);
+    private int size;
+    private int modCount;
+    private Set<Map.Entry<String, V>> entrySet;
+
+    private static class Node<V> implements Map.Entry<String, V>
+    {
+        private final String key;
+        private final int hash;
+        private V value;
+        private Node<V> next;
+
+        private Node(String key, int hash, V value, Node<V> next)
+        {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            V old = this.value;
+            this.value = value;
+            return old;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] newTable(int capacity)
+    {
+        return (Node<V>[]) new Node[capacity];
+    }
+
+    /**
+     * Hashes the name the same way whatever its case, folding each character like String.equalsIgnoreCase does
+     */
+    private static int hash(String name)
+    {
+        int h = 0;
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+
+        return h ^ (h >>> 16);
+    }
+
+    private Node<V> find(Object key)
+    {
+        if (!(key instanceof String))
+        {
+            return null;
+        }
+
+        String name = (String) key;
+        int h = hash(name);
+
+        for (Node<V> n = table[h & (table.length - 1)]; n != null; n = n.next)
+        {
+            if (n.hash == h && n.key.equalsIgnoreCase(name))
+            {
+                return n;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        Node<V> n = find(key);
+        return n == null ? null : n.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return find(key) != null;
+    }
+
+    /**
+     * Map the name to the value, replacing the value of the same name in any case, the key first used is kept
+     *
+     * @param key
+     * @param value
+     * @return the value replaced, null if there was none
+     */
+    @Override
+    public V put(String key, V value)
+    {
+        Node<V> n = find(key);
+
+        if (n != null)
+        {
+            return n.setValue(value);
+        }
+
+        int h = hash(key);
+        int index = h & (table.length - 1);
+        table[index] = new Node<V>(key, h, value, table[index]);
+        size++;
+        modCount++;
+
+        if (size > table.length * 3 / 4)
+        {
+            resize();
+        }
+
+        return null;
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        if (!(key instanceof String))
+        {
+            return null;
+        }
+
+        String name = (String) key;
+        int h = hash(name);
+        int index = h & (table.length - 1);
+        Node<V> prev = null;
+
+        for (Node<V> n = table[index]; n != null; prev = n, n = n.next)
+        {
+            if (n.hash == h && n.key.equalsIgnoreCase(name))
+            {
+                if (prev == null)
+                {
+                    table[index] = n.next;
+                }
+                else
+                {
+                    prev.next = n.next;
+                }
+
+                size--;
+                modCount++;
+                return n.value;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void clear()
+    {
+        table = newTable(INITIAL_CAPACITY);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    private void resize()
+    {
+        Node<V>[] old = table;
+        table = newTable(old.length * 2);
+
+        for (Node<V> head : old)
+        {
+            Node<V> n = head;
+
+            while (n != null)
+            {
+                Node<V> next = n.next;
+                int index = n.hash & (table.length - 1);
+                n.next = table[index];
+                table[index] = n;
+                n = next;
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, V>> entrySet()
+    {
+        if (entrySet == null)
+        {
+            entrySet = new AbstractSet<Map.Entry<String, V>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, V>> iterator()
+                {
+                    return new NodeIterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    return size;
+                }
+            };
+        }
+
+        return entrySet;
+    }
+
+    private class NodeIterator implements Iterator<Map.Entry<String, V>>
+    {
+        private int index;
+        private Node<V> next;
+        private Node<V> current;
+        private int expectedModCount = modCount;
+
+        private NodeIterator()
+        {
+            advance(null);
+        }
+
+        private void advance(Node<V> from)
+        {
+            next = from == null ? null : from.next;
+
+            while (next == null && index < table.length)
+            {
+                next = table[index++];
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public Map.Entry<String, V> next()
+        {
+            if (modCount != expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+
+            if (next == null)
+            {
+                throw new NoSuchElementException();
+            }
+
+            current = next;
+            advance(current);
+            return current;
+        }
+
+        public void remove()
+        {
+            if (current == null)
+            {
+                throw new IllegalStateException();
+            }
+
+            if (modCount != expectedModCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+
+            NameMap.this.remove(current.key);
+            current = null;
+            expectedModCount = modCount;
+        }
+    }
+}
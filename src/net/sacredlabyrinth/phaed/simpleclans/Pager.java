@@ -0,0 +1,19 @@
+package net.sacredlabyrinth.phaed.simpleclans;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Sends a listing one page at a time, the next page is only built when the player asks for more
+ *
+ * @author phaed
+ */
+public interface Pager
+{
+    /**
+     * Send the next page
+     *
+     * @param player
+     * @return whether there are more pages after it
+     */
+    boolean sendNext(Player player);
+}
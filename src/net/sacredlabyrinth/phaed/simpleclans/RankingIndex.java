@@ -0,0 +1,383 @@
+package net.sacredlabyrinth.phaed.simpleclans;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Keeps items ranked by score, highest first, in a treap where every node knows the size of its subtree.
+ * Moving an item after its score changes, finding the item at a rank and finding the rank of an item all take O(log n),
+ * a page of items takes O(log n) plus its length.
+ *
+ * @author phaed
+ */
+public class RankingIndex<T>
+{
+    private final Comparator<T> ties;
+    private final IdentityHashMap<T, Node<T>> nodes = new IdentityHashMap<T, Node<T>>();
+    private final Random random = new Random();
+    private Node<T> root;
+    private long sequence;
+
+    private static class Node<T>
+    {
+        private final T item;
+        private final double score;
+        private final long sequence;
+        private final int priority;
+        private int size = 1;
+        private Node<T> left;
+        private Node<T> right;
+
+        private Node(T item, double score, long sequence, int priority)
+        {
+            this.item = item;
+            this.score = score;
+            this.sequence = sequence;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * @param ties orders items with the same score, it must not change while the items are ranked
+     */
+    public RankingIndex(Comparator<T> ties)
+    {
+        this.ties = ties;
+    }
+
+    /**
+     * Rank an item, or move it if it is already ranked
+     *
+     * @param item
+     * @param score
+     */
+    public void put(T item, double score)
+    {
+        Node<T> old = nodes.get(item);
+
+        if (old != null)
+        {
+            if (old.score == score)
+            {
+                return;
+            }
+
+            root = delete(root, old);
+        }
+
+        Node<T> node = new Node<T>(item, score, sequence++, random.nextInt());
+        nodes.put(item, node);
+        root = insert(root, node);
+    }
+
+    /**
+     * Move an item after its score changed, items that are not ranked are left out
+     *
+     * @param item
+     * @param score
+     */
+    public void update(T item, double score)
+    {
+        if (nodes.containsKey(item))
+        {
+            put(item, score);
+        }
+    }
+
+    /**
+     * @param item
+     */
+    public void remove(T item)
+    {
+        Node<T> node = nodes.remove(item);
+
+        if (node != null)
+        {
+            root = delete(root, node);
+        }
+    }
+
+    /**
+     * Drop all items
+     */
+    public void clear()
+    {
+        nodes.clear();
+        root = null;
+    }
+
+    /**
+     * @return the number of ranked items
+     */
+    public int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * @param item
+     * @return whether the item is ranked
+     */
+    public boolean contains(T item)
+    {
+        return nodes.containsKey(item);
+    }
+
+    /**
+     * @param item
+     * @return the rank of the item, starting at 1, 0 if it is not ranked
+     */
+    public int getRank(T item)
+    {
+        Node<T> node = nodes.get(item);
+
+        if (node == null)
+        {
+            return 0;
+        }
+
+        int rank = 0;
+        Node<T> n = root;
+
+        while (n != node)
+        {
+            if (compare(node, n) < 0)
+            {
+                n = n.left;
+            }
+            else
+            {
+                rank += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+
+        return rank + size(node.left) + 1;
+    }
+
+    /**
+     * @param rank starting at 1
+     * @return the item at the rank, null if there is none
+     */
+    public T get(int rank)
+    {
+        if (rank < 1 || rank > size())
+        {
+            return null;
+        }
+
+        int index = rank - 1;
+        Node<T> n = root;
+
+        while (true)
+        {
+            int left = size(n.left);
+
+            if (index < left)
+            {
+                n = n.left;
+            }
+            else if (index == left)
+            {
+                return n.item;
+            }
+            else
+            {
+                index -= left + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * @param count
+     * @return the highest ranked items, at most count of them
+     */
+    public List<T> getTop(int count)
+    {
+        return getRange(0, count);
+    }
+
+    /**
+     * @param page starting at 1
+     * @param pageSize
+     * @return the items on the page
+     */
+    public List<T> getPage(int page, int pageSize)
+    {
+        return getRange((page - 1) * pageSize, pageSize);
+    }
+
+    /**
+     * @return all items, highest ranked first
+     */
+    public List<T> getAll()
+    {
+        return getRange(0, size());
+    }
+
+    /**
+     * @param from the number of items to skip
+     * @param count
+     * @return at most count items, highest ranked first
+     */
+    public List<T> getRange(int from, int count)
+    {
+        List<T> out = new ArrayList<T>(Math.max(0, Math.min(count, size() - from)));
+
+        if (from >= 0 && count > 0)
+        {
+            collect(root, from, from + count, 0, out);
+        }
+
+        return out;
+    }
+
+    /**
+     * Add the items of a subtree whose index falls in [from, to), offset being the index of the first item of the subtree
+     */
+    private void collect(Node<T> n, int from, int to, int offset, List<T> out)
+    {
+        if (n == null || offset >= to || offset + n.size <= from)
+        {
+            return;
+        }
+
+        int index = offset + size(n.left);
+        collect(n.left, from, to, offset, out);
+
+        if (index >= from && index < to)
+        {
+            out.add(n.item);
+        }
+
+        collect(n.right, from, to, index + 1, out);
+    }
+
+    /**
+     * Higher scores first, then by the tie order, then by when the item was ranked, so no two nodes are equal
+     */
+    private int compare(Node<T> a, Node<T> b)
+    {
+        if (a.score != b.score)
+        {
+            return a.score > b.score ? -1 : 1;
+        }
+
+        int c = ties.compare(a.item, b.item);
+
+        if (c != 0)
+        {
+            return c;
+        }
+
+        return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+
+    private Node<T> insert(Node<T> n, Node<T> node)
+    {
+        if (n == null)
+        {
+            return node;
+        }
+
+        if (compare(node, n) < 0)
+        {
+            n.left = insert(n.left, node);
+
+            if (n.left.priority > n.priority)
+            {
+                n = rotateRight(n);
+            }
+        }
+        else
+        {
+            n.right = insert(n.right, node);
+
+            if (n.right.priority > n.priority)
+            {
+                n = rotateLeft(n);
+            }
+        }
+
+        resize(n);
+        return n;
+    }
+
+    private Node<T> delete(Node<T> n, Node<T> node)
+    {
+        if (n == node)
+        {
+            return merge(n.left, n.right);
+        }
+
+        if (compare(node, n) < 0)
+        {
+            n.left = delete(n.left, node);
+        }
+        else
+        {
+            n.right = delete(n.right, node);
+        }
+
+        resize(n);
+        return n;
+    }
+
+    private Node<T> merge(Node<T> a, Node<T> b)
+    {
+        if (a == null)
+        {
+            return b;
+        }
+
+        if (b == null)
+        {
+            return a;
+        }
+
+        if (a.priority > b.priority)
+        {
+            a.right = merge(a.right, b);
+            resize(a);
+            return a;
+        }
+
+        b.left = merge(a, b.left);
+        resize(b);
+        return b;
+    }
+
+    private Node<T> rotateRight(Node<T> n)
+    {
+        Node<T> left = n.left;
+        n.left = left.right;
+        left.right = n;
+        resize(n);
+        resize(left);
+        return left;
+    }
+
+    private Node<T> rotateLeft(Node<T> n)
+    {
+        Node<T> right = n.right;
+        n.right = right.left;
+        right.left = n;
+        resize(n);
+        resize(right);
+        return right;
+    }
+
+    private void resize(Node<T> n)
+    {
+        n.size = size(n.left) + size(n.right) + 1;
+    }
+
+    private int size(Node<T> n)
+    {
+        return n == null ? 0 : n.size;
+    }
+}
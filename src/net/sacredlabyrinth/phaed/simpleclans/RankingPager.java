@@ -0,0 +1,102 @@
+package net.sacredlabyrinth.phaed.simpleclans;
+
+import org.bukkit.entity.Player;
+
+import java.util.List;
+
+/**
+ * Pages through a ranking, reading only the items of the page being sent from the index.
+ * Items that are not shown are skipped without using up a rank, so the ranks listed stay consecutive.
+ *
+ * @author phaed
+ */
+public abstract class RankingPager<T> implements Pager
+{
+    private final RankingIndex<T> ranking;
+    private final int pageSize;
+    private int next;
+    private int rank;
+
+    /**
+     * @param ranking
+     * @param pageSize the number of lines on a page, including the header row
+     */
+    public RankingPager(RankingIndex<T> ranking, int pageSize)
+    {
+        this.ranking = ranking;
+        this.pageSize = Math.max(1, pageSize - 1);
+    }
+
+    /**
+     * @param item
+     * @return whether the item is listed
+     */
+    protected boolean isShown(T item)
+    {
+        return true;
+    }
+
+    /**
+     * @return a block with its alignment and header row set
+     */
+    protected abstract ChatBlock createBlock();
+
+    /**
+     * @param chatBlock
+     * @param item
+     * @param rank the rank among the items listed, starting at 1
+     */
+    protected abstract void addRow(ChatBlock chatBlock, T item, int rank);
+
+    public boolean sendNext(Player player)
+    {
+        ChatBlock chatBlock = createBlock();
+        int rows = 0;
+
+        while (rows < pageSize && next < ranking.size())
+        {
+            List<T> items = ranking.getRange(next, pageSize - rows);
+
+            if (items.isEmpty())
+            {
+                break;
+            }
+
+            for (T item : items)
+            {
+                next++;
+
+                if (isShown(item))
+                {
+                    addRow(chatBlock, item, ++rank);
+                    rows++;
+                }
+            }
+        }
+
+        chatBlock.sendBlock(player);
+        return hasNext();
+    }
+
+    /**
+     * Skip ahead to the next item listed
+     *
+     * @return whether there is one
+     */
+    private boolean hasNext()
+    {
+        while (next < ranking.size())
+        {
+            T item = ranking.get(next + 1);
+
+            if (item != null && isShown(item))
+            {
+                return true;
+            }
+
+            next++;
+        }
+
+        return false;
+    }
+}
@@ -99,6 +99,7 @@ public class SimpleClans extends JavaPlugin
     public void onDisable()
     {
         getServer().getScheduler().cancelTasks(this);
+        getStorageManager().shutdown();
         getStorageManager().closeConnection();
     }
 
@@ -53,7 +53,7 @@ public class AllyCommand
                                         {
                                             if (!clan.isAlly(ally.getTag()))
                                             {
-                                                List<ClanPlayer> onlineLeaders = Helper.stripOffLinePlayers(clan.getLeaders());
+                                                List<ClanPlayer> onlineLeaders = clan.getOnlineLeaders();
 
                                                 if (!onlineLeaders.isEmpty())
                                                 {
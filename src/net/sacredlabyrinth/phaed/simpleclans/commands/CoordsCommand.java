@@ -53,7 +53,7 @@ public class CoordsCommand
 
                             chatBlock.addRow("  " + headColor + plugin.getLang().getString("name"), plugin.getLang().getString("distance"), plugin.getLang().getString("coords.upper"), plugin.getLang().getString("world"));
 
-                            List<ClanPlayer> members = Helper.stripOffLinePlayers(clan.getMembers());
+                            List<ClanPlayer> members = clan.getOnlineMembers();
 
                             Map<Integer, List<String>> rows = new TreeMap<Integer, List<String>>();
 
@@ -62,7 +62,11 @@ public class CreateCommand
                                                 {
                                                     if (!plugin.getClanManager().isClan(cleanTag))
                                                     {
-                                                        if (plugin.getClanManager().purchaseCreation(player))
+                                                        if (plugin.getClanManager().getCreateClanPlayer(player.getName()) == null)
+                                                        {
+                                                            ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang().getString("database.unreachable.try.again.later"));
+                                                        }
+                                                        else if (plugin.getClanManager().purchaseCreation(player))
                                                         {
                                                             plugin.getClanManager().createClan(player, tag, name);
 
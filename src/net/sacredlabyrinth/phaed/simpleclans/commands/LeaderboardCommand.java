@@ -3,6 +3,9 @@ package net.sacredlabyrinth.phaed.simpleclans.commands;
 import net.sacredlabyrinth.phaed.simpleclans.ChatBlock;
 import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
 import net.sacredlabyrinth.phaed.simpleclans.Helper;
+import net.sacredlabyrinth.phaed.simpleclans.Pager;
+import net.sacredlabyrinth.phaed.simpleclans.RankingIndex;
+import net.sacredlabyrinth.phaed.simpleclans.RankingPager;
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
@@ -10,7 +13,6 @@ import org.bukkit.entity.Player;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
-import java.util.List;
 
 /**
  * @author phaed
@@ -29,62 +31,70 @@ public class LeaderboardCommand
      */
     public void execute(Player player, String[] arg)
     {
-        SimpleClans plugin = SimpleClans.getInstance();
-        String headColor = plugin.getSettingsManager().getPageHeadingsColor();
+        final SimpleClans plugin = SimpleClans.getInstance();
+        final String headColor = plugin.getSettingsManager().getPageHeadingsColor();
         String subColor = plugin.getSettingsManager().getPageSubTitleColor();
-        NumberFormat formatter = new DecimalFormat("#.#");
+        final NumberFormat formatter = new DecimalFormat("#.#");
 
         if (arg.length == 0)
         {
             if (plugin.getPermissionsManager().has(player, "simpleclans.anyone.leaderboard"))
             {
-                List<ClanPlayer> clanPlayers = plugin.getClanManager().getAllClanPlayers();
-                plugin.getClanManager().sortClanPlayersByKDR(clanPlayers);
-
-                ChatBlock chatBlock = new ChatBlock();
+                RankingIndex<ClanPlayer> ranking = plugin.getClanManager().getPlayerRanking();
+                ClanPlayer self = plugin.getClanManager().getLoadedClanPlayer(player.getName());
 
                 ChatBlock.sendBlank(player);
                 ChatBlock.saySingle(player, plugin.getSettingsManager().getServerName() + subColor + " " + plugin.getLang().getString("leaderboard.command") + " " + headColor + Helper.generatePageSeparator(plugin.getSettingsManager().getPageSep()));
                 ChatBlock.sendBlank(player);
-                ChatBlock.sendMessage(player, headColor + MessageFormat.format(plugin.getLang().getString("total.clan.players.0"), subColor + clanPlayers.size()));
-                ChatBlock.sendBlank(player);
-
-                chatBlock.setAlignment("c", "l", "c", "c", "c", "c");
-                chatBlock.addRow("  " + headColor + plugin.getLang().getString("rank"), plugin.getLang().getString("player"), plugin.getLang().getString("kdr"), plugin.getLang().getString("clan"), plugin.getLang().getString("seen"));
-
-                int rank = 1;
+                ChatBlock.sendMessage(player, headColor + MessageFormat.format(plugin.getLang().getString("total.clan.players.0"), subColor + ranking.size()));
 
-                for (ClanPlayer cp : clanPlayers)
+                if (self != null && ranking.contains(self))
                 {
-                    Player p = plugin.getServer().getPlayer(cp.getName());
+                    ChatBlock.sendMessage(player, headColor + MessageFormat.format(plugin.getLang().getString("your.rank.0"), subColor + ranking.getRank(self)));
+                }
 
-                    boolean isOnline = false;
+                ChatBlock.sendBlank(player);
 
-                    if (p != null)
+                Pager pager = new RankingPager<ClanPlayer>(ranking, plugin.getSettingsManager().getPageSize())
+                {
+                    @Override
+                    protected ChatBlock createBlock()
                     {
-                        isOnline = true;
+                        ChatBlock chatBlock = new ChatBlock();
+                        chatBlock.setAlignment("c", "l", "c", "c", "c", "c");
+                        chatBlock.addRow("  " + headColor + plugin.getLang().getString("rank"), plugin.getLang().getString("player"), plugin.getLang().getString("kdr"), plugin.getLang().getString("clan"), plugin.getLang().getString("seen"));
+                        return chatBlock;
                     }
 
+                    @Override
+                    protected void addRow(ChatBlock chatBlock, ClanPlayer cp, int rank)
+                    {
+                        Player p = plugin.getServer().getPlayer(cp.getName());
 
-                    String name = (cp.isLeader() ? plugin.getSettingsManager().getPageLeaderColor() : ((cp.isTrusted() ? plugin.getSettingsManager().getPageTrustedColor() : plugin.getSettingsManager().getPageUnTrustedColor()))) + cp.getName();
-                    String lastSeen = (isOnline ? ChatColor.GREEN + plugin.getLang().getString("online") : ChatColor.WHITE + cp.getLastSeenDaysString());
+                        boolean isOnline = false;
 
-                    String clanTag = ChatColor.WHITE + plugin.getLang().getString("free.agent");
+                        if (p != null)
+                        {
+                            isOnline = true;
+                        }
 
-                    if (cp.getClan() != null)
-                    {
-                        clanTag = cp.getClan().getColorTag();
-                    }
+                        String name = (cp.isLeader() ? plugin.getSettingsManager().getPageLeaderColor() : ((cp.isTrusted() ? plugin.getSettingsManager().getPageTrustedColor() : plugin.getSettingsManager().getPageUnTrustedColor()))) + cp.getName();
+                        String lastSeen = (isOnline ? ChatColor.GREEN + plugin.getLang().getString("online") : ChatColor.WHITE + cp.getLastSeenDaysString());
 
-                    chatBlock.addRow("  " + rank, name, ChatColor.YELLOW + "" + formatter.format(cp.getKDR()), ChatColor.WHITE + clanTag, lastSeen);
-                    rank++;
-                }
+                        String clanTag = ChatColor.WHITE + plugin.getLang().getString("free.agent");
+
+                        if (cp.getClan() != null)
+                        {
+                            clanTag = cp.getClan().getColorTag();
+                        }
 
-                boolean more = chatBlock.sendBlock(player, plugin.getSettingsManager().getPageSize());
+                        chatBlock.addRow("  " + rank, name, ChatColor.YELLOW + "" + formatter.format(cp.getKDR()), ChatColor.WHITE + clanTag, lastSeen);
+                    }
+                };
 
-                if (more)
+                if (pager.sendNext(player))
                 {
-                    plugin.getStorageManager().addChatBlock(player, chatBlock);
+                    plugin.getStorageManager().addPager(player, pager);
                     ChatBlock.sendBlank(player);
                     ChatBlock.sendMessage(player, headColor + MessageFormat.format(plugin.getLang().getString("view.next.page"), plugin.getSettingsManager().getCommandMore()));
                 }
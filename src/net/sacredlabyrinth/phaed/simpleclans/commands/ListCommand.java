@@ -3,6 +3,9 @@ package net.sacredlabyrinth.phaed.simpleclans.commands;
 import net.sacredlabyrinth.phaed.simpleclans.ChatBlock;
 import net.sacredlabyrinth.phaed.simpleclans.Clan;
 import net.sacredlabyrinth.phaed.simpleclans.Helper;
+import net.sacredlabyrinth.phaed.simpleclans.Pager;
+import net.sacredlabyrinth.phaed.simpleclans.RankingIndex;
+import net.sacredlabyrinth.phaed.simpleclans.RankingPager;
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
@@ -10,7 +13,6 @@ import org.bukkit.entity.Player;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
-import java.util.List;
 
 
 /**
@@ -30,60 +32,59 @@ public class ListCommand
      */
     public void execute(Player player, String[] arg)
     {
-        SimpleClans plugin = SimpleClans.getInstance();
-        String headColor = plugin.getSettingsManager().getPageHeadingsColor();
+        final SimpleClans plugin = SimpleClans.getInstance();
+        final String headColor = plugin.getSettingsManager().getPageHeadingsColor();
         String subColor = plugin.getSettingsManager().getPageSubTitleColor();
-        NumberFormat formatter = new DecimalFormat("#.#");
+        final NumberFormat formatter = new DecimalFormat("#.#");
 
         if (plugin.getPermissionsManager().has(player, "simpleclans.anyone.list"))
         {
             if (arg.length == 0)
             {
-                List<Clan> clans = plugin.getClanManager().getClans();
-                plugin.getClanManager().sortClansByKDR(clans);
+                RankingIndex<Clan> ranking = plugin.getClanManager().getClanRanking();
 
-                if (!clans.isEmpty())
+                if (ranking.size() > 0)
                 {
-                    ChatBlock chatBlock = new ChatBlock();
-
                     ChatBlock.sendBlank(player);
                     ChatBlock.saySingle(player, plugin.getSettingsManager().getServerName() + subColor + " " + plugin.getLang().getString("clans.lower") + " " + headColor + Helper.generatePageSeparator(plugin.getSettingsManager().getPageSep()));
                     ChatBlock.sendBlank(player);
-                    ChatBlock.sendMessage(player, headColor + plugin.getLang().getString("total.clans") + " " + subColor + clans.size());
+                    ChatBlock.sendMessage(player, headColor + plugin.getLang().getString("total.clans") + " " + subColor + ranking.size());
                     ChatBlock.sendBlank(player);
 
-                    chatBlock.setAlignment("c", "l", "c", "c");
-                    chatBlock.setFlexibility(false, true, false, false);
-
-                    chatBlock.addRow("  " + headColor + plugin.getLang().getString("rank"), plugin.getLang().getString("name"), plugin.getLang().getString("kdr"), plugin.getLang().getString("members"));
-
-                    int rank = 1;
-
-                    for (Clan clan : clans)
+                    Pager pager = new RankingPager<Clan>(ranking, plugin.getSettingsManager().getPageSize())
                     {
-                        if (!plugin.getSettingsManager().isShowUnverifiedOnList())
+                        @Override
+                        protected boolean isShown(Clan clan)
                         {
-                            if (!clan.isVerified())
-                            {
-                                continue;
-                            }
+                            return clan.isVerified() || plugin.getSettingsManager().isShowUnverifiedOnList();
                         }
 
-                        String tag = plugin.getSettingsManager().getClanChatBracketColor() + plugin.getSettingsManager().getClanChatTagBracketLeft() + plugin.getSettingsManager().getTagDefaultColor() + clan.getColorTag() + plugin.getSettingsManager().getClanChatBracketColor() + plugin.getSettingsManager().getClanChatTagBracketRight();
-                        String name = (clan.isVerified() ? plugin.getSettingsManager().getPageClanNameColor() : ChatColor.GRAY) + clan.getName();
-                        String fullname = tag + " " + name;
-                        String size = ChatColor.WHITE + "" + clan.getSize();
-                        String kdr = clan.isVerified() ? ChatColor.YELLOW + "" + formatter.format(clan.getTotalKDR()) : "";
+                        @Override
+                        protected ChatBlock createBlock()
+                        {
+                            ChatBlock chatBlock = new ChatBlock();
+                            chatBlock.setAlignment("c", "l", "c", "c");
+                            chatBlock.setFlexibility(false, true, false, false);
+                            chatBlock.addRow("  " + headColor + plugin.getLang().getString("rank"), plugin.getLang().getString("name"), plugin.getLang().getString("kdr"), plugin.getLang().getString("members"));
+                            return chatBlock;
+                        }
 
-                        chatBlock.addRow("  " + rank, fullname, kdr, size);
-                        rank++;
-                    }
+                        @Override
+                        protected void addRow(ChatBlock chatBlock, Clan clan, int rank)
+                        {
+                            String tag = plugin.getSettingsManager().getClanChatBracketColor() + plugin.getSettingsManager().getClanChatTagBracketLeft() + plugin.getSettingsManager().getTagDefaultColor() + clan.getColorTag() + plugin.getSettingsManager().getClanChatBracketColor() + plugin.getSettingsManager().getClanChatTagBracketRight();
+                            String name = (clan.isVerified() ? plugin.getSettingsManager().getPageClanNameColor() : ChatColor.GRAY) + clan.getName();
+                            String fullname = tag + " " + name;
+                            String size = ChatColor.WHITE + "" + clan.getSize();
+                            String kdr = clan.isVerified() ? ChatColor.YELLOW + "" + formatter.format(clan.getTotalKDR()) : "";
 
-                    boolean more = chatBlock.sendBlock(player, plugin.getSettingsManager().getPageSize());
+                            chatBlock.addRow("  " + rank, fullname, kdr, size);
+                        }
+                    };
 
-                    if (more)
+                    if (pager.sendNext(player))
                     {
-                        plugin.getStorageManager().addChatBlock(player, chatBlock);
+                        plugin.getStorageManager().addPager(player, pager);
                         ChatBlock.sendBlank(player);
                         ChatBlock.sendMessage(player, headColor + MessageFormat.format(plugin.getLang().getString("view.next.page"), plugin.getSettingsManager().getCommandMore()));
                     }
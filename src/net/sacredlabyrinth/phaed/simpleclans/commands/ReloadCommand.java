@@ -2,9 +2,12 @@ package net.sacredlabyrinth.phaed.simpleclans.commands;
 
 import net.sacredlabyrinth.phaed.simpleclans.ChatBlock;
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+import net.sacredlabyrinth.phaed.simpleclans.storage.CircuitBreakerRepository;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
+import java.text.MessageFormat;
+
 /**
  *
  * @author phaed
@@ -27,8 +30,25 @@ public class ReloadCommand
         if (plugin.getPermissionsManager().has(player, "simpleclans.admin.reload"))
         {
             plugin.getSettingsManager().load();
-            plugin.getStorageManager().importFromDatabase();
-            ChatBlock.sendMessage(player,  ChatColor.AQUA + plugin.getLang().getString("configuration.reloaded"));
+
+            if (plugin.getStorageManager().isStorageAvailable())
+            {
+                plugin.getStorageManager().importFromDatabase();
+                ChatBlock.sendMessage(player,  ChatColor.AQUA + plugin.getLang().getString("configuration.reloaded"));
+            }
+            else
+            {
+                plugin.getClanManager().rebuildRankings();
+                ChatBlock.sendMessage(player,  ChatColor.RED + plugin.getLang().getString("database.unreachable.not.reloaded"));
+            }
+
+            CircuitBreakerRepository breaker = plugin.getStorageManager().getCircuitBreaker();
+
+            if (breaker != null)
+            {
+                String state = plugin.getLang().getString(breaker.getState() == CircuitBreakerRepository.State.CLOSED ? "database.reachable" : breaker.getState() == CircuitBreakerRepository.State.OPEN ? "database.unreachable" : "database.reconnecting");
+                ChatBlock.sendMessage(player,  ChatColor.AQUA + MessageFormat.format(plugin.getLang().getString("storage.0.1.changes.waiting.2.dropped"), state, breaker.getSpooled(), breaker.getDropped()));
+            }
         }
         else
         {
@@ -89,10 +89,10 @@ public class RosterCommand
 
                 List<String> row = new ArrayList<String>();
 
-                List<ClanPlayer> leaders = clan.getLeaders();
+                List<ClanPlayer> leaders = new ArrayList<ClanPlayer>(clan.getLeaders());
                 plugin.getClanManager().sortClanPlayersByLastSeen(leaders);
 
-                List<ClanPlayer> members = clan.getNonLeaders();
+                List<ClanPlayer> members = new ArrayList<ClanPlayer>(clan.getNonLeaders());
                 plugin.getClanManager().sortClanPlayersByLastSeen(members);
 
                 for (ClanPlayer cp : leaders)
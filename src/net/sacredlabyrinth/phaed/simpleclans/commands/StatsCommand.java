@@ -7,6 +7,7 @@ import org.bukkit.entity.Player;
 import java.text.DecimalFormat;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -60,10 +61,10 @@ public class StatsCommand
 
                             chatBlock.addRow("  " + headColor + plugin.getLang().getString("name"), plugin.getLang().getString("kdr"), plugin.getLang().getString("rival"), plugin.getLang().getString("neutral"), plugin.getLang().getString("civilian.abbreviation"), plugin.getLang().getString("deaths"));
 
-                            List<ClanPlayer> leaders = clan.getLeaders();
+                            List<ClanPlayer> leaders = new ArrayList<ClanPlayer>(clan.getLeaders());
                             plugin.getClanManager().sortClanPlayersByKDR(leaders);
 
-                            List<ClanPlayer> members = clan.getNonLeaders();
+                            List<ClanPlayer> members = new ArrayList<ClanPlayer>(clan.getNonLeaders());
                             plugin.getClanManager().sortClanPlayersByKDR(members);
 
                             for (ClanPlayer cpm : leaders)
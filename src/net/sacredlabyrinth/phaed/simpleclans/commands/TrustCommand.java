@@ -53,7 +53,11 @@ public class TrustCommand
                                     {
                                         ClanPlayer tcp = plugin.getClanManager().getCreateClanPlayer(trusted);
 
-                                        if (!tcp.isTrusted())
+                                        if (tcp == null)
+                                        {
+                                            ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang().getString("database.unreachable.try.again.later"));
+                                        }
+                                        else if (!tcp.isTrusted())
                                         {
                                             clan.addBb(player.getName(), ChatColor.AQUA + MessageFormat.format(plugin.getLang().getString("has.been.given.trusted.status.by"), Helper.capitalize(trusted), player.getName()));
                                             tcp.setTrusted(true);
@@ -5,6 +5,7 @@ import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -57,7 +58,7 @@ public class VitalsCommand
 
                             chatBlock.addRow("  " + headColor + plugin.getLang().getString("name"), plugin.getLang().getString("health"), plugin.getLang().getString("hunger"), plugin.getLang().getString("food"), plugin.getLang().getString("armor"), plugin.getLang().getString("weapons"));
 
-                            List<ClanPlayer> members = Helper.stripOffLinePlayers(clan.getLeaders());
+                            List<ClanPlayer> members = new ArrayList<ClanPlayer>(clan.getOnlineLeaders());
                             members.addAll(Helper.stripOffLinePlayers(clan.getNonLeaders()));
 
                             for (ClanPlayer cpm : members)
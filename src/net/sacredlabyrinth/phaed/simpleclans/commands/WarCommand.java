@@ -51,7 +51,7 @@ public class WarCommand
                                     {
                                         if (!clan.isWarring(war.getTag()))
                                         {
-                                            List<ClanPlayer> onlineLeaders = Helper.stripOffLinePlayers(clan.getLeaders());
+                                            List<ClanPlayer> onlineLeaders = clan.getOnlineLeaders();
 
                                             if (!onlineLeaders.isEmpty())
                                             {
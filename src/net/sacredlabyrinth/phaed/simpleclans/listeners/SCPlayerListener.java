@@ -236,6 +236,7 @@ public class SCPlayerListener extends PlayerListener
     public void onPlayerJoin(PlayerJoinEvent event)
     {
         final Player player = event.getPlayer();
+        plugin.getClanManager().playerJoined(player);
 
         if (plugin.getSettingsManager().isBlacklistedWorld(player.getLocation().getWorld().getName()))
         {
@@ -272,12 +273,15 @@ public class SCPlayerListener extends PlayerListener
     @Override
     public void onPlayerQuit(PlayerQuitEvent event)
     {
+        plugin.getClanManager().playerLeft(event.getPlayer());
+
         if (plugin.getSettingsManager().isBlacklistedWorld(event.getPlayer().getLocation().getWorld().getName()))
         {
             return;
         }
 
         plugin.getClanManager().updateLastSeen(event.getPlayer());
+        plugin.getClanManager().releaseClanPlayer(event.getPlayer().getName());
         plugin.getRequestManager().endPendingRequest(event.getPlayer().getName());
     }
 
@@ -293,6 +297,7 @@ public class SCPlayerListener extends PlayerListener
         }
 
         plugin.getClanManager().updateLastSeen(event.getPlayer());
+        plugin.getClanManager().releaseClanPlayer(event.getPlayer().getName());
     }
 
     /**
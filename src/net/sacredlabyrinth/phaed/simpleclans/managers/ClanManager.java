@@ -17,8 +17,26 @@ import java.util.*;
 public final class ClanManager
 {
     private SimpleClans plugin;
-    private HashMap<String, Clan> clans = new HashMap<String, Clan>();
-    private HashMap<String, ClanPlayer> clanPlayers = new HashMap<String, ClanPlayer>();
+    private NameMap<Clan> clans = new NameMap<Clan>();
+    private NameMap<ClanPlayer> clanPlayers = new NameMap<ClanPlayer>();
+    private LinkedHashMap<String, ClanPlayer> playerCache;
+    private long playerCacheHits;
+    private long playerCacheMisses;
+    private final NameMap<Player> onlinePlayers = new NameMap<Player>();
+    private final RankingIndex<ClanPlayer> playerRanking = new RankingIndex<ClanPlayer>(new Comparator<ClanPlayer>()
+    {
+        public int compare(ClanPlayer c1, ClanPlayer c2)
+        {
+            return c1.compareTo(c2);
+        }
+    });
+    private final RankingIndex<Clan> clanRanking = new RankingIndex<Clan>(new Comparator<Clan>()
+    {
+        public int compare(Clan c1, Clan c2)
+        {
+            return c1.compareTo(c2);
+        }
+    });
 
     /**
      *
@@ -26,6 +44,55 @@ public final class ClanManager
     public ClanManager()
     {
         plugin = SimpleClans.getInstance();
+
+        for (Player player : plugin.getServer().getOnlinePlayers())
+        {
+            onlinePlayers.put(player.getName(), player);
+        }
+
+        if (plugin.getSettingsManager().isLazyPlayers())
+        {
+            final int cacheSize = plugin.getSettingsManager().getPlayerCacheSize();
+
+            playerCache = new LinkedHashMap<String, ClanPlayer>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ClanPlayer> eldest)
+                {
+                    if (size() <= cacheSize)
+                    {
+                        return false;
+                    }
+
+                    Iterator<Map.Entry<String, ClanPlayer>> it = entrySet().iterator();
+
+                    while (size() > cacheSize && it.hasNext())
+                    {
+                        Map.Entry<String, ClanPlayer> entry = it.next();
+                        ClanPlayer cp = entry.getValue();
+
+                        // a player dropped with a write still queued would be read back without it
+                        if (plugin.getStorageManager().isWritePending(cp.getName()))
+                        {
+                            continue;
+                        }
+
+                        it.remove();
+
+                        if (cp.getClan() != null || Helper.isOnline(cp.getName()))
+                        {
+                            clanPlayers.put(entry.getKey(), cp);
+                        }
+                        else
+                        {
+                            playerRanking.remove(cp);
+                        }
+                    }
+
+                    return false;
+                }
+            };
+        }
     }
 
     /**
@@ -35,6 +102,106 @@ public final class ClanManager
     {
         clans.clear();
         clanPlayers.clear();
+
+        if (playerCache != null)
+        {
+            playerCache.clear();
+        }
+
+        playerRanking.clear();
+        clanRanking.clear();
+    }
+
+    /**
+     * Replace all clans and clan players in memory at once
+     *
+     * @param clans
+     * @param cps
+     */
+    public void importAll(Collection<Clan> clans, Collection<ClanPlayer> cps)
+    {
+        NameMap<Clan> clanMap = new NameMap<Clan>();
+        NameMap<ClanPlayer> clanPlayerMap = new NameMap<ClanPlayer>();
+
+        for (Clan clan : clans)
+        {
+            clanMap.put(clan.getTag(), clan);
+        }
+
+        for (ClanPlayer cp : cps)
+        {
+            clanPlayerMap.put(cp.getCleanName(), cp);
+        }
+
+        this.clans = clanMap;
+        this.clanPlayers = clanPlayerMap;
+
+        if (playerCache != null)
+        {
+            playerCache.clear();
+
+            for (ClanPlayer cp : cps)
+            {
+                releaseClanPlayer(cp.getName());
+            }
+        }
+
+        rebuildRankings();
+    }
+
+    /**
+     * Rank all clans and clan players in memory again, needed when the kill weights change
+     */
+    public void rebuildRankings()
+    {
+        clanRanking.clear();
+        playerRanking.clear();
+
+        for (Clan clan : clans.values())
+        {
+            clanRanking.put(clan, clan.getTotalKDR());
+        }
+
+        for (ClanPlayer cp : getAllClanPlayers())
+        {
+            playerRanking.put(cp, cp.getKDR());
+        }
+    }
+
+    /**
+     * Move a clan player in the leaderboard after their kills or deaths changed
+     *
+     * @param cp
+     */
+    public void updateRanking(ClanPlayer cp)
+    {
+        playerRanking.update(cp, cp.getKDR());
+    }
+
+    /**
+     * Move a clan in the clan list after the kills, deaths or members of the clan changed
+     *
+     * @param clan
+     */
+    public void updateRanking(Clan clan)
+    {
+        clanRanking.update(clan, clan.getTotalKDR());
+    }
+
+    /**
+     * @return the clan players in memory ranked by KDR, for the leaderboard
+     */
+    public RankingIndex<ClanPlayer> getPlayerRanking()
+    {
+        return playerRanking;
+    }
+
+    /**
+     * @return the clans ranked by KDR, for the clan list
+     */
+    public RankingIndex<Clan> getClanRanking()
+    {
+        return clanRanking;
     }
 
     /**
@@ -45,6 +212,7 @@ public final class ClanManager
     public void importClan(Clan clan)
     {
         this.clans.put(clan.getTag(), clan);
+        clanRanking.put(clan, clan.getTotalKDR());
     }
 
     /**
@@ -54,9 +222,116 @@ public final class ClanManager
      */
     public void importClanPlayer(ClanPlayer cp)
     {
+        playerRanking.put(cp, cp.getKDR());
+
+        if (playerCache != null && cp.getClan() == null && !Helper.isOnline(cp.getName()))
+        {
+            playerCache.put(cp.getCleanName(), cp);
+            return;
+        }
+
         this.clanPlayers.put(cp.getCleanName(), cp);
     }
 
+    /**
+     * Track a player coming online, called on join
+     *
+     * @param player
+     */
+    public void playerJoined(Player player)
+    {
+        onlinePlayers.put(player.getName(), player);
+        ClanPlayer cp = getClanPlayer(player);
+
+        if (cp != null)
+        {
+            cp.getClan().setMemberOnline(cp, true);
+        }
+    }
+
+    /**
+     * Track a player going offline, called on quit and kick
+     *
+     * @param player
+     */
+    public void playerLeft(Player player)
+    {
+        if (onlinePlayers.remove(player.getName()) == null)
+        {
+            return;
+        }
+
+        ClanPlayer cp = getClanPlayer(player);
+
+        if (cp != null)
+        {
+            cp.getClan().setMemberOnline(cp, false);
+        }
+    }
+
+    /**
+     * @param playerName matched ignoring case
+     * @return whether the player is online
+     */
+    public boolean isOnline(String playerName)
+    {
+        return onlinePlayers.containsKey(playerName);
+    }
+
+    /**
+     * Move a player who is not in a clan out of the resident players and into the evictable cache, used when players go offline
+     *
+     * @param playerName
+     */
+    public void releaseClanPlayer(String playerName)
+    {
+        if (playerCache == null)
+        {
+            return;
+        }
+
+        ClanPlayer cp = clanPlayers.get(playerName);
+
+        if (cp != null && cp.getClan() == null)
+        {
+            clanPlayers.remove(playerName);
+            playerCache.put(cp.getCleanName(), cp);
+        }
+    }
+
+    /**
+     * @return the number of clan players kept in memory for the whole session, clan members and online players when players are loaded lazily
+     */
+    public int getResidentPlayerCount()
+    {
+        return clanPlayers.size();
+    }
+
+    /**
+     * @return the number of disabled clan players in the evictable cache
+     */
+    public int getCachedPlayerCount()
+    {
+        return playerCache == null ? 0 : playerCache.size();
+    }
+
+    /**
+     * @return the share of lookups of disabled clan players that were served from the cache, between 0 and 1
+     */
+    public double getPlayerCacheHitRate()
+    {
+        long lookups = playerCacheHits + playerCacheMisses;
+        return lookups == 0 ? 0 : (double) playerCacheHits / lookups;
+    }
+
+    /**
+     * @return the number of lookups of disabled clan players that had to go to the database
+     */
+    public long getPlayerCacheMisses()
+    {
+        return playerCacheMisses;
+    }
+
     /**
      * Create a new clan
      *
@@ -68,6 +343,11 @@ public final class ClanManager
     {
         ClanPlayer cp = getCreateClanPlayer(player.getName());
 
+        if (cp == null)
+        {
+            return;
+        }
+
         boolean verified = !plugin.getSettingsManager().isRequireVerification() || plugin.getPermissionsManager().has(player, "simpleclans.mod.verify");
 
         Clan clan = new Clan(colorTag, name, verified);
@@ -89,16 +369,69 @@ public final class ClanManager
     public void deleteClanPlayer(ClanPlayer cp)
     {
         clanPlayers.remove(cp.getCleanName());
+        playerRanking.remove(cp);
+
+        if (playerCache != null)
+        {
+            playerCache.remove(cp.getCleanName());
+        }
+
         plugin.getStorageManager().deleteClanPlayer(cp);
     }
 
+    /**
+     * Drop a purged clan player from memory, the database rows are deleted by the purge
+     *
+     * @param cp
+     */
+    public void evictClanPlayer(ClanPlayer cp)
+    {
+        Clan clan = cp.getClan();
+
+        if (clan != null)
+        {
+            clan.removeMember(cp.getName());
+        }
+
+        clanPlayers.remove(cp.getCleanName());
+        playerRanking.remove(cp);
+
+        if (playerCache != null)
+        {
+            playerCache.remove(cp.getCleanName());
+        }
+    }
+
+    /**
+     * Gets the clan player if it is in memory, disabled ones included, never goes to the database
+     *
+     * @param playerName
+     * @return
+     */
+    public ClanPlayer getLoadedClanPlayer(String playerName)
+    {
+        ClanPlayer cp = clanPlayers.get(playerName);
+
+        if (cp == null && playerCache != null)
+        {
+            cp = playerCache.get(playerName.toLowerCase());
+        }
+
+        return cp;
+    }
+
     /**
      * Remove a clan from memory
      * @param tag
      */
     public void removeClan(String tag)
     {
-        clans.remove(tag);
+        Clan clan = clans.remove(tag);
+
+        if (clan != null)
+        {
+            clanRanking.remove(clan);
+        }
     }
 
     /**
@@ -109,7 +442,7 @@ public final class ClanManager
      */
     public boolean isClan(String tag)
     {
-        return clans.containsKey(Helper.cleanTag(tag));
+        return clans.containsKey(tagKey(tag));
 
     }
 
@@ -121,7 +454,23 @@ public final class ClanManager
      */
     public Clan getClan(String tag)
     {
-        return clans.get(Helper.cleanTag(tag));
+        return clans.get(tagKey(tag));
+    }
+
+    /**
+     * The clan map ignores case, so the tag only has to be cleaned when it carries color codes
+     *
+     * @param tag
+     * @return
+     */
+    private String tagKey(String tag)
+    {
+        if (tag.indexOf('&') < 0 && tag.indexOf('\u00a7') < 0 && tag.indexOf((char) 194) < 0)
+        {
+            return tag;
+        }
+
+        return Helper.cleanTag(tag);
     }
 
     /**
@@ -151,13 +500,21 @@ public final class ClanManager
     }
 
     /**
-     * Returns the collection of all clan players, including the disabled ones
+     * Returns the collection of all clan players, including the disabled ones.
+     * When players are loaded lazily only the disabled players currently in memory are included.
      *
      * @return
      */
     public List<ClanPlayer> getAllClanPlayers()
     {
-        return new ArrayList<ClanPlayer>(clanPlayers.values());
+        List<ClanPlayer> out = new ArrayList<ClanPlayer>(clanPlayers.values());
+
+        if (playerCache != null)
+        {
+            out.addAll(playerCache.values());
+        }
+
+        return out;
     }
 
     /**
@@ -179,7 +536,19 @@ public final class ClanManager
      */
     public ClanPlayer getClanPlayer(String playerName)
     {
-        ClanPlayer cp = clanPlayers.get(playerName.toLowerCase());
+        ClanPlayer cp = clanPlayers.get(playerName);
+
+        if (cp == null && playerCache != null)
+        {
+            String cleanName = playerName.toLowerCase();
+            cp = playerCache.get(cleanName);
+
+            if (cp != null && cp.getClan() != null)
+            {
+                playerCache.remove(cleanName);
+                clanPlayers.put(cleanName, cp);
+            }
+        }
 
         if (cp == null)
         {
@@ -202,20 +571,51 @@ public final class ClanManager
      */
     public ClanPlayer getAnyClanPlayer(String playerName)
     {
-        return clanPlayers.get(playerName.toLowerCase());
+        ClanPlayer cp = clanPlayers.get(playerName);
+
+        if (cp != null || playerCache == null)
+        {
+            return cp;
+        }
+
+        cp = playerCache.get(playerName.toLowerCase());
+
+        if (cp != null)
+        {
+            playerCacheHits++;
+            return cp;
+        }
+
+        playerCacheMisses++;
+        cp = plugin.getStorageManager().retrieveClanPlayer(playerName);
+
+        if (cp != null)
+        {
+            importClanPlayer(cp);
+        }
+
+        return cp;
     }
 
     /**
-     * Gets the ClanPlayer object for the player, creates one if not found
+     * Gets the ClanPlayer object for the player, creates one if not found.
+     * No player is created while the database cannot be reached, as one may be stored there already.
      *
      * @param playerName
-     * @return
+     * @return null if the player is not loaded and the database cannot be reached
      */
     public ClanPlayer getCreateClanPlayer(String playerName)
     {
-        if (clanPlayers.containsKey(playerName.toLowerCase()))
+        ClanPlayer existing = getAnyClanPlayer(playerName);
+
+        if (existing != null)
         {
-            return clanPlayers.get(playerName.toLowerCase());
+            return existing;
+        }
+
+        if (!plugin.getStorageManager().isStorageAvailable() || plugin.getStorageManager().isRetrieveFailed())
+        {
+            return null;
         }
 
         ClanPlayer cp = new ClanPlayer(playerName);
@@ -314,6 +314,13 @@ public final class CommandManager
             if (plugin.getRequestManager().hasRequest(player.getName().toLowerCase()))
             {
                 cp = plugin.getClanManager().getCreateClanPlayer(player.getName());
+
+                if (cp == null)
+                {
+                    ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang().getString("database.unreachable.try.again.later"));
+                    return;
+                }
+
                 plugin.getRequestManager().accept(cp);
             }
             else
@@ -371,6 +378,13 @@ public final class CommandManager
             if (plugin.getRequestManager().hasRequest(player.getName().toLowerCase()))
             {
                 cp = plugin.getClanManager().getCreateClanPlayer(player.getName());
+
+                if (cp == null)
+                {
+                    ChatBlock.sendMessage(player, ChatColor.RED + plugin.getLang().getString("database.unreachable.try.again.later"));
+                    return;
+                }
+
                 plugin.getRequestManager().deny(cp);
             }
             else
@@ -393,6 +407,23 @@ public final class CommandManager
             return;
         }
 
+        Pager pager = plugin.getStorageManager().getPager(player);
+
+        if (pager != null)
+        {
+            if (pager.sendNext(player))
+            {
+                ChatBlock.sendBlank(player);
+                ChatBlock.sendMessage(player, plugin.getSettingsManager().getPageHeadingsColor() + MessageFormat.format(plugin.getLang().getString("view.next.page"), plugin.getSettingsManager().getCommandMore()));
+            }
+            else
+            {
+                plugin.getStorageManager().removePager(player);
+            }
+            ChatBlock.sendBlank(player);
+            return;
+        }
+
         ChatBlock chatBlock = plugin.getStorageManager().getChatBlock(player);
 
         if (chatBlock != null && chatBlock.size() > 0)
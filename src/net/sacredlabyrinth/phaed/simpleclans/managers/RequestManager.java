@@ -5,6 +5,7 @@ import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -50,7 +51,7 @@ public final class RequestManager
 
         ClanPlayer demotedTp = plugin.getClanManager().getClanPlayer(demotedName.toLowerCase());
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(clan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(clan.getOnlineLeaders());
         acceptors.remove(demotedTp);
 
         Request req = new Request(plugin, ClanRequest.DEMOTE, acceptors, requester, demotedName, clan, msg);
@@ -69,7 +70,7 @@ public final class RequestManager
     {
         String msg = MessageFormat.format(plugin.getLang().getString("asking.for.the.promotion"), Helper.capitalize(requester.getName()), promotedName);
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(clan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(clan.getOnlineLeaders());
         acceptors.remove(requester);
 
         Request req = new Request(plugin, ClanRequest.PROMOTE, acceptors, requester, promotedName, clan, msg);
@@ -87,7 +88,7 @@ public final class RequestManager
     {
         String msg = MessageFormat.format(plugin.getLang().getString("asking.for.the.deletion"), Helper.capitalize(requester.getName()));
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(clan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(clan.getOnlineLeaders());
         acceptors.remove(requester);
 
         Request req = new Request(plugin, ClanRequest.DISBAND, acceptors, requester, null, clan, msg);
@@ -121,7 +122,7 @@ public final class RequestManager
     {
         String msg = MessageFormat.format(plugin.getLang().getString("proposing.war"), Helper.capitalize(requestingClan.getName()), Helper.stripColors(allyClan.getColorTag()));
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(allyClan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(allyClan.getOnlineLeaders());
         acceptors.remove(requester);
 
         Request req = new Request(plugin, ClanRequest.START_WAR, acceptors, requester, allyClan.getTag(), requestingClan, msg);
@@ -140,7 +141,7 @@ public final class RequestManager
     {
         String msg = MessageFormat.format(plugin.getLang().getString("proposing.to.end.the.war"), Helper.capitalize(requestingClan.getName()), Helper.stripColors(rivalClan.getColorTag()));
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(rivalClan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(rivalClan.getOnlineLeaders());
         acceptors.remove(requester);
 
         Request req = new Request(plugin, ClanRequest.END_WAR, acceptors, requester, rivalClan.getTag(), requestingClan, msg);
@@ -159,7 +160,7 @@ public final class RequestManager
     {
         String msg = MessageFormat.format(plugin.getLang().getString("proposing.an.alliance"), Helper.capitalize(requestingClan.getName()), Helper.stripColors(allyClan.getColorTag()));
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(allyClan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(allyClan.getOnlineLeaders());
         acceptors.remove(requester);
 
         Request req = new Request(plugin, ClanRequest.CREATE_ALLY, acceptors, requester, allyClan.getTag(), requestingClan, msg);
@@ -179,7 +180,7 @@ public final class RequestManager
 
         String msg = MessageFormat.format(plugin.getLang().getString("proposing.to.end.the.rivalry"), Helper.capitalize(requestingClan.getName()), Helper.stripColors(rivalClan.getColorTag()));
 
-        List<ClanPlayer> acceptors = Helper.stripOffLinePlayers(rivalClan.getLeaders());
+        List<ClanPlayer> acceptors = new ArrayList<ClanPlayer>(rivalClan.getOnlineLeaders());
         acceptors.remove(requester);
 
         Request req = new Request(plugin, ClanRequest.BREAK_RIVALRY, acceptors, requester, rivalClan.getTag(), requestingClan, msg);
@@ -252,6 +253,13 @@ public final class RequestManager
         {
             ClanPlayer cp = plugin.getClanManager().getCreateClanPlayer(invited);
 
+            if (cp == null)
+            {
+                clan.leaderAnnounce(ChatColor.RED + plugin.getLang().getString("database.unreachable.try.again.later"));
+                requests.remove(req.getTarget().toLowerCase());
+                return;
+            }
+
             clan.addBb(ChatColor.AQUA + MessageFormat.format(plugin.getLang().getString("joined.the.clan"), Helper.capitalize(invited)));
             plugin.getClanManager().serverAnnounce(MessageFormat.format(plugin.getLang().getString("has.joined"), Helper.capitalize(invited), clan.getName()));
             clan.addPlayerToClan(cp);
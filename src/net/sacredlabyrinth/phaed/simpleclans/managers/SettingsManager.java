@@ -42,6 +42,16 @@ public final class SettingsManager
     private int purgeClan;
     private int purgeUnverified;
     private int purgePlayers;
+    private int purgeIntervalMinutes;
+    private int purgeChunkSize;
+    private String storageBackend;
+    private String killStore;
+    private int killJournalSegmentMb;
+    private boolean startupSnapshot;
+    private int breakerFailures;
+    private int breakerProbeSecs;
+    private int spoolMaxMb;
+    private boolean keepPackedColumns;
     private int requestFreqencySecs;
     private String requestMessageColor;
     private int pageSize;
@@ -108,6 +118,20 @@ public final class SettingsManager
     private boolean compatMode;
     private boolean homebaseSetOnce;
     private int waitSecs;
+    private int flushTimeoutSecs;
+    private int mysqlPoolSize;
+    private int mysqlPoolWaitSecs;
+    private int mysqlIdleTimeoutSecs;
+    private int killBatchSize;
+    private int killFlushSecs;
+    private boolean lazyPlayers;
+    private int playerCacheSize;
+    private boolean sqliteWal;
+    private int commitWindowMs;
+    private int rollupHours;
+    private int rollupDays;
+    private int killRetentionDays;
+    private int killArchiveChunk;
 
     /**
      *
@@ -170,6 +194,9 @@ public final class SettingsManager
         purgeClan = config.getInt("purge.inactive-clan-days");
         purgeUnverified = config.getInt("purge.unverified-clan-days");
         purgePlayers = config.getInt("purge.inactive-player-data-days");
+        purgeIntervalMinutes = config.getInt("purge.interval-minutes");
+        purgeChunkSize = config.getInt("purge.chunk-size");
+        storageBackend = config.getString("storage.backend");
         requestFreqencySecs = config.getInt("request.ask-frequency-secs");
         requestMessageColor = config.getString("request.message-color");
         pageSize = config.getInt("page.size");
@@ -235,6 +262,27 @@ public final class SettingsManager
         username = config.getString("mysql.username");
         password = config.getString("mysql.password");
         safeCivilians = config.getBoolean("safe-civilians");
+        flushTimeoutSecs = config.getInt("storage.flush-timeout-secs");
+        mysqlPoolSize = config.getInt("storage.mysql-pool-size");
+        mysqlPoolWaitSecs = config.getInt("storage.mysql-pool-wait-secs");
+        mysqlIdleTimeoutSecs = config.getInt("storage.mysql-idle-timeout-secs");
+        killBatchSize = config.getInt("storage.kill-batch-size");
+        killFlushSecs = config.getInt("storage.kill-flush-secs");
+        lazyPlayers = config.getBoolean("storage.lazy-players");
+        playerCacheSize = config.getInt("storage.player-cache-size");
+        sqliteWal = config.getBoolean("storage.sqlite-wal");
+        commitWindowMs = config.getInt("storage.commit-window-ms");
+        rollupHours = config.getInt("storage.rollup-hours");
+        rollupDays = config.getInt("storage.rollup-days");
+        killRetentionDays = config.getInt("storage.kill-retention-days");
+        killArchiveChunk = config.getInt("storage.kill-archive-chunk");
+        killStore = config.getString("storage.kill-store");
+        killJournalSegmentMb = config.getInt("storage.kill-journal-segment-mb");
+        startupSnapshot = config.getBoolean("storage.startup-snapshot");
+        breakerFailures = config.getInt("storage.breaker-failures");
+        breakerProbeSecs = config.getInt("storage.breaker-probe-secs");
+        spoolMaxMb = config.getInt("storage.spool-max-mb");
+        keepPackedColumns = config.getBoolean("storage.keep-packed-columns");
 
         save();
     }
@@ -1077,4 +1125,193 @@ public final class SettingsManager
     {
         this.waitSecs = waitSecs;
     }
+
+    public int getFlushTimeoutSecs()
+    {
+        return flushTimeoutSecs;
+    }
+
+    /**
+     * @return the mysqlPoolSize
+     */
+    public int getMysqlPoolSize()
+    {
+        return mysqlPoolSize;
+    }
+
+    /**
+     * @return the mysqlPoolWaitSecs
+     */
+    public int getMysqlPoolWaitSecs()
+    {
+        return mysqlPoolWaitSecs;
+    }
+
+    /**
+     * @return the mysqlIdleTimeoutSecs
+     */
+    public int getMysqlIdleTimeoutSecs()
+    {
+        return mysqlIdleTimeoutSecs;
+    }
+
+    /**
+     * @return the killBatchSize
+     */
+    public int getKillBatchSize()
+    {
+        return killBatchSize;
+    }
+
+    /**
+     * @return the killFlushSecs
+     */
+    public int getKillFlushSecs()
+    {
+        return killFlushSecs;
+    }
+
+    /**
+     * @return the lazyPlayers
+     */
+    public boolean isLazyPlayers()
+    {
+        return lazyPlayers;
+    }
+
+    /**
+     * @return the playerCacheSize
+     */
+    public int getPlayerCacheSize()
+    {
+        return playerCacheSize;
+    }
+
+    /**
+     * @return the sqliteWal
+     */
+    public boolean isSqliteWal()
+    {
+        return sqliteWal;
+    }
+
+    /**
+     * @return the commitWindowMs
+     */
+    public int getCommitWindowMs()
+    {
+        return commitWindowMs;
+    }
+
+    /**
+     * @return the rollupHours
+     */
+    public int getRollupHours()
+    {
+        return rollupHours;
+    }
+
+    /**
+     * @return the rollupDays
+     */
+    public int getRollupDays()
+    {
+        return rollupDays;
+    }
+
+    /**
+     * @return the killRetentionDays
+     */
+    public int getKillRetentionDays()
+    {
+        return killRetentionDays;
+    }
+
+    /**
+     * @return the killArchiveChunk
+     */
+    public int getKillArchiveChunk()
+    {
+        return killArchiveChunk;
+    }
+
+    /**
+     * @return the purgeIntervalMinutes
+     */
+    public int getPurgeIntervalMinutes()
+    {
+        return purgeIntervalMinutes;
+    }
+
+    /**
+     * @return the purgeChunkSize
+     */
+    public int getPurgeChunkSize()
+    {
+        return purgeChunkSize;
+    }
+
+    /**
+     * @return the storageBackend
+     */
+    public String getStorageBackend()
+    {
+        return storageBackend;
+    }
+
+    /**
+     * @return the killStore
+     */
+    public String getKillStore()
+    {
+        return killStore;
+    }
+
+    /**
+     * @return the killJournalSegmentMb
+     */
+    public int getKillJournalSegmentMb()
+    {
+        return killJournalSegmentMb;
+    }
+
+    /**
+     * @return the startupSnapshot
+     */
+    public boolean isStartupSnapshot()
+    {
+        return startupSnapshot;
+    }
+
+    /**
+     * @return the breakerFailures
+     */
+    public int getBreakerFailures()
+    {
+        return breakerFailures;
+    }
+
+    /**
+     * @return the breakerProbeSecs
+     */
+    public int getBreakerProbeSecs()
+    {
+        return breakerProbeSecs;
+    }
+
+    /**
+     * @return the spoolMaxMb
+     */
+    public int getSpoolMaxMb()
+    {
+        return spoolMaxMb;
+    }
+
+    /**
+     * @return whether allies, rivals and bulletin boards are still written to the packed sc_clans columns the previous version reads
+     */
+    public boolean isKeepPackedColumns()
+    {
+        return keepPackedColumns;
+    }
 }
@@ -1,30 +1,77 @@
 package net.sacredlabyrinth.phaed.simpleclans.managers;
 
 import net.sacredlabyrinth.phaed.simpleclans.*;
+import net.sacredlabyrinth.phaed.simpleclans.storage.CircuitBreakerRepository;
 import net.sacredlabyrinth.phaed.simpleclans.storage.DBCore;
+import net.sacredlabyrinth.phaed.simpleclans.storage.JournalRepository;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillArchiver;
+import net.sacredlabyrinth.phaed.simpleclans.storage.KillRollups;
+import net.sacredlabyrinth.phaed.simpleclans.storage.MemoryRepository;
 import net.sacredlabyrinth.phaed.simpleclans.storage.MySQLCore;
+import net.sacredlabyrinth.phaed.simpleclans.storage.Purger;
+import net.sacredlabyrinth.phaed.simpleclans.storage.QueryCallback;
 import net.sacredlabyrinth.phaed.simpleclans.storage.SQLiteCore;
+import net.sacredlabyrinth.phaed.simpleclans.storage.SqlRepository;
+import net.sacredlabyrinth.phaed.simpleclans.storage.StartupSnapshot;
+import net.sacredlabyrinth.phaed.simpleclans.storage.StorageRepository;
+import net.sacredlabyrinth.phaed.simpleclans.storage.WriteQueue;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.File;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * @author phaed
  */
 public final class StorageManager
 {
+    private static final int IMPORT_CHUNK_SIZE = 500;
+    private static final int MAX_WRITE_GROUP = 500;
+    private static final int QUERY_THREADS = 2;
+    private static final long ROLLUP_COMPACT_TICKS = 20L * 60 * 60;
+    private static final long ARCHIVE_TICKS = 20L * 60 * 60;
+
+    /**
+     * Change times come from the clock of the server that wrote the row, servers sharing a database may be this far apart
+     */
+    private static final long CLOCK_SKEW_MS = 15L * 60 * 1000;
     private SimpleClans plugin;
+    private StorageRepository repository;
     private DBCore core;
+    private CircuitBreakerRepository breaker;
+    private WriteQueue writes;
+    private KillRollups rollups;
+    private KillArchiver archiver;
+    private Purger purger;
+    private final ExecutorService queries = Executors.newFixedThreadPool(QUERY_THREADS, new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "SimpleClans queries");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final List<Object[]> pendingKills = new ArrayList<Object[]>();
+    private final HashMap<String, PendingUpdate> pendingUpdates = new HashMap<String, PendingUpdate>();
     private HashMap<String, ChatBlock> chatBlocks = new HashMap<String, ChatBlock>();
+    private HashMap<String, Pager> pagers = new HashMap<String, Pager>();
+    private boolean retrieveFailed;
 
     /**
      *
@@ -33,7 +80,121 @@ public final class StorageManager
     {
         plugin = SimpleClans.getInstance();
         initiateDB();
-        importFromDatabase();
+        writes = newWriteQueue();
+        rollups = new KillRollups(core, plugin.getSettingsManager().isUseMysql(), plugin.getSettingsManager().getRollupHours(), plugin.getSettingsManager().getRollupDays());
+        archiver = core == null ? null : new KillArchiver(core, writes, plugin.getSettingsManager().isUseMysql(), plugin.getSettingsManager().getKillArchiveChunk());
+        purger = new Purger(repository, writes, plugin.getSettingsManager().getPurgeChunkSize());
+        if (!importFromSnapshot())
+        {
+            importFromDatabase();
+        }
+
+        startKillFlusher();
+        startKillArchiver();
+        startPurger();
+    }
+
+    /**
+     * With SQLite in WAL mode writes that pile up are committed together, every write is committed on its own otherwise
+     */
+    private WriteQueue newWriteQueue()
+    {
+        SettingsManager settings = plugin.getSettingsManager();
+
+        if (core != null && !settings.isUseMysql() && settings.isSqliteWal())
+        {
+            return new WriteQueue("SimpleClans storage", core, settings.getCommitWindowMs(), MAX_WRITE_GROUP);
+        }
+
+        return new WriteQueue("SimpleClans storage");
+    }
+
+    private void startKillFlusher()
+    {
+        long ticks = Math.max(1, plugin.getSettingsManager().getKillFlushSecs()) * 20L;
+
+        plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable()
+        {
+            public void run()
+            {
+                flushKills();
+            }
+        }, ticks, ticks);
+
+        plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable()
+        {
+            public void run()
+            {
+                long now = System.currentTimeMillis();
+                rollups.compact(now);
+
+                if (isStorageAvailable())
+                {
+                    writes.add(null, rollups.compactStored(now));
+                }
+            }
+        }, ROLLUP_COMPACT_TICKS, ROLLUP_COMPACT_TICKS);
+    }
+
+    /**
+     * Kills older than the retention period are archived hourly, starting shortly after startup
+     */
+    private void startKillArchiver()
+    {
+        if (archiver == null || plugin.getSettingsManager().getKillRetentionDays() <= 0)
+        {
+            return;
+        }
+
+        plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable()
+        {
+            public void run()
+            {
+                archiveKills();
+            }
+        }, 20L * 60, ARCHIVE_TICKS);
+    }
+
+    /**
+     * Inactive clans and players are purged shortly after startup and then on the configured interval
+     */
+    private void startPurger()
+    {
+        long ticks = Math.max(1, plugin.getSettingsManager().getPurgeIntervalMinutes()) * 20L * 60;
+
+        plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable()
+        {
+            public void run()
+            {
+                purger.start();
+            }
+        }, 20L * 30, ticks);
+    }
+
+    /**
+     * Start archiving kills older than the configured retention period
+     *
+     * @return false if archiving is disabled, not supported by the backend, the database cannot be reached or already running
+     */
+    public boolean archiveKills()
+    {
+        int days = plugin.getSettingsManager().getKillRetentionDays();
+
+        if (archiver == null || days <= 0 || !isStorageAvailable())
+        {
+            return false;
+        }
+
+        flushKills();
+        return archiver.start(System.currentTimeMillis() - days * KillRollups.DAY);
+    }
+
+    /**
+     * @return the hourly and daily kill counters, for windowed leaderboards
+     */
+    public KillRollups getKillRollups()
+    {
+        return rollups;
     }
 
     /**
@@ -55,88 +216,141 @@ public final class StorageManager
      */
     public void addChatBlock(Player player, ChatBlock cb)
     {
+        pagers.remove(player.getName());
         chatBlocks.put(player.getName(), cb);
     }
 
     /**
-     * Initiates the db
+     * Retrieve the listing a player is paging through
+     *
+     * @param player
+     * @return
      */
-    public void initiateDB()
+    public Pager getPager(Player player)
     {
-        if (plugin.getSettingsManager().isUseMysql())
-        {
-            core = new MySQLCore(plugin.getSettingsManager().getHost(), plugin.getSettingsManager().getDatabase(), plugin.getSettingsManager().getUsername(), plugin.getSettingsManager().getPassword());
-
-            if (core.checkConnection())
-            {
-                SimpleClans.log(plugin.getLang().getString("mysql.connection.successful"));
+        return pagers.get(player.getName());
+    }
 
-                if (!core.existsTable("sc_clans"))
-                {
-                    SimpleClans.log("Creating table: sc_clans");
+    /**
+     * Store the listing a player is paging through, replacing any pending chat lines
+     *
+     * @param player
+     * @param pager
+     */
+    public void addPager(Player player, Pager pager)
+    {
+        chatBlocks.remove(player.getName());
+        pagers.put(player.getName(), pager);
+    }
 
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20) NOT NULL auto_increment, `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, PRIMARY KEY  (`id`), UNIQUE KEY `uq_simpleclans_1` (`tag`));";
-                    core.execute(query);
-                }
+    /**
+     * Forget the listing a player was paging through
+     *
+     * @param player
+     */
+    public void removePager(Player player)
+    {
+        pagers.remove(player.getName());
+    }
 
-                if (!core.existsTable("sc_players"))
-                {
-                    SimpleClans.log("Creating table: sc_players");
+    /**
+     * Initiates the db, or the in-memory storage when that backend is configured
+     */
+    public void initiateDB()
+    {
+        SettingsManager settings = plugin.getSettingsManager();
 
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20) NOT NULL auto_increment, `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE KEY `uq_sc_players_1` (`name`));";
-                    core.execute(query);
-                }
+        boolean useMysql = settings.isUseMysql();
 
-                if (!core.existsTable("sc_kills"))
+        if (settings.getStorageBackend().equalsIgnoreCase("memory"))
+        {
+            repository = new MemoryRepository();
+            SimpleClans.log("Using in-memory storage, nothing will be saved");
+        }
+        else if (useMysql)
+        {
+            core = new MySQLCore(settings.getHost(), settings.getDatabase(), settings.getUsername(), settings.getPassword(), settings.getMysqlPoolSize(), settings.getMysqlPoolWaitSecs() * 1000L, settings.getMysqlIdleTimeoutSecs() * 1000L);
+            breaker = new CircuitBreakerRepository(new SqlRepository(core, true, settings.isKeepPackedColumns()), core, new File(plugin.getDataFolder(), "spool.dat"), settings.getBreakerFailures(), settings.getBreakerProbeSecs() * 1000L, Math.max(1, settings.getSpoolMaxMb()) * 1024L * 1024, new CircuitBreakerRepository.Listener()
+            {
+                public void stateChanged(CircuitBreakerRepository.State state, int spooled, int dropped)
                 {
-                    SimpleClans.log("Creating table: sc_kills");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20) NOT NULL auto_increment, `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));";
-                    core.execute(query);
+                    if (state == CircuitBreakerRepository.State.OPEN)
+                    {
+                        notifyAdmins(ChatColor.RED + plugin.getLang().getString("database.unreachable.changes.saved.locally"));
+                    }
+                    else
+                    {
+                        notifyAdmins(ChatColor.AQUA + MessageFormat.format(plugin.getLang().getString("database.reachable.again.0.changes.written"), spooled));
+                    }
                 }
-            }
-            else
+            });
+            repository = breaker;
+
+            if (!core.checkConnection())
             {
                 SimpleClans.log(ChatColor.RED + plugin.getLang().getString("mysql.connection.failed"));
+                return;
             }
+
+            SimpleClans.log(plugin.getLang().getString("mysql.connection.successful"));
         }
         else
         {
-            core = new SQLiteCore(plugin.getDataFolder().getPath());
+            core = new SQLiteCore(plugin.getDataFolder().getPath(), settings.isSqliteWal());
+            repository = new SqlRepository(core, false, settings.isKeepPackedColumns());
 
-            if (core.checkConnection())
+            if (!core.checkConnection())
             {
-                SimpleClans.log(plugin.getLang().getString("sqlite.connection.successful"));
-
-                if (!core.existsTable("sc_clans"))
-                {
-                    SimpleClans.log("Creating table: sc_clans");
+                SimpleClans.log(ChatColor.RED + plugin.getLang().getString("sqlite.connection.failed"));
+                return;
+            }
 
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20), `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, PRIMARY KEY  (`id`), UNIQUE (`tag`));";
-                    core.execute(query);
-                }
+            SimpleClans.log(plugin.getLang().getString("sqlite.connection.successful"));
+        }
 
-                if (!core.existsTable("sc_players"))
-                {
-                    SimpleClans.log("Creating table: sc_players");
+        if (settings.getKillStore().equalsIgnoreCase("journal"))
+        {
+            repository = new JournalRepository(repository, new File(plugin.getDataFolder(), "kills"), Math.max(1, settings.getKillJournalSegmentMb()) * 1024 * 1024);
+            SimpleClans.log("Storing kills in the kill journal");
+        }
 
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20), `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE (`name`));";
-                    core.execute(query);
-                }
+        repository.open();
+    }
 
-                if (!core.existsTable("sc_kills"))
+    /**
+     * Tell the online admins about a change in the storage, from any thread
+     */
+    private void notifyAdmins(final String message)
+    {
+        plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable()
+        {
+            public void run()
+            {
+                for (Player player : plugin.getServer().getOnlinePlayers())
                 {
-                    SimpleClans.log("Creating table: sc_kills");
-
-                    String query = "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20), `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));";
-                    core.execute(query);
+                    if (plugin.getPermissionsManager().has(player, "simpleclans.admin.reload"))
+                    {
+                        ChatBlock.sendMessage(player, message);
+                    }
                 }
             }
-            else
-            {
-                SimpleClans.log(ChatColor.RED + plugin.getLang().getString("sqlite.connection.failed"));
-            }
-        }
+        });
+    }
+
+    /**
+     * @return whether the database is being used, false while it cannot be reached and changes are saved locally
+     */
+    public boolean isStorageAvailable()
+    {
+        return breaker == null || breaker.getState() == CircuitBreakerRepository.State.CLOSED;
+    }
+
+    /**
+     * @return the circuit breaker in front of the database, null when the backend has none
+     */
+    public CircuitBreakerRepository getCircuitBreaker()
+    {
+        return breaker;
     }
 
     /**
@@ -144,31 +358,217 @@ public final class StorageManager
      */
     public void closeConnection()
     {
-        core.close();
+        repository.close();
+    }
+
+    /**
+     * Run all queued writes and stop the storage thread, gives up once the configured flush timeout has passed
+     */
+    public void shutdown()
+    {
+        queries.shutdown();
+
+        if (archiver != null)
+        {
+            archiver.stop();
+        }
+
+        purger.stop();
+        flushKills();
+        int dropped = writes.shutdown(plugin.getSettingsManager().getFlushTimeoutSecs() * 1000L);
+
+        if (dropped > 0)
+        {
+            SimpleClans.getLogger().severe(MessageFormat.format("Could not write {0} queued changes to the database before shutdown", dropped));
+        }
+        else if (core != null && plugin.getSettingsManager().isStartupSnapshot())
+        {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Block until all queued writes have reached the database
+     *
+     * @return whether the queue was drained within the configured flush timeout
+     */
+    public boolean flush()
+    {
+        flushKills();
+        return writes.flush(plugin.getSettingsManager().getFlushTimeoutSecs() * 1000L);
     }
 
     /**
-     * Import all data from database to memory
+     * Import all data from database to memory.
+     * Rows are streamed from the database and decoded on a pool of worker threads, the result replaces what is in memory in one step.
      */
     public void importFromDatabase()
     {
-        plugin.getClanManager().cleanData();
+        if (!isStorageAvailable())
+        {
+            SimpleClans.getLogger().warning("The database cannot be reached, not importing");
+            return;
+        }
 
-        List<Clan> clans = retrieveClans();
-        purgeClans(clans);
+        flush();
 
-        for (Clan clan : clans)
+        long start = System.currentTimeMillis();
+        ExecutorService decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        try
+        {
+            List<Clan> clans = retrieveClans(decoders, -1);
+
+            HashMap<String, Clan> clansByTag = new HashMap<String, Clan>();
+
+            for (Clan clan : clans)
+            {
+                clansByTag.put(clan.getTag(), clan);
+            }
+
+            long clansDone = System.currentTimeMillis();
+            SimpleClans.log(MessageFormat.format("Read clans in {0} ms", clansDone - start));
+
+            List<ClanPlayer> cps = retrieveClanPlayers(decoders, clansByTag, -1);
+            SimpleClans.log(MessageFormat.format("Read clan players in {0} ms", System.currentTimeMillis() - clansDone));
+
+            publish(clans, cps, start);
+        }
+        finally
+        {
+            decoders.shutdown();
+        }
+    }
+
+    /**
+     * Import the snapshot written on the last clean shutdown, with the rows changed in the database since then applied on top
+     *
+     * @return false when there is no usable snapshot and everything has to be imported from the database
+     */
+    private boolean importFromSnapshot()
+    {
+        boolean membersOnly = plugin.getSettingsManager().isLazyPlayers();
+
+        if (core == null || !plugin.getSettingsManager().isStartupSnapshot())
         {
-            plugin.getClanManager().importClan(clan);
+            return false;
         }
 
-        if (clans.size() > 0)
+        long start = System.currentTimeMillis();
+        StartupSnapshot snapshot = new StartupSnapshot(getSnapshotFile());
+
+        if (!snapshot.read(membersOnly))
         {
-            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("clans"), clans.size()));
+            return false;
+        }
+
+        long read = System.currentTimeMillis();
+        long since = snapshot.getWatermark() - CLOCK_SKEW_MS;
+        LinkedHashMap<String, Clan> clans = new LinkedHashMap<String, Clan>();
+        LinkedHashMap<String, ClanPlayer> cps = new LinkedHashMap<String, ClanPlayer>();
+        int changedClans;
+        int changedPlayers;
+        ExecutorService decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        try
+        {
+            for (Clan clan : snapshot.getClans())
+            {
+                clans.put(clan.getTag(), clan);
+            }
+
+            List<Clan> changed = retrieveClans(decoders, since);
+            changedClans = changed.size();
+
+            for (Clan clan : changed)
+            {
+                clans.put(clan.getTag(), clan);
+            }
+
+            readClanLists(clans);
+
+            for (Clan clan : clans.values())
+            {
+                clan.setPersistedColumns(getColumns(clan));
+            }
+
+            List<String> tags = snapshot.getClanPlayerTags();
+
+            for (int i = 0; i < tags.size(); i++)
+            {
+                ClanPlayer cp = snapshot.getClanPlayers().get(i);
+                cp.setClan(clans.get(tags.get(i)));
+                cp.setPersistedColumns(getColumns(cp));
+                cps.put(cp.getCleanName(), cp);
+            }
+
+            List<ClanPlayer> changedCps = retrieveClanPlayers(decoders, clans, since);
+            changedPlayers = changedCps.size();
+
+            for (ClanPlayer cp : changedCps)
+            {
+                if (membersOnly && cp.getClan() == null)
+                {
+                    cps.remove(cp.getCleanName());
+                }
+                else
+                {
+                    cps.put(cp.getCleanName(), cp);
+                }
+            }
+        }
+        finally
+        {
+            decoders.shutdown();
+        }
+
+        // every stored row is either in the snapshot or changed since, so only rows removed since make the counts differ
+
+        if (repository.countClans() != clans.size() || repository.countClanPlayers(membersOnly) != cps.size())
+        {
+            SimpleClans.log("The startup snapshot does not match the database, importing everything");
+            return false;
+        }
+
+        SimpleClans.log(MessageFormat.format("Read startup snapshot in {0} ms, {1} clans and {2} players changed since", read - start, changedClans, changedPlayers));
+        publish(new ArrayList<Clan>(clans.values()), new ArrayList<ClanPlayer>(cps.values()), start);
+        return true;
+    }
+
+    /**
+     * Replace the allies, rivals and bulletin boards of the clans with the stored ones, clans with none stored get theirs emptied
+     */
+    private void readClanLists(final Map<String, Clan> clans)
+    {
+        for (Clan clan : clans.values())
+        {
+            clan.setPackedAllies("");
+            clan.setPackedRivals("");
+            clan.setPackedBb("");
         }
 
-        List<ClanPlayer> cps = retrieveClanPlayers();
-        purgeClanPlayers(cps);
+        repository.readClanLists(new StorageRepository.RowHandler()
+        {
+            public void handle(Object[] row)
+            {
+                Clan clan = clans.get((String) row[0]);
+
+                if (clan != null)
+                {
+                    clan.setPackedAllies((String) row[1]);
+                    clan.setPackedRivals((String) row[2]);
+                    clan.setPackedBb((String) row[3]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Link the imported players to their clans and hand everything to the clan manager
+     */
+    private void publish(List<Clan> clans, List<ClanPlayer> cps, long start)
+    {
+        long publishing = System.currentTimeMillis();
 
         for (ClanPlayer cp : cps)
         {
@@ -178,567 +578,1054 @@ public final class StorageManager
             {
                 tm.importMember(cp);
             }
-            plugin.getClanManager().importClanPlayer(cp);
+        }
+
+        plugin.getClanManager().importAll(clans, cps);
+
+        for (Clan clan : clans)
+        {
+            clan.resolveWarringClans();
+        }
+
+        rollups.load();
+
+        SimpleClans.log(MessageFormat.format("Published imported data in {0} ms, {1} ms in total", System.currentTimeMillis() - publishing, System.currentTimeMillis() - start));
+
+        if (clans.size() > 0)
+        {
+            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("clans"), clans.size()));
         }
 
         if (cps.size() > 0)
         {
-            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("clan.players"), cps.size()));
+            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("clan.players"), cps.size()));
+        }
+    }
+
+    /**
+     * Write the startup snapshot, once all writes have reached the database
+     */
+    private void writeSnapshot()
+    {
+        boolean membersOnly = plugin.getSettingsManager().isLazyPlayers();
+        long start = System.currentTimeMillis();
+        long changed = repository.readLastChange();
+
+        if (changed < 0)
+        {
+            return;
+        }
+
+        List<Clan> clans = plugin.getClanManager().getClans();
+        List<ClanPlayer> cps = new ArrayList<ClanPlayer>();
+
+        for (ClanPlayer cp : plugin.getClanManager().getAllClanPlayers())
+        {
+            if (!membersOnly || cp.getClan() != null)
+            {
+                cps.add(cp);
+            }
+        }
+
+        if (new StartupSnapshot(getSnapshotFile()).write(clans, cps, membersOnly, changed))
+        {
+            SimpleClans.log(MessageFormat.format("Wrote startup snapshot in {0} ms", System.currentTimeMillis() - start));
+        }
+    }
+
+    private File getSnapshotFile()
+    {
+        return new File(plugin.getDataFolder(), "snapshot.dat");
+    }
+
+    /**
+     * Retrieves all simple clans from storage
+     *
+     * @param decoders the threads rows are decoded on
+     * @param changedSince only read the clans changed after this change time, all clans when negative
+     * @return
+     */
+    private List<Clan> retrieveClans(ExecutorService decoders, long changedSince)
+    {
+        ChunkedDecoder<Clan> chunks = new ChunkedDecoder<Clan>(decoders, new RowDecoder<Clan>()
+        {
+            public Clan decode(Object[] row)
+            {
+                long founded = (Long) row[5];
+                long last_used = (Long) row[6];
+
+                if (founded == 0)
+                {
+                    founded = (new Date()).getTime();
+                }
+
+                if (last_used == 0)
+                {
+                    last_used = (new Date()).getTime();
+                }
+
+                Clan clan = new Clan();
+                clan.setFlags((String) row[11]);
+                clan.setVerified((Boolean) row[0]);
+                clan.setFriendlyFire((Boolean) row[4]);
+                clan.setTag((String) row[1]);
+                clan.setColorTag(Helper.parseColors((String) row[2]));
+                clan.setName((String) row[3]);
+                clan.setPackedAllies((String) row[7]);
+                clan.setPackedRivals((String) row[8]);
+                clan.setPackedBb((String) row[9]);
+                clan.setCapeUrl((String) row[10]);
+                clan.setFounded(founded);
+                clan.setLastUsed(last_used);
+                clan.setPersistedColumns(getColumns(clan));
+                return clan;
+            }
+        });
+
+        if (changedSince < 0)
+        {
+            repository.readClans(chunks);
+        }
+        else
+        {
+            repository.readClansChangedSince(changedSince, chunks);
+        }
+
+        return chunks.finish();
+    }
+
+    /**
+     * Retrieves all clan players from storage
+     *
+     * @param decoders the threads rows are decoded on
+     * @param clans the imported clans by tag, players are linked to them
+     * @param changedSince only read the players changed after this change time, members or not, all players when negative
+     * @return
+     */
+    private List<ClanPlayer> retrieveClanPlayers(ExecutorService decoders, Map<String, Clan> clans, long changedSince)
+    {
+        ChunkedDecoder<ClanPlayer> chunks = new ChunkedDecoder<ClanPlayer>(decoders, newClanPlayerDecoder(clans));
+
+        if (changedSince < 0)
+        {
+            repository.readClanPlayers(plugin.getSettingsManager().isLazyPlayers(), chunks);
+        }
+        else
+        {
+            repository.readClanPlayersChangedSince(changedSince, chunks);
+        }
+
+        return chunks.finish();
+    }
+
+    /**
+     * Retrieves a single clan player from storage, waiting for any of their changes still queued to be written first
+     *
+     * @param playerName
+     * @return null if the player is not stored or could not be read, see isRetrieveFailed
+     */
+    public ClanPlayer retrieveClanPlayer(String playerName)
+    {
+        // players are not evicted from memory with a write still queued, so this only waits on a player deleted moments ago
+        String key = playerKey(playerName);
+
+        if (writes.isPending(key) && !writes.await(key, plugin.getSettingsManager().getFlushTimeoutSecs() * 1000L))
+        {
+            retrieveFailed = true;
+            return null;
+        }
+
+        Object[] row = repository.readClanPlayer(playerName);
+        retrieveFailed = row == StorageRepository.UNREADABLE;
+
+        if (retrieveFailed)
+        {
+            return null;
+        }
+
+        // clan members are always kept in memory, so a player loaded on demand never needs linking to a clan
+        return row == null ? null : newClanPlayerDecoder(Collections.<String, Clan>emptyMap()).decode(row);
+    }
+
+    /**
+     * @return whether the last player retrieved could not be read, so that a null returned for them does not mean they are not stored
+     */
+    public boolean isRetrieveFailed()
+    {
+        return retrieveFailed;
+    }
+
+    /**
+     * Decodes clan player rows, linking players to the given clans by tag
+     */
+    private RowDecoder<ClanPlayer> newClanPlayerDecoder(final Map<String, Clan> clans)
+    {
+        return new RowDecoder<ClanPlayer>()
+        {
+            public ClanPlayer decode(Object[] row)
+            {
+                String tag = (String) row[2];
+                boolean leader = (Boolean) row[1];
+                long last_seen = (Long) row[8];
+                long join_date = (Long) row[9];
+
+                if (last_seen == 0)
+                {
+                    last_seen = (new Date()).getTime();
+                }
+
+                if (join_date == 0)
+                {
+                    join_date = (new Date()).getTime();
+                }
+
+                ClanPlayer cp = new ClanPlayer();
+                cp.setFlags((String) row[12]);
+                cp.setName((String) row[0]);
+                cp.setLeader(leader);
+                cp.setFriendlyFire((Boolean) row[3]);
+                cp.setNeutralKills((Integer) row[4]);
+                cp.setRivalKills((Integer) row[5]);
+                cp.setCivilianKills((Integer) row[6]);
+                cp.setDeaths((Integer) row[7]);
+                cp.setLastSeen(last_seen);
+                cp.setJoinDate(join_date);
+                cp.setPackedPastClans(Helper.parseColors((String) row[10]));
+                cp.setTrusted(leader || (Boolean) row[11]);
+
+                if (!tag.isEmpty())
+                {
+                    Clan clan = clans.get(Helper.cleanTag(tag));
+
+                    if (clan != null)
+                    {
+                        cp.setClan(clan);
+                    }
+                }
+
+                cp.setPersistedColumns(getColumns(cp));
+                return cp;
+            }
+        };
+    }
+
+    /**
+     * Collects rows as they are read and decodes them in chunks on the worker threads, keeping their order
+     */
+    private static class ChunkedDecoder<T> implements StorageRepository.RowHandler
+    {
+        private final ExecutorService decoders;
+        private final RowDecoder<T> decoder;
+        private final List<Future<List<T>>> chunks = new ArrayList<Future<List<T>>>();
+        private List<Object[]> rows = new ArrayList<Object[]>(IMPORT_CHUNK_SIZE);
+
+        private ChunkedDecoder(ExecutorService decoders, RowDecoder<T> decoder)
+        {
+            this.decoders = decoders;
+            this.decoder = decoder;
+        }
+
+        public void handle(Object[] row)
+        {
+            rows.add(row);
+
+            if (rows.size() >= IMPORT_CHUNK_SIZE)
+            {
+                submit();
+            }
+        }
+
+        private void submit()
+        {
+            final List<Object[]> chunk = rows;
+            rows = new ArrayList<Object[]>(IMPORT_CHUNK_SIZE);
+
+            chunks.add(decoders.submit(new Callable<List<T>>()
+            {
+                public List<T> call()
+                {
+                    List<T> out = new ArrayList<T>(chunk.size());
+
+                    for (Object[] row : chunk)
+                    {
+                        try
+                        {
+                            out.add(decoder.decode(row));
+                        }
+                        catch (Exception ex)
+                        {
+                            for (StackTraceElement el : ex.getStackTrace())
+                            {
+                                System.out.print(el.toString());
+                            }
+                        }
+                    }
+
+                    return out;
+                }
+            }));
+        }
+
+        /**
+         * Decode the remaining rows and wait for all chunks
+         */
+        private List<T> finish()
+        {
+            if (!rows.isEmpty())
+            {
+                submit();
+            }
+
+            List<T> out = new ArrayList<T>();
+
+            for (Future<List<T>> chunk : chunks)
+            {
+                try
+                {
+                    out.addAll(chunk.get());
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (ExecutionException ex)
+                {
+                    SimpleClans.getLogger().log(Level.SEVERE, "Failed decoding imported rows", ex.getCause());
+                }
+            }
+
+            return out;
+        }
+    }
+
+    /**
+     * Turns a row read from storage into an object on a worker thread
+     */
+    private interface RowDecoder<T>
+    {
+        T decode(Object[] row);
+    }
+
+    /**
+     * Insert a clan into the database
+     *
+     * @param clan
+     */
+    public void insertClan(Clan clan)
+    {
+        LinkedHashMap<String, Object> persisted = getColumns(clan);
+        final LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>(persisted);
+
+        if (!plugin.getSettingsManager().isKeepPackedColumns())
+        {
+            columns.put("packed_allies", "");
+            columns.put("packed_rivals", "");
+            columns.put("packed_bb", "");
+        }
+
+        clan.setPersistedColumns(persisted);
+
+        final String tag = clan.getTag();
+        final List<String> allies = new ArrayList<String>(clan.getAllies());
+        final List<String> rivals = new ArrayList<String>(clan.getRivals());
+        final List<String> bb = new ArrayList<String>(clan.getBb());
+        final int keep = plugin.getSettingsManager().getBbSize();
+
+        addBarrier(clanKey(clan), new Runnable()
+        {
+            public void run()
+            {
+                repository.insertClan(columns);
+
+                for (String ally : allies)
+                {
+                    repository.insertRelation(tag, StorageRepository.ALLY, ally);
+                }
+
+                for (String rival : rivals)
+                {
+                    repository.insertRelation(tag, StorageRepository.RIVAL, rival);
+                }
+
+                for (String msg : bb)
+                {
+                    repository.insertBb(tag, msg, keep);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add an ally or rival of a clan to the database
+     *
+     * @param clan
+     * @param relation StorageRepository.ALLY or StorageRepository.RIVAL
+     * @param otherTag
+     */
+    public void insertRelation(Clan clan, final String relation, final String otherTag)
+    {
+        final String tag = clan.getTag();
+
+        addBarrier(clanKey(clan), new Runnable()
+        {
+            public void run()
+            {
+                repository.insertRelation(tag, relation, otherTag);
+            }
+        });
+
+        queuePackedColumns(clan);
+    }
+
+    /**
+     * Remove an ally or rival of a clan from the database
+     *
+     * @param clan
+     * @param relation StorageRepository.ALLY or StorageRepository.RIVAL
+     * @param otherTag
+     */
+    public void deleteRelation(Clan clan, final String relation, final String otherTag)
+    {
+        final String tag = clan.getTag();
+
+        addBarrier(clanKey(clan), new Runnable()
+        {
+            public void run()
+            {
+                repository.deleteRelation(tag, relation, otherTag);
+            }
+        });
+
+        queuePackedColumns(clan);
+    }
+
+    /**
+     * Append a message to the bulletin board of a clan in the database, dropping the messages beyond the bulletin board size
+     *
+     * @param clan
+     * @param msg
+     */
+    public void insertBb(Clan clan, final String msg)
+    {
+        final String tag = clan.getTag();
+        final int keep = plugin.getSettingsManager().getBbSize();
+
+        addBarrier(clanKey(clan), new Runnable()
+        {
+            public void run()
+            {
+                repository.insertBb(tag, msg, keep);
+            }
+        });
+
+        queuePackedColumns(clan);
+    }
+
+    /**
+     * Update a clan to the database
+     *
+     * @param clan
+     */
+    public void updateClan(Clan clan)
+    {
+        clan.updateLastUsed();
+        queueColumns(clan);
+    }
+
+    private void queueColumns(Clan clan)
+    {
+        LinkedHashMap<String, Object> columns = getColumns(clan);
+        queueUpdate(clanKey(clan), true, clan.getTag(), changedColumns(columns, clan.getPersistedColumns()));
+        clan.setPersistedColumns(columns);
+    }
+
+    /**
+     * Mirror a change of allies, rivals or bulletin board into the packed columns, for as long as they are kept for the previous version
+     */
+    private void queuePackedColumns(Clan clan)
+    {
+        if (plugin.getSettingsManager().isKeepPackedColumns())
+        {
+            queueColumns(clan);
+        }
+    }
+
+    /**
+     * Delete a clan from the database
+     *
+     * @param clan
+     */
+    public void deleteClan(Clan clan)
+    {
+        final List<String> tags = Collections.singletonList(clan.getTag());
+
+        addBarrier(clanKey(clan), new Runnable()
+        {
+            public void run()
+            {
+                repository.deleteClans(tags);
+            }
+        });
+    }
+
+    /**
+     * Insert a clan player into the database
+     *
+     * @param cp
+     */
+    public void insertClanPlayer(ClanPlayer cp)
+    {
+        LinkedHashMap<String, Object> persisted = getColumns(cp);
+        final LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+        columns.put("name", cp.getName());
+        columns.put("join_date", cp.getJoinDate());
+        columns.putAll(persisted);
+        cp.setPersistedColumns(persisted);
+
+        addBarrier(playerKey(cp), new Runnable()
+        {
+            public void run()
+            {
+                repository.insertClanPlayer(columns);
+            }
+        });
+    }
+
+    /**
+     * Update a clan player to the database
+     *
+     * @param cp
+     */
+    public void updateClanPlayer(ClanPlayer cp)
+    {
+        cp.updateLastSeen();
+        LinkedHashMap<String, Object> columns = getColumns(cp);
+        queueUpdate(playerKey(cp), false, cp.getName(), changedColumns(columns, cp.getPersistedColumns()));
+        cp.setPersistedColumns(columns);
+    }
+
+    /**
+     * The values of the clan columns, in insert order. Allies, rivals and bulletin board are kept in their own tables,
+     * the packed columns only while they are kept for the previous version.
+     */
+    private LinkedHashMap<String, Object> getColumns(Clan clan)
+    {
+        LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+        columns.put("verified", clan.isVerified());
+        columns.put("tag", clan.getTag());
+        columns.put("color_tag", clan.getColorTag());
+        columns.put("name", clan.getName());
+        columns.put("friendly_fire", clan.isFriendlyFire());
+        columns.put("founded", clan.getFounded());
+        columns.put("last_used", clan.getLastUsed());
+        columns.put("cape_url", clan.getCapeUrl());
+        columns.put("flags", clan.getFlags());
+
+        if (plugin.getSettingsManager().isKeepPackedColumns())
+        {
+            columns.put("packed_allies", clan.getPackedAllies());
+            columns.put("packed_rivals", clan.getPackedRivals());
+            columns.put("packed_bb", clan.getPackedBb());
+        }
+
+        return columns;
+    }
+
+    /**
+     * The values of the updatable columns of a clan player
+     */
+    private LinkedHashMap<String, Object> getColumns(ClanPlayer cp)
+    {
+        LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+        columns.put("leader", cp.isLeader());
+        columns.put("tag", cp.getTag());
+        columns.put("friendly_fire", cp.isFriendlyFire());
+        columns.put("neutral_kills", cp.getNeutralKills());
+        columns.put("rival_kills", cp.getRivalKills());
+        columns.put("civilian_kills", cp.getCivilianKills());
+        columns.put("deaths", cp.getDeaths());
+        columns.put("last_seen", cp.getLastSeen());
+        columns.put("packed_past_clans", cp.getPackedPastClans());
+        columns.put("trusted", cp.isTrusted());
+        columns.put("flags", cp.getFlags());
+        return columns;
+    }
+
+    /**
+     * @return the columns whose value differs from the one last written, all of them if that is unknown
+     */
+    private LinkedHashMap<String, Object> changedColumns(LinkedHashMap<String, Object> columns, Map<String, Object> persisted)
+    {
+        if (persisted == null)
+        {
+            return columns;
+        }
+
+        LinkedHashMap<String, Object> changed = new LinkedHashMap<String, Object>();
+
+        for (Map.Entry<String, Object> column : columns.entrySet())
+        {
+            Object old = persisted.get(column.getKey());
+
+            if (old == null ? column.getValue() != null : !old.equals(column.getValue()))
+            {
+                changed.put(column.getKey(), column.getValue());
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Queue an update of only the given columns. Changes to the same row that are still waiting are combined into one update.
+     */
+    private void queueUpdate(final String key, boolean clan, String name, Map<String, Object> changed)
+    {
+        if (changed.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (pendingUpdates)
+        {
+            PendingUpdate pending = pendingUpdates.get(key);
+
+            if (pending == null)
+            {
+                pending = new PendingUpdate(clan);
+                pendingUpdates.put(key, pending);
+            }
+
+            pending.name = name;
+            pending.columns.putAll(changed);
+
+            final PendingUpdate update = pending;
+
+            writes.merge(key, new Runnable()
+            {
+                public void run()
+                {
+                    synchronized (pendingUpdates)
+                    {
+                        if (pendingUpdates.get(key) == update)
+                        {
+                            pendingUpdates.remove(key);
+                        }
+                    }
+
+                    update.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue a write that later updates of the same row must not be combined across, updates still waiting are run before it
+     * and the ones queued after it start a new update
+     */
+    private void addBarrier(String key, Runnable task)
+    {
+        synchronized (pendingUpdates)
+        {
+            pendingUpdates.remove(key);
+            writes.add(key, task);
         }
     }
 
-    private void purgeClans(List<Clan> clans)
+    private class PendingUpdate
     {
-        List<Clan> purge = new ArrayList<Clan>();
+        private final boolean clan;
+        private final LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+        private String name;
 
-        for (Clan clan : clans)
+        private PendingUpdate(boolean clan)
+        {
+            this.clan = clan;
+        }
+
+        private void run()
         {
-            if (clan.isVerified())
+            if (clan)
             {
-                if (clan.getInactiveDays() > plugin.getSettingsManager().getPurgeClan())
-                {
-                    purge.add(clan);
-                }
+                repository.updateClan(name, columns);
             }
             else
             {
-                if (clan.getInactiveDays() > plugin.getSettingsManager().getPurgeUnverified())
-                {
-                    purge.add(clan);
-                }
+                repository.updateClanPlayer(name, columns);
             }
         }
-
-        for (Clan clan : purge)
-        {
-            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("purging.clan"), clan.getName()));
-            deleteClan(clan);
-            clans.remove(clan);
-        }
     }
 
-    private void purgeClanPlayers(List<ClanPlayer> cps)
+    /**
+     * Delete a clan player and their kills from the database
+     *
+     * @param cp
+     */
+    public void deleteClanPlayer(ClanPlayer cp)
     {
-        List<ClanPlayer> purge = new ArrayList<ClanPlayer>();
+        flushKills();
 
-        for (ClanPlayer cp : cps)
+        final List<String> names = Collections.singletonList(cp.getName());
+
+        addBarrier(playerKey(cp), new Runnable()
         {
-            if (cp.getInactiveDays() > plugin.getSettingsManager().getPurgePlayers())
+            public void run()
             {
-                purge.add(cp);
+                repository.deleteClanPlayers(names);
             }
+        });
+    }
+
+    /**
+     * Insert a kill into the database
+     *
+     * @param attacker
+     * @param victim
+     * @param type
+     */
+    public void insertKill(Player attacker, String attackerTag, Player victim, String victimTag, String type)
+    {
+        boolean full;
+        long now = System.currentTimeMillis();
+        rollups.record(attacker.getName(), attackerTag, victim.getName(), victimTag, now);
+
+        synchronized (pendingKills)
+        {
+            pendingKills.add(new Object[]{attacker.getName(), attackerTag, victim.getName(), victimTag, type, now});
+            full = pendingKills.size() >= plugin.getSettingsManager().getKillBatchSize();
         }
 
-        for (ClanPlayer cp : purge)
+        if (full)
         {
-            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("purging.player.data"), cp.getName()));
-            deleteClanPlayer(cp);
-            cps.remove(cp);
+            flushKills();
         }
     }
 
     /**
-     * Retrieves all simple clans from the database
-     *
-     * @return
+     * Queue all buffered kills to be written as one transaction, together with their hourly counts
      */
-    public List<Clan> retrieveClans()
+    public void flushKills()
     {
-        List<Clan> out = new ArrayList<Clan>();
+        final List<Object[]> rows;
 
-        String query = "SELECT * FROM  `sc_clans`;";
-        ResultSet res = core.select(query);
-
-        if (res != null)
+        synchronized (pendingKills)
         {
-            try
+            if (pendingKills.isEmpty())
             {
-                while (res.next())
-                {
-                    try
-                    {
-                        boolean verified = res.getBoolean("verified");
-                        boolean friendly_fire = res.getBoolean("friendly_fire");
-                        String tag = res.getString("tag");
-                        String color_tag = Helper.parseColors(res.getString("color_tag"));
-                        String name = res.getString("name");
-                        String packed_allies = res.getString("packed_allies");
-                        String packed_rivals = res.getString("packed_rivals");
-                        String packed_bb = res.getString("packed_bb");
-                        String cape_url = res.getString("cape_url");
-                        String flags = res.getString("flags");
-                        long founded = res.getLong("founded");
-                        long last_used = res.getLong("last_used");
-
-                        if (founded == 0)
-                        {
-                            founded = (new Date()).getTime();
-                        }
+                return;
+            }
 
-                        if (last_used == 0)
-                        {
-                            last_used = (new Date()).getTime();
-                        }
+            rows = new ArrayList<Object[]>(pendingKills);
+            pendingKills.clear();
+        }
 
-                        Clan clan = new Clan();
-                        clan.setFlags(flags);
-                        clan.setVerified(verified);
-                        clan.setFriendlyFire(friendly_fire);
-                        clan.setTag(tag);
-                        clan.setColorTag(color_tag);
-                        clan.setName(name);
-                        clan.setPackedAllies(packed_allies);
-                        clan.setPackedRivals(packed_rivals);
-                        clan.setPackedBb(packed_bb);
-                        clan.setCapeUrl(cape_url);
-                        clan.setFounded(founded);
-                        clan.setLastUsed(last_used);
-
-                        out.add(clan);
-                    }
-                    catch (Exception ex)
-                    {
-                        for (StackTraceElement el : ex.getStackTrace())
-                        {
-                            System.out.print(el.toString());
-                        }
-                    }
-                }
-            }
-            catch (SQLException ex)
+        final Runnable work = new Runnable()
+        {
+            public void run()
             {
-                for (StackTraceElement el : ex.getStackTrace())
+                repository.insertKills(rows);
+
+                if (isStorageAvailable())
                 {
-                    System.out.print(el.toString());
+                    rollups.store(rows);
                 }
             }
-        }
+        };
 
-        return out;
+        writes.add(null, new Runnable()
+        {
+            public void run()
+            {
+                repository.transaction(work);
+            }
+        });
     }
 
     /**
-     * Retrieves all clan players from the database
+     * Delete a player's kill record form the database
      *
-     * @return
+     * @param playerName
      */
-    public List<ClanPlayer> retrieveClanPlayers()
+    public void deleteKills(String playerName)
     {
-        List<ClanPlayer> out = new ArrayList<ClanPlayer>();
+        flushKills();
 
-        String query = "SELECT * FROM  `sc_players`;";
-        ResultSet res = core.select(query);
+        final List<String> names = Collections.singletonList(playerName);
 
-        if (res != null)
+        writes.add(null, new Runnable()
         {
-            try
-            {
-                while (res.next())
-                {
-                    try
-                    {
-                        String name = res.getString("name");
-                        String tag = res.getString("tag");
-                        boolean leader = res.getBoolean("leader");
-                        boolean friendly_fire = res.getBoolean("friendly_fire");
-                        boolean trusted = res.getBoolean("trusted");
-                        int neutral_kills = res.getInt("neutral_kills");
-                        int rival_kills = res.getInt("rival_kills");
-                        int civilian_kills = res.getInt("civilian_kills");
-                        int deaths = res.getInt("deaths");
-                        long last_seen = res.getLong("last_seen");
-                        long join_date = res.getLong("join_date");
-                        String flags = res.getString("flags");
-                        String packed_past_clans = Helper.parseColors(res.getString("packed_past_clans"));
-
-                        if (last_seen == 0)
-                        {
-                            last_seen = (new Date()).getTime();
-                        }
-
-                        if (join_date == 0)
-                        {
-                            join_date = (new Date()).getTime();
-                        }
-
-                        ClanPlayer cp = new ClanPlayer();
-                        cp.setFlags(flags);
-                        cp.setName(name);
-                        cp.setLeader(leader);
-                        cp.setFriendlyFire(friendly_fire);
-                        cp.setNeutralKills(neutral_kills);
-                        cp.setRivalKills(rival_kills);
-                        cp.setCivilianKills(civilian_kills);
-                        cp.setDeaths(deaths);
-                        cp.setLastSeen(last_seen);
-                        cp.setJoinDate(join_date);
-                        cp.setPackedPastClans(packed_past_clans);
-                        cp.setTrusted(leader || trusted);
-
-                        if (!tag.isEmpty())
-                        {
-                            Clan clan = SimpleClans.getInstance().getClanManager().getClan(tag);
-
-                            if (clan != null)
-                            {
-                                cp.setClan(clan);
-                            }
-                        }
-
-                        out.add(cp);
-                    }
-                    catch (Exception ex)
-                    {
-                        for (StackTraceElement el : ex.getStackTrace())
-                        {
-                            System.out.print(el.toString());
-                        }
-                    }
-                }
-            }
-            catch (SQLException ex)
+            public void run()
             {
-                for (StackTraceElement el : ex.getStackTrace())
-                {
-                    System.out.print(el.toString());
-                }
+                repository.deleteKills(names);
             }
-        }
-
-        return out;
+        });
     }
 
     /**
-     * Insert a clan into the database
+     * Delete purged clans from the database in one statement, they must already be gone from memory
      *
-     * @param clan
+     * @param tags
      */
-    public void insertClan(Clan clan)
+    public void purgeClans(final List<String> tags)
     {
-        String query = "INSERT INTO `sc_clans` (  `verified`, `tag`, `color_tag`, `name`, `friendly_fire`, `founded`, `last_used`, `packed_allies`, `packed_rivals`, `packed_bb`, `cape_url`, `flags`) ";
-        String values = "VALUES ( " + (clan.isVerified() ? 1 : 0) + ",'" + Helper.escapeQuotes(clan.getTag()) + "','" + Helper.escapeQuotes(clan.getColorTag()) + "','" + Helper.escapeQuotes(clan.getName()) + "'," + (clan.isFriendlyFire() ? 1 : 0) + ",'" + clan.getFounded() + "','" + clan.getLastUsed() + "','" + Helper.escapeQuotes(clan.getPackedAllies()) + "','" + Helper.escapeQuotes(clan.getPackedRivals()) + "','" + Helper.escapeQuotes(clan.getPackedBb()) + "','" + Helper.escapeQuotes(clan.getCapeUrl()) + "','" + Helper.escapeQuotes(clan.getFlags()) + "');";
-        core.insert(query + values);
+        writes.add(null, new Runnable()
+        {
+            public void run()
+            {
+                repository.deleteClans(tags);
+            }
+        });
     }
 
     /**
-     * Update a clan to the database
+     * Delete purged players and their kills from the database in one transaction, they must already be gone from memory
      *
-     * @param clan
+     * @param playerNames
      */
-    public void updateClan(Clan clan)
+    public void purgeClanPlayers(final List<String> playerNames)
     {
-        clan.updateLastUsed();
-        String query = "UPDATE `sc_clans` SET verified = " + (clan.isVerified() ? 1 : 0) + ", tag = '" + Helper.escapeQuotes(clan.getTag()) + "', color_tag = '" + Helper.escapeQuotes(clan.getColorTag()) + "', name = '" + Helper.escapeQuotes(clan.getName()) + "', friendly_fire = " + (clan.isFriendlyFire() ? 1 : 0) + ", founded = '" + clan.getFounded() + "', last_used = '" + clan.getLastUsed() + "', packed_allies = '" + Helper.escapeQuotes(clan.getPackedAllies()) + "', packed_rivals = '" + Helper.escapeQuotes(clan.getPackedRivals()) + "', packed_bb = '" + Helper.escapeQuotes(clan.getPackedBb()) + "', cape_url = '" + Helper.escapeQuotes(clan.getCapeUrl()) + "', flags = '" + Helper.escapeQuotes(clan.getFlags()) + "' WHERE tag = '" + Helper.escapeQuotes(clan.getTag()) + "';";
-        core.update(query);
+        flushKills();
+
+        writes.add(null, new Runnable()
+        {
+            public void run()
+            {
+                repository.deleteClanPlayers(playerNames);
+            }
+        });
     }
 
     /**
-     * Delete a clan from the database
-     *
-     * @param clan
+     * @param playerName
+     * @return whether a write for the player is still waiting on the storage thread
      */
-    public void deleteClan(Clan clan)
+    public boolean isWritePending(String playerName)
+    {
+        return writes.isPending(playerKey(playerName));
+    }
+
+    private String clanKey(Clan clan)
+    {
+        return "clan:" + clan.getTag();
+    }
+
+    private String playerKey(ClanPlayer cp)
+    {
+        return playerKey(cp.getName());
+    }
+
+    private String playerKey(String playerName)
     {
-        String query = "DELETE FROM `sc_clans` WHERE tag = '" + clan.getTag() + "';";
-        core.delete(query);
+        return "player:" + playerName.toLowerCase();
     }
 
     /**
-     * Insert a clan player into the database
+     * Returns a map of victim->count of all kills that specific player did
      *
-     * @param cp
+     * @param playerName
+     * @param min        cuts off players who do not meet the minimum requirement of kills
+     * @return
      */
-    public void insertClanPlayer(ClanPlayer cp)
+    public HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
     {
-        String query = "INSERT INTO `sc_players` (  `name`, `leader`, `tag`, `friendly_fire`, `neutral_kills`, `rival_kills`, `civilian_kills`, `deaths`, `last_seen`, `join_date`, `packed_past_clans`, `flags`) ";
-        String values = "VALUES ( '" + cp.getName() + "'," + (cp.isLeader() ? 1 : 0) + ",'" + Helper.escapeQuotes(cp.getTag()) + "'," + (cp.isFriendlyFire() ? 1 : 0) + "," + cp.getNeutralKills() + "," + cp.getRivalKills() + "," + cp.getCivilianKills() + "," + cp.getDeaths() + ",'" + cp.getLastSeen() + "',' " + cp.getJoinDate() + "','" + Helper.escapeQuotes(cp.getPackedPastClans()) + "','" + Helper.escapeQuotes(cp.getFlags()) + "');";
-        core.insert(query + values);
+        return repository.getKillsPerPlayer(playerName, min);
     }
 
     /**
-     * Update a clan player to the database
+     * Returns a map of tag->count of all kills that specific player did
      *
-     * @param cp
+     * @param playerName
+     * @return
      */
-    public void updateClanPlayer(ClanPlayer cp)
+    public HashMap<String, Integer> getKillsPerClan(String playerName)
     {
-        cp.updateLastSeen();
-        String query = "UPDATE `sc_players` SET leader = " + (cp.isLeader() ? 1 : 0) + ", tag = '" + Helper.escapeQuotes(cp.getTag()) + "' , friendly_fire = " + (cp.isFriendlyFire() ? 1 : 0) + ", neutral_kills = " + cp.getNeutralKills() + ", rival_kills = " + cp.getRivalKills() + ", civilian_kills = " + cp.getCivilianKills() + ", deaths = " + cp.getDeaths() + ", last_seen = '" + cp.getLastSeen() + "', packed_past_clans = '" + Helper.escapeQuotes(cp.getPackedPastClans()) + "', trusted = " + (cp.isTrusted() ? 1 : 0) + ", flags='" + Helper.escapeQuotes(cp.getFlags()) + "' WHERE name = '" + cp.getName() + "';";
-        core.update(query);
+        return repository.getKillsPerClan(playerName);
     }
 
     /**
-     * Delete a clan player from the database
+     * Returns a map of tag->count of all deaths by each clan
      *
-     * @param cp
+     * @return
      */
-    public void deleteClanPlayer(ClanPlayer cp)
+    public HashMap<String, Integer> getTotalDeathsPerClan()
     {
-        String query = "DELETE FROM `sc_players` WHERE name = '" + cp.getName() + "';";
-        core.delete(query);
-
-        deleteKills(cp.getName());
+        return repository.getTotalDeathsPerClan();
     }
 
     /**
-     * Insert a kill into the database
+     * Returns a map of tag->count of all kills by each clan
      *
-     * @param attacker
-     * @param victim
-     * @param type
+     * @return
      */
-    public void insertKill(Player attacker, String attackerTag, Player victim, String victimTag, String type)
+    public HashMap<String, Integer> getTotalKillsPerClan()
     {
-        String query = "INSERT INTO `sc_kills` (  `attacker`, `attacker_tag`, `victim`, `victim_tag`, `kill_type`) ";
-        String values = "VALUES ( '" + attacker.getName() + "','" + attackerTag + "','" + victim.getName() + "','" + victimTag + "','" + type + "');";
-        core.insert(query + values);
+        return repository.getTotalKillsPerClan();
     }
 
     /**
-     * Delete a player's kill record form the database
+     * Returns a map of playerName->count of all kills by each player
      *
-     * @param playerName
+     * @return
      */
-    public void deleteKills(String playerName)
+    public HashMap<String, Integer> getTotalKillsPerPlayer()
     {
-        String query = "DELETE FROM `sc_kills` WHERE `attacker` = '" + playerName + "'";
-        core.delete(query);
+        return repository.getTotalKillsPerPlayer();
     }
 
     /**
-     * Returns a map of victim->count of all kills that specific player did
+     * Returns a map of playerName->count of all kills by each player
      *
-     * @param playerName
-     * @param min        cuts off players who do not meet the minimum requirement of kills
      * @return
      */
-    public HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
+    public HashMap<String, Integer> getTotalDeathsPerPlayer()
     {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-
-        String query = "SELECT victim, count(victim) AS kills FROM `sc_kills` WHERE attacker = '" + playerName + "' AND count(victim) > " + min + " GROUP BY victim ORDER BY victim;";
-        ResultSet res = core.select(query);
+        return repository.getTotalDeathsPerPlayer();
+    }
 
-        if (res != null)
+    /**
+     * Run a query on the query threads, its result is handed to the callback on the main thread
+     *
+     * @param query
+     * @param callback may be null when only the future is wanted
+     * @return the future result, get() blocks so it must not be called on the main thread
+     */
+    private <T> Future<T> query(final Callable<T> query, final QueryCallback<T> callback)
+    {
+        return queries.submit(new Callable<T>()
         {
-            try
+            public T call() throws Exception
             {
-                while (res.next())
+                final T result;
+
+                try
                 {
-                    try
-                    {
-                        String victim = res.getString("victim");
-                        int kills = res.getInt("kills");
-                        out.put(victim, kills);
-                    }
-                    catch (Exception ex)
+                    result = query.call();
+                }
+                catch (Exception ex)
+                {
+                    SimpleClans.getLogger().log(Level.SEVERE, "Query failed", ex);
+                    throw ex;
+                }
+
+                if (callback != null)
+                {
+                    plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable()
                     {
-                        SimpleClans.getLogger().info(ex.getMessage());
-                    }
+                        public void run()
+                        {
+                            callback.done(result);
+                        }
+                    });
                 }
-            }
-            catch (SQLException ex)
-            {
-                Logger.getLogger(StorageManager.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
 
-        return out;
+                return result;
+            }
+        });
     }
 
     /**
-     * Returns a map of tag->count of all kills that specific player did
+     * Returns a map of victim->count of all kills that specific player did, without blocking the caller
      *
      * @param playerName
+     * @param min        cuts off players who do not meet the minimum requirement of kills
+     * @param callback   called on the main thread with the result
      * @return
      */
-    public HashMap<String, Integer> getKillsPerClan(String playerName)
+    public Future<HashMap<String, Integer>> getKillsPerPlayer(final String playerName, final int min, QueryCallback<HashMap<String, Integer>> callback)
     {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-
-        String query = "SELECT victim_tag, count(victim_tag) AS kills FROM `sc_kills` WHERE attacker = '" + playerName + "' GROUP BY victim_tag ORDER BY victim_tag;";
-        ResultSet res = core.select(query);
-
-        if (res != null)
+        return query(new Callable<HashMap<String, Integer>>()
         {
-            try
-            {
-                while (res.next())
-                {
-                    try
-                    {
-                        String victimTag = res.getString("victim_tag");
-                        int kills = res.getInt("kills");
-                        out.put(victimTag, kills);
-                    }
-                    catch (Exception ex)
-                    {
-                        SimpleClans.getLogger().info(ex.getMessage());
-                    }
-                }
-            }
-            catch (SQLException ex)
+            public HashMap<String, Integer> call()
             {
-                Logger.getLogger(StorageManager.class.getName()).log(Level.SEVERE, null, ex);
+                return repository.getKillsPerPlayer(playerName, min);
             }
-        }
-
-        return out;
+        }, callback);
     }
 
     /**
-     * Returns a map of tag->count of all deaths by each clan
+     * Returns a map of tag->count of all kills that specific player did, without blocking the caller
      *
+     * @param playerName
+     * @param callback   called on the main thread with the result
      * @return
      */
-    public HashMap<String, Integer> getTotalDeathsPerClan()
+    public Future<HashMap<String, Integer>> getKillsPerClan(final String playerName, QueryCallback<HashMap<String, Integer>> callback)
     {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-
-        String query = "SELECT victim_tag, count(victim_tag) AS kills FROM `sc_kills` GROUP BY victim_tag ORDER BY victim_tag;";
-        ResultSet res = core.select(query);
-
-        if (res != null)
+        return query(new Callable<HashMap<String, Integer>>()
         {
-            try
-            {
-                while (res.next())
-                {
-                    try
-                    {
-                        String victimTag = res.getString("victim_tag");
-                        int kills = res.getInt("kills");
-                        out.put(victimTag, kills);
-                    }
-                    catch (Exception ex)
-                    {
-                        SimpleClans.getLogger().info(ex.getMessage());
-                    }
-                }
-            }
-            catch (SQLException ex)
+            public HashMap<String, Integer> call()
             {
-                Logger.getLogger(StorageManager.class.getName()).log(Level.SEVERE, null, ex);
+                return repository.getKillsPerClan(playerName);
             }
-        }
-
-        return out;
+        }, callback);
     }
 
     /**
-     * Returns a map of tag->count of all kills by each clan
+     * Returns a map of tag->count of all deaths by each clan, without blocking the caller
      *
+     * @param callback called on the main thread with the result
      * @return
      */
-    public HashMap<String, Integer> getTotalKillsPerClan()
+    public Future<HashMap<String, Integer>> getTotalDeathsPerClan(QueryCallback<HashMap<String, Integer>> callback)
     {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-
-        String query = "SELECT attacker_tag, count(attacker_tag) AS kills FROM `sc_kills` GROUP BY attacker_tag ORDER BY attacker_tag;";
-        ResultSet res = core.select(query);
-
-        if (res != null)
+        return query(new Callable<HashMap<String, Integer>>()
         {
-            try
-            {
-                while (res.next())
-                {
-                    try
-                    {
-                        String victimTag = res.getString("attacker_tag");
-                        int kills = res.getInt("kills");
-                        out.put(victimTag, kills);
-                    }
-                    catch (Exception ex)
-                    {
-                        SimpleClans.getLogger().info(ex.getMessage());
-                    }
-                }
-            }
-            catch (SQLException ex)
+            public HashMap<String, Integer> call()
             {
-                Logger.getLogger(StorageManager.class.getName()).log(Level.SEVERE, null, ex);
+                return repository.getTotalDeathsPerClan();
             }
-        }
-
-        return out;
+        }, callback);
     }
 
     /**
-     * Returns a map of playerName->count of all kills by each player
+     * Returns a map of tag->count of all kills by each clan, without blocking the caller
      *
+     * @param callback called on the main thread with the result
      * @return
      */
-    public HashMap<String, Integer> getTotalKillsPerPlayer()
+    public Future<HashMap<String, Integer>> getTotalKillsPerClan(QueryCallback<HashMap<String, Integer>> callback)
     {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-
-        String query = "SELECT attacker, count(attacker) AS kills FROM `sc_kills` GROUP BY attacker ORDER BY attacker;";
-        ResultSet res = core.select(query);
-
-        if (res != null)
+        return query(new Callable<HashMap<String, Integer>>()
         {
-            try
-            {
-                while (res.next())
-                {
-                    try
-                    {
-                        String attacker = res.getString("attacker");
-                        int kills = res.getInt("kills");
-                        out.put(attacker, kills);
-                    }
-                    catch (Exception ex)
-                    {
-                        SimpleClans.getLogger().info(ex.getMessage());
-                    }
-                }
-            }
-            catch (SQLException ex)
+            public HashMap<String, Integer> call()
             {
-                Logger.getLogger(StorageManager.class.getName()).log(Level.SEVERE, null, ex);
+                return repository.getTotalKillsPerClan();
             }
-        }
-
-        return out;
+        }, callback);
     }
 
     /**
-     * Returns a map of playerName->count of all kills by each player
+     * Returns a map of playerName->count of all kills by each player, without blocking the caller
      *
+     * @param callback called on the main thread with the result
      * @return
      */
-    public HashMap<String, Integer> getTotalDeathsPerPlayer()
+    public Future<HashMap<String, Integer>> getTotalKillsPerPlayer(QueryCallback<HashMap<String, Integer>> callback)
     {
-        HashMap<String, Integer> out = new HashMap<String, Integer>();
-
-        String query = "SELECT victim, count(victim) AS kills FROM `sc_kills` GROUP BY victim ORDER BY victim;";
-        ResultSet res = core.select(query);
-
-        if (res != null)
+        return query(new Callable<HashMap<String, Integer>>()
         {
-            try
+            public HashMap<String, Integer> call()
             {
-                while (res.next())
-                {
-                    try
-                    {
-                        String victim = res.getString("victim");
-                        int kills = res.getInt("kills");
-                        out.put(victim, kills);
-                    }
-                    catch (Exception ex)
-                    {
-                        SimpleClans.getLogger().info(ex.getMessage());
-                    }
-                }
+                return repository.getTotalKillsPerPlayer();
             }
-            catch (SQLException ex)
+        }, callback);
+    }
+
+    /**
+     * Returns a map of playerName->count of all deaths by each player, without blocking the caller
+     *
+     * @param callback called on the main thread with the result
+     * @return
+     */
+    public Future<HashMap<String, Integer>> getTotalDeathsPerPlayer(QueryCallback<HashMap<String, Integer>> callback)
+    {
+        return query(new Callable<HashMap<String, Integer>>()
+        {
+            public HashMap<String, Integer> call()
             {
-                Logger.getLogger(StorageManager.class.getName()).log(Level.SEVERE, null, ex);
+                return repository.getTotalDeathsPerPlayer();
             }
-        }
-
-        return out;
+        }, callback);
     }
 }
@@ -0,0 +1,97 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An ordered list of parameterized statements to be written in a single transaction.
+ * Consecutive statements with the same query are sent to the database as one JDBC batch.
+ *
+ * @author phaed
+ */
+public class Batch
+{
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int size;
+
+    /**
+     * Add a statement to the end of the batch
+     *
+     * @param query
+     * @param params
+     * @return this
+     */
+    public Batch add(String query, Object... params)
+    {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (last == null || !last.query.equals(query))
+        {
+            last = new Segment(query);
+            segments.add(last);
+        }
+
+        last.rows.add(params);
+        size++;
+        return this;
+    }
+
+    /**
+     * Add one statement per row of parameters to the end of the batch
+     *
+     * @param query
+     * @param rows
+     * @return this
+     */
+    public Batch addAll(String query, List<Object[]> rows)
+    {
+        for (Object[] row : rows)
+        {
+            add(query, row);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the number of statements in the batch
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return whether the batch has no statements
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Send all statements through the statement cache, in order, the caller is responsible for the transaction
+     *
+     * @param statements
+     * @throws SQLException
+     */
+    void execute(StatementCache statements) throws SQLException
+    {
+        for (Segment segment : segments)
+        {
+            statements.prepareBatch(segment.query, segment.rows).executeBatch();
+        }
+    }
+
+    private static class Segment
+    {
+        private final String query;
+        private final List<Object[]> rows = new ArrayList<Object[]>();
+
+        private Segment(String query)
+        {
+            this.query = query;
+        }
+    }
+}
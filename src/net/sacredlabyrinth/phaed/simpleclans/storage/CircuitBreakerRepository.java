@@ -0,0 +1,846 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Stops using a database that cannot be reached. After a number of statements in a row fail to reach it the breaker opens:
+ * reads return nothing and writes are appended to a bounded spool file instead. The connection is probed in the background
+ * and once it is back the spool is replayed in order and the breaker closes again.
+ * Writes left in the spool on shutdown are replayed on the next start.
+ *
+ * @author phaed
+ */
+public class CircuitBreakerRepository implements StorageRepository
+{
+    /**
+     * CLOSED while the database is used, OPEN while it is not, HALF_OPEN while it is being probed and the spool replayed
+     */
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Told when the breaker opens or closes, from whichever thread noticed
+     */
+    public interface Listener
+    {
+        void stateChanged(State state, int spooled, int dropped);
+    }
+
+    private final StorageRepository repository;
+    private final DBCore core;
+    private final File spool;
+    private final int threshold;
+    private final long probeInterval;
+    private final long maxSpoolBytes;
+    private final Listener listener;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile int spooled;
+    private volatile int dropped;
+    private long spoolBytes;
+    private DataOutputStream spoolOut;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param repository the repository backed by the database
+     * @param core the database, to find out whether statements reached it
+     * @param spool the file writes are kept in while the database cannot be reached
+     * @param threshold how many statements in a row may fail to reach the database before the breaker opens
+     * @param probeInterval how often the database is probed while the breaker is open, in milliseconds
+     * @param maxSpoolBytes the largest the spool may grow, later writes are dropped
+     * @param listener
+     */
+    public CircuitBreakerRepository(StorageRepository repository, DBCore core, File spool, int threshold, long probeInterval, long maxSpoolBytes, Listener listener)
+    {
+        this.repository = repository;
+        this.core = core;
+        this.spool = spool;
+        this.threshold = Math.max(1, threshold);
+        this.probeInterval = Math.max(1000, probeInterval);
+        this.maxSpoolBytes = maxSpoolBytes;
+        this.listener = listener;
+    }
+
+    public boolean open()
+    {
+        if (!repository.open())
+        {
+            return false;
+        }
+
+        synchronized (this)
+        {
+            if (spool.exists())
+            {
+                List<byte[]> entries = readSpool();
+                SimpleClans.log(MessageFormat.format("Writing {0} changes saved while the database could not be reached", entries.size()));
+
+                if (!replay(entries))
+                {
+                    state.set(State.OPEN);
+                }
+            }
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "SimpleClans storage probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                probe();
+            }
+        }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+
+        return true;
+    }
+
+    public void close()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+
+        synchronized (this)
+        {
+            closeSpool();
+        }
+
+        repository.close();
+    }
+
+    /**
+     * @return the state of the breaker
+     */
+    public State getState()
+    {
+        return state.get();
+    }
+
+    /**
+     * @return how many writes are waiting in the spool
+     */
+    public int getSpooled()
+    {
+        return spooled;
+    }
+
+    /**
+     * @return how many writes were dropped because the spool was full, since the breaker last opened
+     */
+    public int getDropped()
+    {
+        return dropped;
+    }
+
+    public void transaction(Runnable work)
+    {
+        if (state.get() == State.CLOSED)
+        {
+            repository.transaction(work);
+        }
+        else
+        {
+            work.run();
+        }
+    }
+
+    public void readClans(RowHandler handler)
+    {
+        if (state.get() == State.CLOSED)
+        {
+            repository.readClans(handler);
+            reached();
+        }
+    }
+
+    public void readClansChangedSince(long time, RowHandler handler)
+    {
+        if (state.get() == State.CLOSED)
+        {
+            repository.readClansChangedSince(time, handler);
+            reached();
+        }
+    }
+
+    public void readClanLists(RowHandler handler)
+    {
+        if (state.get() == State.CLOSED)
+        {
+            repository.readClanLists(handler);
+            reached();
+        }
+    }
+
+    public int countClans()
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return -1;
+        }
+
+        int count = repository.countClans();
+        return reached() ? count : -1;
+    }
+
+    public void insertClan(Map<String, Object> columns)
+    {
+        write("insertClan", columns);
+    }
+
+    public void updateClan(String tag, Map<String, Object> changed)
+    {
+        write("updateClan", tag, changed);
+    }
+
+    public void deleteClans(List<String> tags)
+    {
+        write("deleteClans", tags);
+    }
+
+    public void insertRelation(String tag, String relation, String otherTag)
+    {
+        write("insertRelation", tag, relation, otherTag);
+    }
+
+    public void deleteRelation(String tag, String relation, String otherTag)
+    {
+        write("deleteRelation", tag, relation, otherTag);
+    }
+
+    public void insertBb(String tag, String msg, int keep)
+    {
+        write("insertBb", tag, msg, keep);
+    }
+
+    public void readClanPlayers(boolean membersOnly, RowHandler handler)
+    {
+        if (state.get() == State.CLOSED)
+        {
+            repository.readClanPlayers(membersOnly, handler);
+            reached();
+        }
+    }
+
+    public void readClanPlayersChangedSince(long time, RowHandler handler)
+    {
+        if (state.get() == State.CLOSED)
+        {
+            repository.readClanPlayersChangedSince(time, handler);
+            reached();
+        }
+    }
+
+    public long readLastChange()
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return -1;
+        }
+
+        long time = repository.readLastChange();
+        return reached() ? time : -1;
+    }
+
+    public int countClanPlayers(boolean membersOnly)
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return -1;
+        }
+
+        int count = repository.countClanPlayers(membersOnly);
+        return reached() ? count : -1;
+    }
+
+    public Object[] readClanPlayer(String playerName)
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return UNREADABLE;
+        }
+
+        Object[] row = repository.readClanPlayer(playerName);
+        return reached() ? row : UNREADABLE;
+    }
+
+    public void insertClanPlayer(Map<String, Object> columns)
+    {
+        write("insertClanPlayer", columns);
+    }
+
+    public void updateClanPlayer(String playerName, Map<String, Object> changed)
+    {
+        write("updateClanPlayer", playerName, changed);
+    }
+
+    public void deleteClanPlayers(List<String> playerNames)
+    {
+        write("deleteClanPlayers", playerNames);
+    }
+
+    public List<Object[]> findInactiveClans(long cutoff, long afterTime, String afterTag, int limit)
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new ArrayList<Object[]>();
+        }
+
+        List<Object[]> rows = repository.findInactiveClans(cutoff, afterTime, afterTag, limit);
+        reached();
+        return rows;
+    }
+
+    public List<Object[]> findInactiveClanPlayers(long cutoff, long afterTime, String afterName, int limit)
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new ArrayList<Object[]>();
+        }
+
+        List<Object[]> rows = repository.findInactiveClanPlayers(cutoff, afterTime, afterName, limit);
+        reached();
+        return rows;
+    }
+
+    public void insertKills(List<Object[]> kills)
+    {
+        write("insertKills", kills);
+    }
+
+    public void deleteKills(List<String> attackers)
+    {
+        write("deleteKills", attackers);
+    }
+
+    public HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new HashMap<String, Integer>();
+        }
+
+        HashMap<String, Integer> out = repository.getKillsPerPlayer(playerName, min);
+        reached();
+        return out;
+    }
+
+    public HashMap<String, Integer> getKillsPerClan(String playerName)
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new HashMap<String, Integer>();
+        }
+
+        HashMap<String, Integer> out = repository.getKillsPerClan(playerName);
+        reached();
+        return out;
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerClan()
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new HashMap<String, Integer>();
+        }
+
+        HashMap<String, Integer> out = repository.getTotalDeathsPerClan();
+        reached();
+        return out;
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerClan()
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new HashMap<String, Integer>();
+        }
+
+        HashMap<String, Integer> out = repository.getTotalKillsPerClan();
+        reached();
+        return out;
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerPlayer()
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new HashMap<String, Integer>();
+        }
+
+        HashMap<String, Integer> out = repository.getTotalKillsPerPlayer();
+        reached();
+        return out;
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerPlayer()
+    {
+        if (state.get() != State.CLOSED)
+        {
+            return new HashMap<String, Integer>();
+        }
+
+        HashMap<String, Integer> out = repository.getTotalDeathsPerPlayer();
+        reached();
+        return out;
+    }
+
+    /**
+     * Run a write against the database, or spool it when the breaker is open or the write did not reach the database.
+     * While earlier writes are still spooled they are replayed first, so a write never overtakes one spooled before it.
+     * A write that was sent before the connection was lost is not spooled, it may have been applied and must not be applied twice.
+     */
+    private synchronized void write(String method, Object... args)
+    {
+        if (state.get() == State.CLOSED && drain())
+        {
+            apply(method, args);
+            boolean sent = core.isLostAfterSend();
+
+            if (reached())
+            {
+                return;
+            }
+
+            if (sent)
+            {
+                unsure(method);
+                return;
+            }
+        }
+
+        spool(method, args);
+    }
+
+    private void unsure(String method)
+    {
+        SimpleClans.getLogger().severe("The database connection was lost after a change was sent, it may not have been saved and is not written again: " + method);
+    }
+
+    /**
+     * Replay the writes spooled while the breaker stayed closed
+     *
+     * @return whether the spool is empty
+     */
+    private boolean drain()
+    {
+        if (spooled == 0)
+        {
+            return true;
+        }
+
+        closeSpool();
+
+        if (replay(readSpool()))
+        {
+            failures.set(0);
+            return true;
+        }
+
+        failed();
+        return false;
+    }
+
+    /**
+     * Check whether the statements just run on this thread reached the database, opening the breaker after enough failures in a row
+     *
+     * @return whether they did
+     */
+    private boolean reached()
+    {
+        if (!core.takeConnectionLost())
+        {
+            failures.set(0);
+            return true;
+        }
+
+        failed();
+        return false;
+    }
+
+    /**
+     * Count a failure to reach the database, opening the breaker once there were enough in a row
+     */
+    private void failed()
+    {
+        if (failures.incrementAndGet() >= threshold && state.compareAndSet(State.CLOSED, State.OPEN))
+        {
+            dropped = 0;
+            SimpleClans.getLogger().severe(MessageFormat.format("The database could not be reached {0} times in a row, saving changes locally until it is back", threshold));
+            listener.stateChanged(State.OPEN, spooled, dropped);
+        }
+    }
+
+    /**
+     * While the breaker is open check whether the database can be reached again, and if so replay the spool and close the breaker
+     */
+    private synchronized void probe()
+    {
+        if (!state.compareAndSet(State.OPEN, State.HALF_OPEN))
+        {
+            return;
+        }
+
+        if (core.checkConnection())
+        {
+            closeSpool();
+            int replayed = spooled;
+
+            if (replay(readSpool()))
+            {
+                failures.set(0);
+                state.set(State.CLOSED);
+                SimpleClans.log(MessageFormat.format("The database can be reached again, wrote {0} changes saved locally", replayed));
+                listener.stateChanged(State.CLOSED, replayed, dropped);
+                return;
+            }
+        }
+
+        core.takeConnectionLost();
+        state.set(State.OPEN);
+    }
+
+    /**
+     * Apply spooled writes in order, keeping those not applied in the spool when the database is lost again
+     *
+     * @return whether all were applied
+     */
+    private boolean replay(List<byte[]> entries)
+    {
+        core.takeConnectionLost();
+
+        for (int i = 0; i < entries.size(); i++)
+        {
+            String method;
+
+            try
+            {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entries.get(i)));
+                method = in.readUTF();
+                apply(method, (Object[]) in.readObject());
+            }
+            catch (IOException ex)
+            {
+                SimpleClans.getLogger().log(Level.SEVERE, "Skipping an unreadable change in the storage spool", ex);
+                continue;
+            }
+            catch (ClassNotFoundException ex)
+            {
+                SimpleClans.getLogger().log(Level.SEVERE, "Skipping an unreadable change in the storage spool", ex);
+                continue;
+            }
+
+            boolean sent = core.isLostAfterSend();
+
+            if (core.takeConnectionLost())
+            {
+                if (sent)
+                {
+                    unsure(method);
+                    rewriteSpool(entries.subList(i + 1, entries.size()));
+                }
+                else
+                {
+                    // the failed write is kept, it did not reach the database
+                    rewriteSpool(entries.subList(i, entries.size()));
+                }
+
+                return false;
+            }
+        }
+
+        if (spool.exists() && !spool.delete())
+        {
+            SimpleClans.getLogger().severe("Could not remove the storage spool " + spool.getPath() + ", its changes will be written again on the next start");
+        }
+
+        spooled = 0;
+        spoolBytes = 0;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void apply(String method, Object[] args)
+    {
+        if (method.equals("insertClan"))
+        {
+            repository.insertClan((Map<String, Object>) args[0]);
+        }
+        else if (method.equals("updateClan"))
+        {
+            repository.updateClan((String) args[0], (Map<String, Object>) args[1]);
+        }
+        else if (method.equals("deleteClans"))
+        {
+            repository.deleteClans((List<String>) args[0]);
+        }
+        else if (method.equals("insertRelation"))
+        {
+            repository.insertRelation((String) args[0], (String) args[1], (String) args[2]);
+        }
+        else if (method.equals("deleteRelation"))
+        {
+            repository.deleteRelation((String) args[0], (String) args[1], (String) args[2]);
+        }
+        else if (method.equals("insertBb"))
+        {
+            repository.insertBb((String) args[0], (String) args[1], (Integer) args[2]);
+        }
+        else if (method.equals("insertClanPlayer"))
+        {
+            repository.insertClanPlayer((Map<String, Object>) args[0]);
+        }
+        else if (method.equals("updateClanPlayer"))
+        {
+            repository.updateClanPlayer((String) args[0], (Map<String, Object>) args[1]);
+        }
+        else if (method.equals("deleteClanPlayers"))
+        {
+            repository.deleteClanPlayers((List<String>) args[0]);
+        }
+        else if (method.equals("insertKills"))
+        {
+            repository.insertKills((List<Object[]>) args[0]);
+        }
+        else if (method.equals("deleteKills"))
+        {
+            repository.deleteKills((List<String>) args[0]);
+        }
+        else
+        {
+            SimpleClans.getLogger().severe("Skipping an unknown change in the storage spool: " + method);
+        }
+    }
+
+    /**
+     * Append a write to the spool, dropping it when the spool is full
+     */
+    private void spool(String method, Object[] args)
+    {
+        try
+        {
+            byte[] entry = encode(method, args);
+
+            if (spoolBytes + entry.length + 8 > maxSpoolBytes)
+            {
+                if (dropped++ == 0)
+                {
+                    SimpleClans.getLogger().severe("The storage spool is full, further changes are lost until the database can be reached");
+                }
+
+                return;
+            }
+
+            if (spoolOut == null)
+            {
+                spoolBytes = spool.length();
+                spoolOut = new DataOutputStream(new FileOutputStream(spool, true));
+            }
+
+            writeEntry(spoolOut, entry);
+            spoolOut.flush();
+            spoolBytes += entry.length + 8;
+            spooled++;
+        }
+        catch (IOException ex)
+        {
+            dropped++;
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not write to the storage spool", ex);
+        }
+    }
+
+    /**
+     * Lists and maps are copied, the ones passed in may be views that cannot be serialized
+     */
+    private byte[] encode(String method, Object[] args) throws IOException
+    {
+        Object[] copy = new Object[args.length];
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i] instanceof List)
+            {
+                copy[i] = new ArrayList<Object>((List<?>) args[i]);
+            }
+            else if (args[i] instanceof Map)
+            {
+                copy[i] = new LinkedHashMap<Object, Object>((Map<?, ?>) args[i]);
+            }
+            else
+            {
+                copy[i] = args[i];
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeUTF(method);
+        out.writeObject(copy);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void writeEntry(DataOutputStream out, byte[] entry) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(entry);
+        out.writeInt(entry.length);
+        out.write(entry);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Read the spooled writes, up to the first one left half written by a crash
+     */
+    private List<byte[]> readSpool()
+    {
+        List<byte[]> entries = new ArrayList<byte[]>();
+
+        if (!spool.exists())
+        {
+            return entries;
+        }
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool)));
+
+            try
+            {
+                while (true)
+                {
+                    int length = in.readInt();
+
+                    if (length <= 0 || length > maxSpoolBytes)
+                    {
+                        break;
+                    }
+
+                    byte[] entry = new byte[length];
+                    in.readFully(entry);
+                    CRC32 crc = new CRC32();
+                    crc.update(entry);
+
+                    if (in.readInt() != (int) crc.getValue())
+                    {
+                        break;
+                    }
+
+                    entries.add(entry);
+                }
+            }
+            catch (EOFException ex)
+            {
+                // end of the spool
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read the storage spool", ex);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Replace the spool with the given writes
+     */
+    private void rewriteSpool(List<byte[]> entries)
+    {
+        File temp = new File(spool.getPath() + ".tmp");
+        long bytes = 0;
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+
+            try
+            {
+                for (byte[] entry : entries)
+                {
+                    writeEntry(out, entry);
+                    bytes += entry.length + 8;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if ((!spool.exists() || spool.delete()) && temp.renameTo(spool))
+            {
+                spooled = entries.size();
+                spoolBytes = bytes;
+                return;
+            }
+
+            SimpleClans.getLogger().severe("Could not replace the storage spool " + spool.getPath());
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not rewrite the storage spool", ex);
+        }
+    }
+
+    private void closeSpool()
+    {
+        if (spoolOut == null)
+        {
+            return;
+        }
+
+        try
+        {
+            spoolOut.close();
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not close the storage spool", ex);
+        }
+
+        spoolOut = null;
+    }
+}
@@ -0,0 +1,242 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Small pool of database connections. Connections are validated when they are borrowed after sitting idle,
+ * closed once they have been idle for too long, and replaced whenever they turn out to be dead.
+ *
+ * @author phaed
+ */
+public class ConnectionPool
+{
+    private static final long VALIDATION_WINDOW = 500;
+    private static final int VALIDATION_TIMEOUT_SECS = 2;
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxSize;
+    private final long maxWait;
+    private final long idleTimeout;
+    private int open;
+    private boolean closed;
+
+    /**
+     * @param url
+     * @param username
+     * @param password
+     * @param maxSize the most connections open at once
+     * @param maxWait how long to wait for a free connection, in milliseconds
+     * @param idleTimeout how long a connection may sit unused before it is closed, in milliseconds
+     */
+    public ConnectionPool(String url, String username, String password, int maxSize, long maxWait, long idleTimeout)
+    {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxWait = maxWait;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Take a live connection from the pool, opening a new one if none is idle and the pool is not full.
+     * The connection must be handed back with release().
+     *
+     * @return
+     * @throws SQLException if no connection could be opened or none became free in time
+     */
+    public PooledConnection borrow() throws SQLException
+    {
+        long deadline = System.currentTimeMillis() + maxWait;
+
+        while (true)
+        {
+            PooledConnection conn = null;
+
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    throw new SQLException("Connection pool is closed");
+                }
+
+                evictIdle();
+
+                if (!idle.isEmpty())
+                {
+                    conn = idle.removeFirst();
+                }
+                else if (open < maxSize)
+                {
+                    open++;
+                }
+                else
+                {
+                    long left = deadline - System.currentTimeMillis();
+
+                    if (left <= 0)
+                    {
+                        throw new SQLException("Timed out waiting for a database connection");
+                    }
+
+                    try
+                    {
+                        wait(left);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection");
+                    }
+
+                    continue;
+                }
+            }
+
+            if (conn == null)
+            {
+                return connect();
+            }
+
+            if (isAlive(conn))
+            {
+                return conn;
+            }
+
+            discard(conn);
+        }
+    }
+
+    /**
+     * Hand a connection back to the pool, broken connections are closed
+     *
+     * @param conn
+     */
+    public void release(PooledConnection conn)
+    {
+        synchronized (this)
+        {
+            if (!closed && !conn.isBroken())
+            {
+                conn.touch();
+                idle.addFirst(conn);
+                notifyAll();
+                return;
+            }
+        }
+
+        discard(conn);
+    }
+
+    /**
+     * Close all idle connections, connections still borrowed are closed when they are released
+     */
+    public void close()
+    {
+        LinkedList<PooledConnection> closing;
+
+        synchronized (this)
+        {
+            closed = true;
+            closing = new LinkedList<PooledConnection>(idle);
+            idle.clear();
+            open -= closing.size();
+            notifyAll();
+        }
+
+        for (PooledConnection conn : closing)
+        {
+            conn.destroy();
+        }
+    }
+
+    /**
+     * @return the number of open connections
+     */
+    public synchronized int getOpen()
+    {
+        return open;
+    }
+
+    /**
+     * @return the number of connections waiting to be borrowed
+     */
+    public synchronized int getIdle()
+    {
+        return idle.size();
+    }
+
+    private PooledConnection connect() throws SQLException
+    {
+        try
+        {
+            return new PooledConnection(this, DriverManager.getConnection(url, username, password));
+        }
+        catch (SQLException ex)
+        {
+            synchronized (this)
+            {
+                open--;
+                notifyAll();
+            }
+
+            throw ex;
+        }
+    }
+
+    private boolean isAlive(PooledConnection conn)
+    {
+        if (System.currentTimeMillis() - conn.getLastUsed() < VALIDATION_WINDOW)
+        {
+            return true;
+        }
+
+        try
+        {
+            return conn.getConnection().isValid(VALIDATION_TIMEOUT_SECS);
+        }
+        catch (SQLException ex)
+        {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection conn)
+    {
+        conn.destroy();
+
+        synchronized (this)
+        {
+            open--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close connections that have been idle for longer than the idle timeout, the most recently used are kept at the front
+     */
+    private void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+
+        while (it.hasNext())
+        {
+            PooledConnection conn = it.next();
+
+            if (now - conn.getLastUsed() <= idleTimeout)
+            {
+                break;
+            }
+
+            it.remove();
+            open--;
+            conn.destroy();
+        }
+    }
+}
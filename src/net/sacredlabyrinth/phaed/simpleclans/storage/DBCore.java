@@ -49,6 +49,56 @@ public interface DBCore
      */
     public void delete(String query);
 
+    /**
+     * Execute a select statement with bound parameters
+     * @param query
+     * @param params
+     * @return
+     */
+    public ResultSet select(String query, Object... params);
+
+    /**
+     * Execute a select statement whose rows are fetched as the result set is read instead of all at once
+     * @param query
+     * @param fetchSize how many rows to fetch per round trip
+     * @return
+     */
+    public ResultSet stream(String query, int fetchSize);
+
+    /**
+     * Execute an insert statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public void insert(String query, Object... params);
+
+    /**
+     * Execute an update statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public void update(String query, Object... params);
+
+    /**
+     * Execute a delete statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public void delete(String query, Object... params);
+
+    /**
+     * Execute all statements of a batch, in order, in one transaction
+     * @param batch
+     * @return whether the batch was committed, false if it failed and was rolled back
+     */
+    public boolean executeBatch(Batch batch);
+
+    /**
+     * Run a group of writes in one transaction, so they share a single commit
+     * @param work
+     */
+    public void transaction(Runnable work);
+
     /**
      * Execute a statement
      * @param query
@@ -63,4 +113,14 @@ public interface DBCore
      */
     public Boolean existsTable(String table);
 
+    /**
+     * @return whether a statement run on this thread since the last call could not reach the database
+     */
+    public boolean takeConnectionLost();
+
+    /**
+     * Cleared by takeConnectionLost, so it must be checked before it
+     * @return whether the connection was lost after a write on this thread had been sent, the write may have been applied
+     */
+    public boolean isLostAfterSend();
 }
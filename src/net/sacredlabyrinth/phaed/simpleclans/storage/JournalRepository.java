@@ -0,0 +1,210 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps kills in a memory-mapped kill journal, with the counts folded in memory by a KillAggregator,
+ * and everything else in the repository it wraps
+ *
+ * @author phaed
+ */
+public class JournalRepository implements StorageRepository
+{
+    private final StorageRepository repository;
+    private final KillJournal journal;
+    private final KillAggregator aggregator;
+
+    /**
+     * @param repository where clans and clan players are kept
+     * @param dir the directory of the journal
+     * @param segmentBytes the size of each journal segment file
+     */
+    public JournalRepository(StorageRepository repository, File dir, int segmentBytes)
+    {
+        this.repository = repository;
+        this.journal = new KillJournal(dir, segmentBytes);
+        this.aggregator = new KillAggregator(journal, new File(dir, "counts.dat"));
+    }
+
+    public boolean open()
+    {
+        if (!repository.open())
+        {
+            return false;
+        }
+
+        long folded = aggregator.load();
+
+        if (!journal.open(folded))
+        {
+            return false;
+        }
+
+        if (journal.getWritten() < folded)
+        {
+            // the checkpoint is ahead of the journal, it cannot be trusted
+            aggregator.reset();
+        }
+
+        aggregator.recover();
+        aggregator.start();
+        return true;
+    }
+
+    public void close()
+    {
+        aggregator.stop();
+        journal.close();
+        repository.close();
+    }
+
+    public void transaction(Runnable work)
+    {
+        repository.transaction(work);
+    }
+
+    public void readClans(RowHandler handler)
+    {
+        repository.readClans(handler);
+    }
+
+    public void readClansChangedSince(long time, RowHandler handler)
+    {
+        repository.readClansChangedSince(time, handler);
+    }
+
+    public void readClanLists(RowHandler handler)
+    {
+        repository.readClanLists(handler);
+    }
+
+    public int countClans()
+    {
+        return repository.countClans();
+    }
+
+    public void insertClan(Map<String, Object> columns)
+    {
+        repository.insertClan(columns);
+    }
+
+    public void updateClan(String tag, Map<String, Object> changed)
+    {
+        repository.updateClan(tag, changed);
+    }
+
+    public void deleteClans(List<String> tags)
+    {
+        repository.deleteClans(tags);
+    }
+
+    public void insertRelation(String tag, String relation, String otherTag)
+    {
+        repository.insertRelation(tag, relation, otherTag);
+    }
+
+    public void deleteRelation(String tag, String relation, String otherTag)
+    {
+        repository.deleteRelation(tag, relation, otherTag);
+    }
+
+    public void insertBb(String tag, String msg, int keep)
+    {
+        repository.insertBb(tag, msg, keep);
+    }
+
+    public void readClanPlayers(boolean membersOnly, RowHandler handler)
+    {
+        repository.readClanPlayers(membersOnly, handler);
+    }
+
+    public void readClanPlayersChangedSince(long time, RowHandler handler)
+    {
+        repository.readClanPlayersChangedSince(time, handler);
+    }
+
+    public long readLastChange()
+    {
+        return repository.readLastChange();
+    }
+
+    public int countClanPlayers(boolean membersOnly)
+    {
+        return repository.countClanPlayers(membersOnly);
+    }
+
+    public Object[] readClanPlayer(String playerName)
+    {
+        return repository.readClanPlayer(playerName);
+    }
+
+    public void insertClanPlayer(Map<String, Object> columns)
+    {
+        repository.insertClanPlayer(columns);
+    }
+
+    public void updateClanPlayer(String playerName, Map<String, Object> changed)
+    {
+        repository.updateClanPlayer(playerName, changed);
+    }
+
+    public void deleteClanPlayers(List<String> playerNames)
+    {
+        repository.deleteClanPlayers(playerNames);
+        journal.appendDelete(playerNames);
+    }
+
+    public List<Object[]> findInactiveClans(long cutoff, long afterTime, String afterTag, int limit)
+    {
+        return repository.findInactiveClans(cutoff, afterTime, afterTag, limit);
+    }
+
+    public List<Object[]> findInactiveClanPlayers(long cutoff, long afterTime, String afterName, int limit)
+    {
+        return repository.findInactiveClanPlayers(cutoff, afterTime, afterName, limit);
+    }
+
+    public void insertKills(List<Object[]> rows)
+    {
+        journal.append(rows);
+    }
+
+    public void deleteKills(List<String> attackers)
+    {
+        repository.deleteKills(attackers);
+        journal.appendDelete(attackers);
+    }
+
+    public HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
+    {
+        return aggregator.getKillsPerPlayer(playerName, min);
+    }
+
+    public HashMap<String, Integer> getKillsPerClan(String playerName)
+    {
+        return aggregator.getKillsPerClan(playerName);
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerClan()
+    {
+        return aggregator.getClanTotals(false);
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerClan()
+    {
+        return aggregator.getClanTotals(true);
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerPlayer()
+    {
+        return aggregator.getPlayerTotals(true);
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerPlayer()
+    {
+        return aggregator.getPlayerTotals(false);
+    }
+}
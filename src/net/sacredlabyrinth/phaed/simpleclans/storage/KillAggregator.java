@@ -0,0 +1,393 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Folds the records of a kill journal into per-player and per-clan kill counts, in the background and before every query.
+ * On a clean shutdown the counts are saved in a checkpoint together with how far the journal was folded,
+ * without one, after a crash, they are rebuilt from the whole journal.
+ *
+ * @author phaed
+ */
+public class KillAggregator
+{
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final long FOLD_INTERVAL_MS = 1000;
+    private final KillJournal journal;
+    private final File checkpoint;
+
+    /**
+     * attacker -> victim -> kills
+     */
+    private final HashMap<Integer, HashMap<Integer, Integer>> victims = new HashMap<Integer, HashMap<Integer, Integer>>();
+
+    /**
+     * attacker -> attacker clan and victim clan -> kills
+     */
+    private final HashMap<Integer, HashMap<Long, Integer>> clans = new HashMap<Integer, HashMap<Long, Integer>>();
+    private long folded;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param journal
+     * @param checkpoint the file the counts are saved to on shutdown
+     */
+    public KillAggregator(KillJournal journal, File checkpoint)
+    {
+        this.journal = journal;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Load the counts saved on the last clean shutdown. The checkpoint is removed so a crash from now on leads to a rebuild.
+     *
+     * @return how many journal records the loaded counts hold, 0 when they have to be rebuilt
+     */
+    public synchronized long load()
+    {
+        reset();
+
+        if (!checkpoint.exists())
+        {
+            return 0;
+        }
+
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+
+            try
+            {
+                if (in.readInt() != CHECKPOINT_VERSION)
+                {
+                    return 0;
+                }
+
+                long records = in.readLong();
+
+                for (int i = in.readInt(); i > 0; i--)
+                {
+                    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+                    victims.put(in.readInt(), counts);
+
+                    for (int j = in.readInt(); j > 0; j--)
+                    {
+                        counts.put(in.readInt(), in.readInt());
+                    }
+                }
+
+                for (int i = in.readInt(); i > 0; i--)
+                {
+                    HashMap<Long, Integer> counts = new HashMap<Long, Integer>();
+                    clans.put(in.readInt(), counts);
+
+                    for (int j = in.readInt(); j > 0; j--)
+                    {
+                        counts.put(in.readLong(), in.readInt());
+                    }
+                }
+
+                folded = records;
+                return folded;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.WARNING, "Could not read the kill count checkpoint, rebuilding from the kill journal", ex);
+            reset();
+            return 0;
+        }
+        finally
+        {
+            if (!checkpoint.delete())
+            {
+                SimpleClans.getLogger().warning("Could not remove the kill count checkpoint " + checkpoint.getPath());
+            }
+        }
+    }
+
+    /**
+     * Drop all counts, the next fold reads the journal from the start
+     */
+    public synchronized void reset()
+    {
+        victims.clear();
+        clans.clear();
+        folded = 0;
+    }
+
+    /**
+     * Bring the counts up to date with the journal, logging the time taken when they are being rebuilt from scratch
+     */
+    public synchronized void recover()
+    {
+        long records = journal.getWritten();
+
+        if (folded > 0 || records == 0)
+        {
+            fold();
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        SimpleClans.log(MessageFormat.format("Rebuilding kill counts from {0} kill journal records", records));
+        fold();
+        SimpleClans.log(MessageFormat.format("Rebuilt kill counts in {0} ms", System.currentTimeMillis() - started));
+    }
+
+    /**
+     * Start folding new records in the background
+     */
+    public synchronized void start()
+    {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "SimpleClans kill aggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                fold();
+            }
+        }, FOLD_INTERVAL_MS, FOLD_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop folding in the background, fold what is left and save the checkpoint
+     */
+    public synchronized void stop()
+    {
+        if (executor != null)
+        {
+            executor.shutdown();
+            executor = null;
+        }
+
+        fold();
+        save();
+    }
+
+    /**
+     * Fold the records written since the last fold
+     */
+    public synchronized void fold()
+    {
+        long to = journal.getWritten();
+
+        if (to <= folded)
+        {
+            return;
+        }
+
+        journal.read(folded, to, new KillJournal.RecordHandler()
+        {
+            public void handle(long created, int attacker, int attackerClan, int victim, int victimClan, char type)
+            {
+                if (type == KillJournal.DELETE)
+                {
+                    victims.remove(attacker);
+                    clans.remove(attacker);
+                    return;
+                }
+
+                add(victims, attacker, victim);
+                add(clans, attacker, ((long) attackerClan << 32) | (victimClan & 0xFFFFFFFFL));
+            }
+        });
+
+        folded = to;
+    }
+
+    private <K> void add(HashMap<Integer, HashMap<K, Integer>> counts, int attacker, K key)
+    {
+        HashMap<K, Integer> attackerCounts = counts.get(attacker);
+
+        if (attackerCounts == null)
+        {
+            attackerCounts = new HashMap<K, Integer>();
+            counts.put(attacker, attackerCounts);
+        }
+
+        Integer count = attackerCounts.get(key);
+        attackerCounts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private void save()
+    {
+        File temp = new File(checkpoint.getPath() + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+            try
+            {
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeLong(folded);
+                out.writeInt(victims.size());
+
+                for (Map.Entry<Integer, HashMap<Integer, Integer>> attacker : victims.entrySet())
+                {
+                    out.writeInt(attacker.getKey());
+                    out.writeInt(attacker.getValue().size());
+
+                    for (Map.Entry<Integer, Integer> entry : attacker.getValue().entrySet())
+                    {
+                        out.writeInt(entry.getKey());
+                        out.writeInt(entry.getValue());
+                    }
+                }
+
+                out.writeInt(clans.size());
+
+                for (Map.Entry<Integer, HashMap<Long, Integer>> attacker : clans.entrySet())
+                {
+                    out.writeInt(attacker.getKey());
+                    out.writeInt(attacker.getValue().size());
+
+                    for (Map.Entry<Long, Integer> entry : attacker.getValue().entrySet())
+                    {
+                        out.writeLong(entry.getKey());
+                        out.writeInt(entry.getValue());
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!temp.renameTo(checkpoint))
+            {
+                SimpleClans.getLogger().warning("Could not save the kill count checkpoint, the counts will be rebuilt on the next start");
+            }
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.WARNING, "Could not save the kill count checkpoint, the counts will be rebuilt on the next start", ex);
+        }
+    }
+
+    /**
+     * @param playerName
+     * @param min
+     * @return the victims the player killed more than min times, with the kills
+     */
+    public synchronized HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
+    {
+        fold();
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+        Integer attacker = journal.findId(KillJournal.PLAYER, playerName);
+        HashMap<Integer, Integer> counts = attacker == null ? null : victims.get(attacker);
+
+        if (counts != null)
+        {
+            for (Map.Entry<Integer, Integer> entry : counts.entrySet())
+            {
+                if (entry.getValue() > min)
+                {
+                    add(out, journal.getName(entry.getKey()), entry.getValue());
+                }
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * @param playerName
+     * @return the clans of the victims the player killed, with the kills
+     */
+    public synchronized HashMap<String, Integer> getKillsPerClan(String playerName)
+    {
+        fold();
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+        Integer attacker = journal.findId(KillJournal.PLAYER, playerName);
+        HashMap<Long, Integer> counts = attacker == null ? null : clans.get(attacker);
+
+        if (counts != null)
+        {
+            for (Map.Entry<Long, Integer> entry : counts.entrySet())
+            {
+                add(out, journal.getName((int) (long) entry.getKey()), entry.getValue());
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * @param byAttacker whether to total the kills by attacker, or by victim
+     * @return the total kills per player
+     */
+    public synchronized HashMap<String, Integer> getPlayerTotals(boolean byAttacker)
+    {
+        fold();
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+
+        for (Map.Entry<Integer, HashMap<Integer, Integer>> attacker : victims.entrySet())
+        {
+            for (Map.Entry<Integer, Integer> entry : attacker.getValue().entrySet())
+            {
+                add(out, journal.getName(byAttacker ? attacker.getKey() : entry.getKey()), entry.getValue());
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * @param byAttacker whether to total the kills by attacker clan, or by victim clan
+     * @return the total kills per clan
+     */
+    public synchronized HashMap<String, Integer> getClanTotals(boolean byAttacker)
+    {
+        fold();
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+
+        for (HashMap<Long, Integer> counts : clans.values())
+        {
+            for (Map.Entry<Long, Integer> entry : counts.entrySet())
+            {
+                long pair = entry.getKey();
+                add(out, journal.getName((int) (byAttacker ? pair >>> 32 : pair)), entry.getValue());
+            }
+        }
+
+        return out;
+    }
+
+    private void add(HashMap<String, Integer> out, String key, int count)
+    {
+        Integer total = out.get(key);
+        out.put(key, total == null ? count : total + count);
+    }
+}
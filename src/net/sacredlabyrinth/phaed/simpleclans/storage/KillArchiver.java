@@ -0,0 +1,187 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Rolls sc_kills rows older than a cutoff into per-pair counts in sc_kills_archive, by name, and deletes them.
+ * Rows are handled a chunk at a time, each chunk being its own write on the storage thread, so other writes are never held up for long.
+ *
+ * @author phaed
+ */
+public class KillArchiver implements Runnable
+{
+    private static final int PROGRESS_EVERY = 10;
+    private final DBCore core;
+    private final WriteQueue writes;
+    private final boolean useMysql;
+    private final int chunkSize;
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private long cutoff;
+    private long started;
+    private long archived;
+    private int chunks;
+
+    /**
+     * @param core
+     * @param writes the queue chunks are run on
+     * @param useMysql
+     * @param chunkSize the most rows archived per chunk
+     */
+    public KillArchiver(DBCore core, WriteQueue writes, boolean useMysql, int chunkSize)
+    {
+        this.core = core;
+        this.writes = writes;
+        this.useMysql = useMysql;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Start archiving kills recorded before the cutoff, kills from before timestamps were recorded count as old
+     *
+     * @param cutoff
+     * @return false if a run is already in progress
+     */
+    public synchronized boolean start(long cutoff)
+    {
+        if (running || stopped)
+        {
+            return false;
+        }
+
+        this.running = true;
+        this.cutoff = cutoff;
+        this.started = System.currentTimeMillis();
+        this.archived = 0;
+        this.chunks = 0;
+
+        writes.add(null, this);
+        return true;
+    }
+
+    /**
+     * Stop queuing further chunks, used on shutdown
+     */
+    public void stop()
+    {
+        stopped = true;
+    }
+
+    /**
+     * @return whether a run is in progress
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Archive one chunk and queue the next one if there may be more
+     */
+    public void run()
+    {
+        int count;
+
+        try
+        {
+            count = archiveChunk();
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Kill archiving failed", ex);
+            count = 0;
+        }
+
+        archived += count;
+        chunks++;
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+
+        if (count < chunkSize || stopped)
+        {
+            running = false;
+
+            if (archived > 0)
+            {
+                SimpleClans.log(MessageFormat.format("Archived {0} old kills in {1} ms ({2} kills/s)", archived, elapsed, archived * 1000 / elapsed));
+            }
+            return;
+        }
+
+        if (chunks % PROGRESS_EVERY == 0)
+        {
+            SimpleClans.log(MessageFormat.format("Archiving old kills: {0} done in {1} ms ({2} kills/s)", archived, elapsed, archived * 1000 / elapsed));
+        }
+
+        writes.add(null, this);
+    }
+
+    private int archiveChunk() throws SQLException
+    {
+        List<Object[]> ids = new ArrayList<Object[]>();
+        HashMap<List<Object>, Integer> counts = new HashMap<List<Object>, Integer>();
+
+        // a left join, so kills whose name id is missing are still archived and cannot stall the run
+        ResultSet res = core.select("SELECT k.kill_id AS id, COALESCE(a.name, '') AS attacker, COALESCE(ac.name, '') AS attacker_tag, COALESCE(v.name, '') AS victim, COALESCE(vt.name, '') AS victim_tag, k.kill_type FROM `sc_kills` k LEFT JOIN `sc_kill_names` a ON a.id = k.attacker_id LEFT JOIN `sc_kill_names` ac ON ac.id = k.attacker_clan_id LEFT JOIN `sc_kill_names` v ON v.id = k.victim_id LEFT JOIN `sc_kill_names` vt ON vt.id = k.victim_clan_id WHERE k.created < ? ORDER BY k.created LIMIT ?;", cutoff, chunkSize);
+
+        if (res == null)
+        {
+            return 0;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                ids.add(new Object[]{res.getLong("id")});
+                List<Object> pair = Arrays.<Object>asList(res.getString("attacker"), res.getString("attacker_tag"), res.getString("victim"), res.getString("victim_tag"), res.getString("kill_type"));
+                Integer count = counts.get(pair);
+                counts.put(pair, count == null ? 1 : count + 1);
+            }
+        }
+        finally
+        {
+            res.close();
+        }
+
+        if (ids.isEmpty())
+        {
+            return 0;
+        }
+
+        String create = (useMysql ? "INSERT IGNORE" : "INSERT OR IGNORE") + " INTO `sc_kills_archive` ( `attacker`, `attacker_tag`, `victim`, `victim_tag`, `kill_type`, `kills`) VALUES ( ?, ?, ?, ?, ?, 0);";
+        String raise = "UPDATE `sc_kills_archive` SET kills = kills + ? WHERE attacker = ? AND attacker_tag = ? AND victim = ? AND victim_tag = ? AND kill_type = ?;";
+
+        Batch batch = new Batch();
+
+        for (List<Object> pair : counts.keySet())
+        {
+            batch.add(create, pair.toArray());
+        }
+
+        for (Map.Entry<List<Object>, Integer> entry : counts.entrySet())
+        {
+            List<Object> pair = entry.getKey();
+            batch.add(raise, entry.getValue(), pair.get(0), pair.get(1), pair.get(2), pair.get(3), pair.get(4));
+        }
+
+        batch.addAll("DELETE FROM `sc_kills` WHERE kill_id = ?;", ids);
+
+        if (!core.executeBatch(batch))
+        {
+            throw new SQLException("The archive batch was rolled back");
+        }
+
+        return ids.size();
+    }
+}
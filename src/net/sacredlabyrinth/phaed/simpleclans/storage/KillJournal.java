@@ -0,0 +1,459 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of kills made of fixed-size binary records in memory-mapped segment files.
+ * Names are stored once in a names file and records refer to them by their position in it.
+ * A record is valid when its checksum matches, the first invalid record marks the end of the journal,
+ * so a write torn by a crash is simply dropped on the next open.
+ *
+ * @author phaed
+ */
+public class KillJournal
+{
+    /**
+     * created, attacker, attacker clan, victim, victim clan, kill type, padding, checksum
+     */
+    public static final int RECORD_SIZE = 32;
+
+    /**
+     * The kill type of a record that drops all earlier kills by its attacker
+     */
+    public static final char DELETE = 'D';
+    public static final char PLAYER = 'p';
+    public static final char CLAN = 'c';
+    private static final int CHECKSUMMED = RECORD_SIZE - 4;
+    private final File dir;
+    private final int recordsPerSegment;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+    private final List<String> names = new ArrayList<String>();
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private DataOutputStream namesOut;
+    private FileOutputStream namesFile;
+    private volatile long written;
+
+    /**
+     * Receives records one at a time while they are read
+     */
+    public interface RecordHandler
+    {
+        void handle(long created, int attacker, int attackerClan, int victim, int victimClan, char type);
+    }
+
+    /**
+     * @param dir the directory holding the segment and names files
+     * @param segmentBytes the size of each segment file
+     */
+    public KillJournal(File dir, int segmentBytes)
+    {
+        this.dir = dir;
+        this.recordsPerSegment = Math.max(1, segmentBytes / RECORD_SIZE);
+    }
+
+    /**
+     * Map the existing segments and find the end of the journal
+     *
+     * @param validUntil records before this index are known to be valid and are not checked again
+     * @return whether the journal can be used
+     */
+    public synchronized boolean open(long validUntil)
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            SimpleClans.getLogger().severe("Could not create the kill journal directory " + dir.getPath());
+            return false;
+        }
+
+        try
+        {
+            readNames();
+
+            for (int i = 0; getSegmentFile(i).exists(); i++)
+            {
+                segments.add(map(i));
+            }
+
+            written = findEnd(Math.min(validUntil, (long) segments.size() * recordsPerSegment));
+            return true;
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not open the kill journal", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Stop writing to the journal, the mapped segments are released once they are no longer referenced
+     */
+    public synchronized void close()
+    {
+        for (MappedByteBuffer segment : segments)
+        {
+            segment.force();
+        }
+
+        segments.clear();
+
+        if (namesOut != null)
+        {
+            try
+            {
+                namesOut.close();
+            }
+            catch (IOException ex)
+            {
+                SimpleClans.getLogger().log(Level.SEVERE, "Could not close the kill journal names", ex);
+            }
+
+            namesOut = null;
+        }
+    }
+
+    /**
+     * @return the number of records written
+     */
+    public long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * Append kills and force them to disk
+     *
+     * @param kills rows of {attacker, attacker tag, victim, victim tag, kill type, Long created}
+     */
+    public synchronized void append(List<Object[]> kills)
+    {
+        try
+        {
+            List<int[]> rows = new ArrayList<int[]>(kills.size());
+
+            for (Object[] kill : kills)
+            {
+                rows.add(new int[]{getId(PLAYER, (String) kill[0]), getId(CLAN, (String) kill[1]), getId(PLAYER, (String) kill[2]), getId(CLAN, (String) kill[3])});
+            }
+
+            syncNames();
+            long start = written;
+
+            for (int i = 0; i < kills.size(); i++)
+            {
+                int[] row = rows.get(i);
+                put(start + i, (Long) kills.get(i)[5], row[0], row[1], row[2], row[3], ((String) kills.get(i)[4]).charAt(0));
+            }
+
+            force(start, start + kills.size());
+            written = start + kills.size();
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not write to the kill journal", ex);
+        }
+    }
+
+    /**
+     * Append records dropping all kills by the attackers so far
+     *
+     * @param attackers
+     */
+    public synchronized void appendDelete(List<String> attackers)
+    {
+        try
+        {
+            long start = written;
+            long index = start;
+
+            for (String attacker : attackers)
+            {
+                Integer id = findId(PLAYER, attacker);
+
+                if (id != null)
+                {
+                    put(index++, System.currentTimeMillis(), id, 0, 0, 0, DELETE);
+                }
+            }
+
+            force(start, index);
+            written = index;
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not write to the kill journal", ex);
+        }
+    }
+
+    /**
+     * Pass the records from one index up to another to the handler, may be called from any thread
+     *
+     * @param from
+     * @param to must not be past getWritten()
+     * @param handler
+     */
+    public void read(long from, long to, RecordHandler handler)
+    {
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer segment = null;
+        int segmentIndex = -1;
+
+        for (long index = from; index < to; index++)
+        {
+            int si = (int) (index / recordsPerSegment);
+
+            if (si != segmentIndex)
+            {
+                segmentIndex = si;
+                segment = segments.get(si).duplicate();
+            }
+
+            segment.position((int) (index % recordsPerSegment) * RECORD_SIZE);
+            segment.get(record);
+
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            handler.handle(buf.getLong(0), buf.getInt(8), buf.getInt(12), buf.getInt(16), buf.getInt(20), (char) buf.get(24));
+        }
+    }
+
+    /**
+     * @param id
+     * @return the name with that id
+     */
+    public synchronized String getName(int id)
+    {
+        return id >= 0 && id < names.size() ? names.get(id).substring(1) : "";
+    }
+
+    /**
+     * @param kind PLAYER or CLAN
+     * @param name matched ignoring case
+     * @return the id of the name, null if no record refers to it
+     */
+    public synchronized Integer findId(char kind, String name)
+    {
+        return ids.get(kind + name.toLowerCase());
+    }
+
+    private int getId(char kind, String name) throws IOException
+    {
+        Integer id = findId(kind, name);
+
+        if (id == null)
+        {
+            id = names.size();
+            names.add(kind + name);
+            ids.put(kind + name.toLowerCase(), id);
+            getNamesOut().writeChar(kind);
+            getNamesOut().writeUTF(name);
+        }
+
+        return id;
+    }
+
+    /**
+     * New names must reach the disk before the records that refer to them
+     */
+    private void syncNames() throws IOException
+    {
+        if (namesOut != null && namesOut.size() > 0)
+        {
+            namesOut.flush();
+            namesFile.getFD().sync();
+        }
+    }
+
+    private DataOutputStream getNamesOut() throws IOException
+    {
+        if (namesOut == null)
+        {
+            namesFile = new FileOutputStream(new File(dir, "names.dat"), true);
+            namesOut = new DataOutputStream(new BufferedOutputStream(namesFile));
+        }
+
+        return namesOut;
+    }
+
+    /**
+     * Read the names file, cutting off a name left half written by a crash
+     */
+    private void readNames() throws IOException
+    {
+        names.clear();
+        ids.clear();
+
+        File file = new File(dir, "names.dat");
+
+        if (!file.exists())
+        {
+            return;
+        }
+
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try
+        {
+            while (true)
+            {
+                char kind = in.readChar();
+                String name = in.readUTF();
+                ids.put(kind + name.toLowerCase(), names.size());
+                names.add(kind + name);
+                valid += 2 + 2 + getUtfLength(name);
+            }
+        }
+        catch (EOFException ex)
+        {
+            // end of the names
+        }
+        catch (UTFDataFormatException ex)
+        {
+            // a half written name
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (valid < file.length())
+        {
+            SimpleClans.getLogger().warning("Dropping a half written name at the end of the kill journal names");
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try
+            {
+                raf.setLength(valid);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * The number of bytes writeUTF uses for the characters of a string
+     */
+    private int getUtfLength(String name)
+    {
+        int length = 0;
+
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+
+        return length;
+    }
+
+    /**
+     * Check records from the given index on until the first invalid one
+     */
+    private long findEnd(long from)
+    {
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[RECORD_SIZE];
+        long total = (long) segments.size() * recordsPerSegment;
+        long index = from;
+
+        while (index < total)
+        {
+            ByteBuffer segment = segments.get((int) (index / recordsPerSegment)).duplicate();
+            segment.position((int) (index % recordsPerSegment) * RECORD_SIZE);
+            segment.get(record);
+
+            crc.reset();
+            crc.update(record, 0, CHECKSUMMED);
+
+            if (ByteBuffer.wrap(record).getInt(CHECKSUMMED) != (int) crc.getValue())
+            {
+                break;
+            }
+
+            index++;
+        }
+
+        return index;
+    }
+
+    private void put(long index, long created, int attacker, int attackerClan, int victim, int victimClan, char type) throws IOException
+    {
+        int si = (int) (index / recordsPerSegment);
+
+        while (si >= segments.size())
+        {
+            segments.add(map(segments.size()));
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(0, created);
+        record.putInt(8, attacker);
+        record.putInt(12, attackerClan);
+        record.putInt(16, victim);
+        record.putInt(20, victimClan);
+        record.put(24, (byte) type);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, CHECKSUMMED);
+        record.putInt(CHECKSUMMED, (int) crc.getValue());
+
+        ByteBuffer segment = segments.get(si).duplicate();
+        segment.position((int) (index % recordsPerSegment) * RECORD_SIZE);
+        segment.put(record.array());
+    }
+
+    private void force(long from, long to)
+    {
+        if (to <= from)
+        {
+            return;
+        }
+
+        for (int si = (int) (from / recordsPerSegment); si <= (int) ((to - 1) / recordsPerSegment); si++)
+        {
+            segments.get(si).force();
+        }
+    }
+
+    private MappedByteBuffer map(int index) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(getSegmentFile(index), "rw");
+
+        try
+        {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private File getSegmentFile(int index)
+    {
+        return new File(dir, String.format("kills-%06d.seg", index));
+    }
+}
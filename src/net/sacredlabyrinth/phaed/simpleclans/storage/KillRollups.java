@@ -0,0 +1,467 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Kill and death counters per player and per clan, bucketed by hour for recent kills and by day for older ones.
+ * Hourly buckets are compacted into daily buckets once they fall out of the hourly window, both in memory and in sc_kill_buckets.
+ * Must be used from the main thread, except for the statements it hands out, which run on the storage thread.
+ *
+ * @author phaed
+ */
+public class KillRollups
+{
+    /**
+     * One hour in milliseconds
+     */
+    public static final long HOUR = 3600000L;
+    /**
+     * One day in milliseconds
+     */
+    public static final long DAY = 24 * HOUR;
+    /**
+     * One week in milliseconds
+     */
+    public static final long WEEK = 7 * DAY;
+    private static final String PLAYER = "p";
+    private static final String CLAN = "c";
+    private static final String HOURLY = "h";
+    private static final String DAILY = "d";
+    private static final int KILLS = 0;
+    private static final int DEATHS = 1;
+    private final TreeMap<Long, Bucket> hourly = new TreeMap<Long, Bucket>();
+    private final TreeMap<Long, Bucket> daily = new TreeMap<Long, Bucket>();
+    private final DBCore core;
+    private final boolean useMysql;
+    private final int hourlyHours;
+    private final int dailyDays;
+
+    /**
+     * @param core null to keep the counts in memory only
+     * @param useMysql
+     * @param hourlyHours how many hours are kept at hourly resolution
+     * @param dailyDays how many days are kept at daily resolution
+     */
+    public KillRollups(DBCore core, boolean useMysql, int hourlyHours, int dailyDays)
+    {
+        this.core = core;
+        this.useMysql = useMysql;
+        this.hourlyHours = Math.max(1, hourlyHours);
+        this.dailyDays = Math.max(1, dailyDays);
+    }
+
+    /**
+     * Load the buckets still within the daily window from the database
+     */
+    public void load()
+    {
+        hourly.clear();
+        daily.clear();
+
+        if (core == null)
+        {
+            return;
+        }
+
+        ResultSet res = core.select("SELECT scope, name, resolution, bucket, kills, deaths FROM `sc_kill_buckets` WHERE bucket >= ?;", getDailyCutoff(System.currentTimeMillis()));
+
+        if (res == null)
+        {
+            return;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                TreeMap<Long, Bucket> buckets = HOURLY.equals(res.getString("resolution")) ? hourly : daily;
+                Map<String, int[]> counts = getBucket(buckets, res.getLong("bucket")).get(res.getString("scope"));
+                int[] count = getCount(counts, res.getString("name"));
+                count[KILLS] += res.getInt("kills");
+                count[DEATHS] += res.getInt("deaths");
+            }
+        }
+        catch (SQLException ex)
+        {
+            Logger.getLogger(KillRollups.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            try
+            {
+                res.close();
+            }
+            catch (SQLException ex)
+            {
+                // already closed
+            }
+        }
+
+        compact(System.currentTimeMillis());
+    }
+
+    /**
+     * Count a kill in the in-memory buckets
+     *
+     * @param attacker
+     * @param attackerTag empty if the attacker is not in a clan
+     * @param victim
+     * @param victimTag empty if the victim is not in a clan
+     * @param time
+     */
+    public void record(String attacker, String attackerTag, String victim, String victimTag, long time)
+    {
+        Bucket bucket = getBucket(hourly, time - time % HOUR);
+        getCount(bucket.players, attacker)[KILLS]++;
+        getCount(bucket.players, victim)[DEATHS]++;
+
+        if (attackerTag != null && !attackerTag.isEmpty())
+        {
+            getCount(bucket.clans, attackerTag)[KILLS]++;
+        }
+
+        if (victimTag != null && !victimTag.isEmpty())
+        {
+            getCount(bucket.clans, victimTag)[DEATHS]++;
+        }
+    }
+
+    /**
+     * Persist the hourly counts of a set of kills, to be called on the storage thread
+     *
+     * @param kills rows of attacker, attacker tag, victim, victim tag, kill type and time
+     */
+    public void store(List<Object[]> kills)
+    {
+        if (core == null)
+        {
+            return;
+        }
+
+        Batch batch = new Batch();
+        addWrites(batch, kills);
+        core.executeBatch(batch);
+    }
+
+    /**
+     * Add the statements that persist the hourly counts of a set of kills
+     *
+     * @param batch
+     * @param kills rows of attacker, attacker tag, victim, victim tag, kill type and time
+     */
+    public void addWrites(Batch batch, List<Object[]> kills)
+    {
+        TreeMap<Long, Bucket> deltas = new TreeMap<Long, Bucket>();
+
+        for (Object[] kill : kills)
+        {
+            long time = (Long) kill[5];
+            Bucket bucket = getBucket(deltas, time - time % HOUR);
+            getCount(bucket.players, (String) kill[0])[KILLS]++;
+            getCount(bucket.players, (String) kill[2])[DEATHS]++;
+
+            if (!((String) kill[1]).isEmpty())
+            {
+                getCount(bucket.clans, (String) kill[1])[KILLS]++;
+            }
+
+            if (!((String) kill[3]).isEmpty())
+            {
+                getCount(bucket.clans, (String) kill[3])[DEATHS]++;
+            }
+        }
+
+        addWrites(batch, HOURLY, deltas);
+    }
+
+    /**
+     * Move hourly buckets that fell out of the hourly window into daily buckets, and drop daily buckets that fell out of the daily window
+     *
+     * @param now
+     */
+    public void compact(long now)
+    {
+        long hourlyCutoff = getHourlyCutoff(now);
+
+        while (!hourly.isEmpty() && hourly.firstKey() < hourlyCutoff)
+        {
+            Map.Entry<Long, Bucket> old = hourly.pollFirstEntry();
+            long day = old.getKey() - old.getKey() % DAY;
+            Bucket bucket = getBucket(daily, day);
+            add(bucket.players, old.getValue().players);
+            add(bucket.clans, old.getValue().clans);
+        }
+
+        long dailyCutoff = getDailyCutoff(now);
+
+        while (!daily.isEmpty() && daily.firstKey() < dailyCutoff)
+        {
+            daily.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Returns the work that compacts the persisted buckets the same way, to be run on the storage thread
+     *
+     * @param now
+     * @return
+     */
+    public Runnable compactStored(long now)
+    {
+        final long hourlyCutoff = getHourlyCutoff(now);
+        final long dailyCutoff = getDailyCutoff(now);
+
+        return new Runnable()
+        {
+            public void run()
+            {
+                if (core == null)
+                {
+                    return;
+                }
+
+                TreeMap<Long, Bucket> days = new TreeMap<Long, Bucket>();
+                ResultSet res = core.select("SELECT scope, name, bucket, kills, deaths FROM `sc_kill_buckets` WHERE resolution = ? AND bucket < ?;", HOURLY, hourlyCutoff);
+
+                if (res == null)
+                {
+                    return;
+                }
+
+                try
+                {
+                    while (res.next())
+                    {
+                        long hour = res.getLong("bucket");
+                        Map<String, int[]> counts = getBucket(days, hour - hour % DAY).get(res.getString("scope"));
+                        int[] count = getCount(counts, res.getString("name"));
+                        count[KILLS] += res.getInt("kills");
+                        count[DEATHS] += res.getInt("deaths");
+                    }
+                }
+                catch (SQLException ex)
+                {
+                    Logger.getLogger(KillRollups.class.getName()).log(Level.SEVERE, null, ex);
+                    return;
+                }
+                finally
+                {
+                    try
+                    {
+                        res.close();
+                    }
+                    catch (SQLException ex)
+                    {
+                        // already closed
+                    }
+                }
+
+                Batch batch = new Batch();
+                addWrites(batch, DAILY, days);
+                batch.add("DELETE FROM `sc_kill_buckets` WHERE resolution = ? AND bucket < ?;", HOURLY, hourlyCutoff);
+                batch.add("DELETE FROM `sc_kill_buckets` WHERE resolution = ? AND bucket < ?;", DAILY, dailyCutoff);
+                core.executeBatch(batch);
+            }
+        };
+    }
+
+    /**
+     * @param since
+     * @return kills per player since the given time
+     */
+    public HashMap<String, Integer> getPlayerKills(long since)
+    {
+        return getTotals(PLAYER, KILLS, since);
+    }
+
+    /**
+     * @param since
+     * @return deaths per player since the given time
+     */
+    public HashMap<String, Integer> getPlayerDeaths(long since)
+    {
+        return getTotals(PLAYER, DEATHS, since);
+    }
+
+    /**
+     * @param since
+     * @return kills per clan tag since the given time
+     */
+    public HashMap<String, Integer> getClanKills(long since)
+    {
+        return getTotals(CLAN, KILLS, since);
+    }
+
+    /**
+     * @param since
+     * @return deaths per clan tag since the given time
+     */
+    public HashMap<String, Integer> getClanDeaths(long since)
+    {
+        return getTotals(CLAN, DEATHS, since);
+    }
+
+    /**
+     * Sort totals from highest to lowest and keep the first ones
+     *
+     * @param totals
+     * @param limit
+     * @return
+     */
+    public static LinkedHashMap<String, Integer> top(HashMap<String, Integer> totals, int limit)
+    {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(totals.entrySet());
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>()
+        {
+            public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2)
+            {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+
+        LinkedHashMap<String, Integer> out = new LinkedHashMap<String, Integer>();
+
+        for (Map.Entry<String, Integer> entry : entries)
+        {
+            if (out.size() >= limit)
+            {
+                break;
+            }
+
+            out.put(entry.getKey(), entry.getValue());
+        }
+
+        return out;
+    }
+
+    /**
+     * Sum the buckets starting at or after the given time, older than the hourly window the time is rounded down to the day
+     */
+    private HashMap<String, Integer> getTotals(String scope, int column, long since)
+    {
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+
+        for (Bucket bucket : daily.tailMap(since - since % DAY).values())
+        {
+            sum(out, bucket.get(scope), column);
+        }
+
+        for (Bucket bucket : hourly.tailMap(since - since % HOUR).values())
+        {
+            sum(out, bucket.get(scope), column);
+        }
+
+        return out;
+    }
+
+    private void sum(HashMap<String, Integer> out, Map<String, int[]> counts, int column)
+    {
+        for (Map.Entry<String, int[]> entry : counts.entrySet())
+        {
+            int value = entry.getValue()[column];
+
+            if (value > 0)
+            {
+                Integer total = out.get(entry.getKey());
+                out.put(entry.getKey(), total == null ? value : total + value);
+            }
+        }
+    }
+
+    private void add(Map<String, int[]> into, Map<String, int[]> counts)
+    {
+        for (Map.Entry<String, int[]> entry : counts.entrySet())
+        {
+            int[] count = getCount(into, entry.getKey());
+            count[KILLS] += entry.getValue()[KILLS];
+            count[DEATHS] += entry.getValue()[DEATHS];
+        }
+    }
+
+    private void addWrites(Batch batch, String resolution, TreeMap<Long, Bucket> deltas)
+    {
+        String create = (useMysql ? "INSERT IGNORE" : "INSERT OR IGNORE") + " INTO `sc_kill_buckets` ( `scope`, `name`, `resolution`, `bucket`, `kills`, `deaths`) VALUES ( ?, ?, ?, ?, 0, 0);";
+        String raise = "UPDATE `sc_kill_buckets` SET kills = kills + ?, deaths = deaths + ? WHERE scope = ? AND name = ? AND resolution = ? AND bucket = ?;";
+
+        for (Map.Entry<Long, Bucket> bucket : deltas.entrySet())
+        {
+            for (String scope : new String[]{PLAYER, CLAN})
+            {
+                for (String name : bucket.getValue().get(scope).keySet())
+                {
+                    batch.add(create, scope, name, resolution, bucket.getKey());
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Bucket> bucket : deltas.entrySet())
+        {
+            for (String scope : new String[]{PLAYER, CLAN})
+            {
+                for (Map.Entry<String, int[]> count : bucket.getValue().get(scope).entrySet())
+                {
+                    batch.add(raise, count.getValue()[KILLS], count.getValue()[DEATHS], scope, count.getKey(), resolution, bucket.getKey());
+                }
+            }
+        }
+    }
+
+    private long getHourlyCutoff(long now)
+    {
+        return now - now % HOUR - (hourlyHours - 1) * HOUR;
+    }
+
+    private long getDailyCutoff(long now)
+    {
+        return now - now % DAY - (dailyDays - 1) * DAY;
+    }
+
+    private static Bucket getBucket(TreeMap<Long, Bucket> buckets, long start)
+    {
+        Bucket bucket = buckets.get(start);
+
+        if (bucket == null)
+        {
+            bucket = new Bucket();
+            buckets.put(start, bucket);
+        }
+
+        return bucket;
+    }
+
+    private static int[] getCount(Map<String, int[]> counts, String name)
+    {
+        int[] count = counts.get(name);
+
+        if (count == null)
+        {
+            count = new int[2];
+            counts.put(name, count);
+        }
+
+        return count;
+    }
+
+    private static class Bucket
+    {
+        private final HashMap<String, int[]> players = new HashMap<String, int[]>();
+        private final HashMap<String, int[]> clans = new HashMap<String, int[]>();
+
+        private Map<String, int[]> get(String scope)
+        {
+            return CLAN.equals(scope) ? clans : players;
+        }
+    }
+}
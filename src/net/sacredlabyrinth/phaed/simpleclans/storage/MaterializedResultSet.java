@@ -0,0 +1,235 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A result set whose rows were all copied out of the database, so it can be read after the connection has moved on to other work.
+ * Only forward reading with the getters the storage code uses is supported.
+ *
+ * @author phaed
+ */
+final class MaterializedResultSet implements InvocationHandler
+{
+    private final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+    private int position = -1;
+    private boolean wasNull;
+    private boolean closed;
+
+    private MaterializedResultSet()
+    {
+    }
+
+    /**
+     * Read all rows of the result set and close it
+     *
+     * @param res
+     * @return a result set holding the rows read
+     * @throws SQLException
+     */
+    static ResultSet copy(ResultSet res) throws SQLException
+    {
+        MaterializedResultSet copy = new MaterializedResultSet();
+
+        try
+        {
+            ResultSetMetaData meta = res.getMetaData();
+            int count = meta.getColumnCount();
+
+            for (int i = count; i >= 1; i--)
+            {
+                // filled backwards so the first of two columns with the same label wins, as with a live result set
+                copy.columns.put(meta.getColumnLabel(i).toLowerCase(), i);
+            }
+
+            while (res.next())
+            {
+                Object[] row = new Object[count];
+
+                for (int i = 0; i < count; i++)
+                {
+                    row[i] = res.getObject(i + 1);
+                }
+
+                copy.rows.add(row);
+            }
+        }
+        finally
+        {
+            res.close();
+        }
+
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[]{ResultSet.class}, copy);
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        String name = method.getName();
+
+        if (name.equals("next"))
+        {
+            return closed ? false : ++position < rows.size();
+        }
+
+        if (name.equals("close"))
+        {
+            closed = true;
+            rows.clear();
+            return null;
+        }
+
+        if (name.equals("isClosed"))
+        {
+            return closed;
+        }
+
+        if (name.equals("wasNull"))
+        {
+            return wasNull;
+        }
+
+        if (name.equals("findColumn"))
+        {
+            return column(args[0]);
+        }
+
+        if (name.equals("hashCode"))
+        {
+            return System.identityHashCode(proxy);
+        }
+
+        if (name.equals("equals"))
+        {
+            return proxy == args[0];
+        }
+
+        if (name.equals("toString"))
+        {
+            return "MaterializedResultSet(" + rows.size() + " rows)";
+        }
+
+        if (args == null || args.length != 1)
+        {
+            throw new SQLFeatureNotSupportedException(name);
+        }
+
+        Object value = value(args[0]);
+
+        if (name.equals("getObject"))
+        {
+            return value;
+        }
+
+        if (name.equals("getString"))
+        {
+            return value == null ? null : value.toString();
+        }
+
+        if (name.equals("getBoolean"))
+        {
+            return value instanceof Boolean ? (Boolean) value : toLong(value) != 0;
+        }
+
+        if (name.equals("getInt"))
+        {
+            return (int) toLong(value);
+        }
+
+        if (name.equals("getLong"))
+        {
+            return toLong(value);
+        }
+
+        if (name.equals("getDouble"))
+        {
+            return value == null ? 0 : value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString().trim());
+        }
+
+        throw new SQLFeatureNotSupportedException(name);
+    }
+
+    /**
+     * @param column a label or a 1-based index
+     */
+    private int column(Object column) throws SQLException
+    {
+        if (column instanceof Integer)
+        {
+            return (Integer) column;
+        }
+
+        Integer index = columns.get(column.toString().toLowerCase());
+
+        if (index == null)
+        {
+            throw new SQLException("No such column: " + column);
+        }
+
+        return index;
+    }
+
+    private Object value(Object column) throws SQLException
+    {
+        if (closed || position < 0 || position >= rows.size())
+        {
+            throw new SQLException("The result set has no current row");
+        }
+
+        Object[] row = rows.get(position);
+        int index = column(column);
+
+        if (index < 1 || index > row.length)
+        {
+            throw new SQLException("No such column: " + column);
+        }
+
+        Object value = row[index - 1];
+        wasNull = value == null;
+        return value;
+    }
+
+    private long toLong(Object value) throws SQLException
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+
+        if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value ? 1 : 0;
+        }
+
+        String text = value.toString().trim();
+
+        try
+        {
+            return Long.parseLong(text);
+        }
+        catch (NumberFormatException ex)
+        {
+            try
+            {
+                return (long) Double.parseDouble(text);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new SQLException("Not a number: " + value);
+            }
+        }
+    }
+}
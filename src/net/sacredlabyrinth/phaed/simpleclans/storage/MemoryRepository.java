@@ -0,0 +1,428 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.Helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps clans, clan players and kills in memory only, nothing survives a restart.
+ * Meant for load tests and benchmarks that should not depend on a disk or a database server.
+ *
+ * @author phaed
+ */
+public class MemoryRepository implements StorageRepository
+{
+    private static final int TAG = Arrays.asList(CLAN_COLUMNS).indexOf("tag");
+    private static final int LAST_USED = Arrays.asList(CLAN_COLUMNS).indexOf("last_used");
+    private static final int ALLIES = Arrays.asList(CLAN_COLUMNS).indexOf("packed_allies");
+    private static final int RIVALS = Arrays.asList(CLAN_COLUMNS).indexOf("packed_rivals");
+    private static final int BB = Arrays.asList(CLAN_COLUMNS).indexOf("packed_bb");
+    private static final int NAME = Arrays.asList(PLAYER_COLUMNS).indexOf("name");
+    private static final int PLAYER_TAG = Arrays.asList(PLAYER_COLUMNS).indexOf("tag");
+    private static final int LAST_SEEN = Arrays.asList(PLAYER_COLUMNS).indexOf("last_seen");
+    private final LinkedHashMap<String, Object[]> clans = new LinkedHashMap<String, Object[]>();
+    private final LinkedHashMap<String, Object[]> players = new LinkedHashMap<String, Object[]>();
+
+    /**
+     * attacker -> {attacker tag, victim, victim tag} -> kills
+     */
+    private final HashMap<String, HashMap<List<String>, Integer>> kills = new HashMap<String, HashMap<List<String>, Integer>>();
+
+    public boolean open()
+    {
+        return true;
+    }
+
+    public synchronized void close()
+    {
+        clans.clear();
+        players.clear();
+        kills.clear();
+    }
+
+    public void transaction(Runnable work)
+    {
+        work.run();
+    }
+
+    public void readClans(RowHandler handler)
+    {
+        for (Object[] row : snapshot(clans.values()))
+        {
+            handler.handle(row);
+        }
+    }
+
+    /**
+     * Change times are not kept, every clan counts as changed
+     */
+    public void readClansChangedSince(long time, RowHandler handler)
+    {
+        readClans(handler);
+    }
+
+    public void readClanLists(RowHandler handler)
+    {
+        for (Object[] row : snapshot(clans.values()))
+        {
+            handler.handle(new Object[]{row[TAG], row[ALLIES], row[RIVALS], row[BB]});
+        }
+    }
+
+    public synchronized int countClans()
+    {
+        return clans.size();
+    }
+
+    public synchronized void insertClan(Map<String, Object> columns)
+    {
+        Object[] row = toRow(CLAN_COLUMNS, columns);
+        clans.put((String) row[TAG], row);
+    }
+
+    public synchronized void updateClan(String tag, Map<String, Object> changed)
+    {
+        apply(CLAN_COLUMNS, clans.get(tag), changed);
+    }
+
+    public synchronized void deleteClans(List<String> tags)
+    {
+        for (String tag : tags)
+        {
+            clans.remove(tag);
+        }
+
+        for (Object[] row : clans.values())
+        {
+            List<String> allies = unpack(row[ALLIES]);
+            List<String> rivals = unpack(row[RIVALS]);
+
+            if (allies.removeAll(tags) | rivals.removeAll(tags))
+            {
+                row[ALLIES] = Helper.toMessage(allies, "|");
+                row[RIVALS] = Helper.toMessage(rivals, "|");
+            }
+        }
+    }
+
+    public synchronized void insertRelation(String tag, String relation, String otherTag)
+    {
+        Object[] row = clans.get(tag);
+
+        if (row != null)
+        {
+            int column = ALLY.equals(relation) ? ALLIES : RIVALS;
+            List<String> tags = unpack(row[column]);
+
+            if (!tags.contains(otherTag))
+            {
+                tags.add(otherTag);
+                row[column] = Helper.toMessage(tags, "|");
+            }
+        }
+    }
+
+    public synchronized void deleteRelation(String tag, String relation, String otherTag)
+    {
+        Object[] row = clans.get(tag);
+
+        if (row != null)
+        {
+            int column = ALLY.equals(relation) ? ALLIES : RIVALS;
+            List<String> tags = unpack(row[column]);
+
+            if (tags.remove(otherTag))
+            {
+                row[column] = Helper.toMessage(tags, "|");
+            }
+        }
+    }
+
+    public synchronized void insertBb(String tag, String msg, int keep)
+    {
+        Object[] row = clans.get(tag);
+
+        if (row != null)
+        {
+            List<String> bb = unpack(row[BB]);
+            bb.add(msg);
+
+            if (bb.size() > keep)
+            {
+                bb = bb.subList(bb.size() - keep, bb.size());
+            }
+
+            row[BB] = Helper.toMessage(bb, "|");
+        }
+    }
+
+    private List<String> unpack(Object packed)
+    {
+        return packed == null ? new ArrayList<String>() : Helper.fromArray(((String) packed).split("[|]"));
+    }
+
+    public void readClanPlayers(boolean membersOnly, RowHandler handler)
+    {
+        for (Object[] row : snapshot(players.values()))
+        {
+            if (!membersOnly || !"".equals(row[PLAYER_TAG]))
+            {
+                handler.handle(row);
+            }
+        }
+    }
+
+    /**
+     * Change times are not kept, every player counts as changed
+     */
+    public void readClanPlayersChangedSince(long time, RowHandler handler)
+    {
+        readClanPlayers(false, handler);
+    }
+
+    /**
+     * Nothing is kept past a restart, so there is never a snapshot to compare against
+     */
+    public long readLastChange()
+    {
+        return -1;
+    }
+
+    public synchronized int countClanPlayers(boolean membersOnly)
+    {
+        if (!membersOnly)
+        {
+            return players.size();
+        }
+
+        int count = 0;
+
+        for (Object[] row : players.values())
+        {
+            if (!"".equals(row[PLAYER_TAG]))
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    public synchronized Object[] readClanPlayer(String playerName)
+    {
+        Object[] row = players.get(playerName.toLowerCase());
+        return row == null ? null : row.clone();
+    }
+
+    public synchronized void insertClanPlayer(Map<String, Object> columns)
+    {
+        Object[] row = toRow(PLAYER_COLUMNS, columns);
+        players.put(((String) row[NAME]).toLowerCase(), row);
+    }
+
+    public synchronized void updateClanPlayer(String playerName, Map<String, Object> changed)
+    {
+        apply(PLAYER_COLUMNS, players.get(playerName.toLowerCase()), changed);
+    }
+
+    public synchronized void deleteClanPlayers(List<String> playerNames)
+    {
+        for (String name : playerNames)
+        {
+            players.remove(name.toLowerCase());
+        }
+
+        deleteKills(playerNames);
+    }
+
+    public List<Object[]> findInactiveClans(long cutoff, long afterTime, String afterTag, int limit)
+    {
+        return findInactive(snapshot(clans.values()), TAG, LAST_USED, cutoff, afterTime, afterTag, limit);
+    }
+
+    public List<Object[]> findInactiveClanPlayers(long cutoff, long afterTime, String afterName, int limit)
+    {
+        return findInactive(snapshot(players.values()), NAME, LAST_SEEN, cutoff, afterTime, afterName, limit);
+    }
+
+    private List<Object[]> findInactive(List<Object[]> rows, int nameColumn, int timeColumn, long cutoff, long afterTime, String afterName, int limit)
+    {
+        List<Object[]> out = new ArrayList<Object[]>();
+
+        for (Object[] row : rows)
+        {
+            String name = (String) row[nameColumn];
+            long time = (Long) row[timeColumn];
+
+            if (time < cutoff && (time > afterTime || (time == afterTime && name.compareTo(afterName) > 0)))
+            {
+                out.add(new Object[]{name, time});
+            }
+        }
+
+        Collections.sort(out, new Comparator<Object[]>()
+        {
+            public int compare(Object[] r1, Object[] r2)
+            {
+                int c = ((Long) r1[1]).compareTo((Long) r2[1]);
+                return c != 0 ? c : ((String) r1[0]).compareTo((String) r2[0]);
+            }
+        });
+
+        return out.size() > limit ? new ArrayList<Object[]>(out.subList(0, limit)) : out;
+    }
+
+    public synchronized void insertKills(List<Object[]> rows)
+    {
+        for (Object[] row : rows)
+        {
+            String attacker = (String) row[0];
+            HashMap<List<String>, Integer> counts = kills.get(attacker);
+
+            if (counts == null)
+            {
+                counts = new HashMap<List<String>, Integer>();
+                kills.put(attacker, counts);
+            }
+
+            List<String> key = Arrays.asList((String) row[1], (String) row[2], (String) row[3]);
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+    }
+
+    public synchronized void deleteKills(List<String> attackers)
+    {
+        for (String attacker : attackers)
+        {
+            kills.remove(attacker);
+        }
+    }
+
+    public synchronized HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
+    {
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+        HashMap<List<String>, Integer> counts = kills.get(playerName);
+
+        if (counts != null)
+        {
+            for (Map.Entry<List<String>, Integer> entry : counts.entrySet())
+            {
+                add(out, entry.getKey().get(1), entry.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry : new ArrayList<Map.Entry<String, Integer>>(out.entrySet()))
+        {
+            if (entry.getValue() <= min)
+            {
+                out.remove(entry.getKey());
+            }
+        }
+
+        return out;
+    }
+
+    public synchronized HashMap<String, Integer> getKillsPerClan(String playerName)
+    {
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+        HashMap<List<String>, Integer> counts = kills.get(playerName);
+
+        if (counts != null)
+        {
+            for (Map.Entry<List<String>, Integer> entry : counts.entrySet())
+            {
+                add(out, entry.getKey().get(2), entry.getValue());
+            }
+        }
+
+        return out;
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerClan()
+    {
+        return totals(false, 2);
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerClan()
+    {
+        return totals(false, 0);
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerPlayer()
+    {
+        return totals(true, 0);
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerPlayer()
+    {
+        return totals(false, 1);
+    }
+
+    /**
+     * Sum all kills by the attacker, or by one part of the {attacker tag, victim, victim tag} key
+     */
+    private synchronized HashMap<String, Integer> totals(boolean byAttacker, int keyPart)
+    {
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+
+        for (Map.Entry<String, HashMap<List<String>, Integer>> attacker : kills.entrySet())
+        {
+            for (Map.Entry<List<String>, Integer> entry : attacker.getValue().entrySet())
+            {
+                add(out, byAttacker ? attacker.getKey() : entry.getKey().get(keyPart), entry.getValue());
+            }
+        }
+
+        return out;
+    }
+
+    private void add(HashMap<String, Integer> out, String key, int count)
+    {
+        Integer total = out.get(key);
+        out.put(key, total == null ? count : total + count);
+    }
+
+    private synchronized List<Object[]> snapshot(Collection<Object[]> rows)
+    {
+        List<Object[]> out = new ArrayList<Object[]>(rows.size());
+
+        for (Object[] row : rows)
+        {
+            out.add(row.clone());
+        }
+
+        return out;
+    }
+
+    private Object[] toRow(String[] names, Map<String, Object> columns)
+    {
+        Object[] row = new Object[names.length];
+        apply(names, row, columns);
+        return row;
+    }
+
+    private void apply(String[] names, Object[] row, Map<String, Object> changed)
+    {
+        if (row == null)
+        {
+            return;
+        }
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (changed.containsKey(names[i]))
+            {
+                row[i] = changed.get(names[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+/**
+ * One step of the database schema, with the statements to apply it on each database type
+ *
+ * @author phaed
+ */
+public class Migration
+{
+    private final int version;
+    private final String description;
+    private final String[] mysql;
+    private final String[] sqlite;
+
+    /**
+     * @param version the schema version this step brings the database to
+     * @param description
+     * @param mysql statements to run on MySQL
+     * @param sqlite statements to run on SQLite
+     */
+    public Migration(int version, String description, String[] mysql, String[] sqlite)
+    {
+        this.version = version;
+        this.description = description;
+        this.mysql = mysql;
+        this.sqlite = sqlite;
+    }
+
+    /**
+     * Create a step whose statements are the same on both database types
+     *
+     * @param version
+     * @param description
+     * @param statements
+     */
+    public Migration(int version, String description, String... statements)
+    {
+        this(version, description, statements, statements);
+    }
+
+    /**
+     * @return the version
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the description
+     */
+    public String getDescription()
+    {
+        return description;
+    }
+
+    /**
+     * @param useMysql
+     * @return the statements for the database type
+     */
+    public String[] getStatements(boolean useMysql)
+    {
+        return useMysql ? mysql : sqlite;
+    }
+
+    /**
+     * Whether a statement of this step has already taken effect and must be skipped when the step is run again after failing halfway.
+     * Only asked on MySQL, where the statements of a step cannot share a transaction.
+     * Created indexes, added columns, renamed and dropped tables are recognized by the migrator, steps override this for anything else.
+     *
+     * @param migrator
+     * @param statement
+     * @return
+     */
+    public boolean isApplied(SchemaMigrator migrator, String statement)
+    {
+        return false;
+    }
+}
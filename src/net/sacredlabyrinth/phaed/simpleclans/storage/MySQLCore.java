@@ -3,9 +3,10 @@ package net.sacredlabyrinth.phaed.simpleclans.storage;
 import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.logging.Logger;
 
 /**
@@ -15,11 +16,13 @@ import java.util.logging.Logger;
 public class MySQLCore implements DBCore
 {
     private Logger log;
-    private Connection connection;
+    private ConnectionPool pool;
     private String host;
     private String username;
     private String password;
     private String database;
+    private final ThreadLocal<Boolean> connectionLost = new ThreadLocal<Boolean>();
+    private final ThreadLocal<Boolean> lostAfterSend = new ThreadLocal<Boolean>();
 
     /**
      *
@@ -29,6 +32,21 @@ public class MySQLCore implements DBCore
      * @param password
      */
     public MySQLCore(String host, String database, String username, String password)
+    {
+        this(host, database, username, password, 4, 5000, 300000);
+    }
+
+    /**
+     *
+     * @param host
+     * @param database
+     * @param username
+     * @param password
+     * @param poolSize the most connections open at once
+     * @param poolWait how long to wait for a free connection, in milliseconds
+     * @param idleTimeout how long a connection may sit unused before it is closed, in milliseconds
+     */
+    public MySQLCore(String host, String database, String username, String password, int poolSize, long poolWait, long idleTimeout)
     {
         this.database = database;
         this.host = host;
@@ -36,37 +54,39 @@ public class MySQLCore implements DBCore
         this.password = password;
         this.log = SimpleClans.getLogger();
 
-        initialize();
+        initialize(poolSize, poolWait, idleTimeout);
     }
 
-    private void initialize()
+    private void initialize(int poolSize, long poolWait, long idleTimeout)
     {
         try
         {
             Class.forName("com.mysql.jdbc.Driver");
-            connection = DriverManager.getConnection("jdbc:mysql://" + host + "/" + database, username, password);
         }
         catch (ClassNotFoundException e)
         {
             log.severe("ClassNotFoundException! " + e.getMessage());
         }
-        catch (SQLException e)
-        {
-            log.severe("SQLException! " + e.getMessage());
-        }
+
+        pool = new ConnectionPool("jdbc:mysql://" + host + "/" + database, username, password, poolSize, poolWait, idleTimeout);
     }
 
     /**
+     * Borrow a connection from the pool, closing it hands it back
      * @return connection
      */
     public Connection getConnection()
     {
-        if (connection == null)
+        try
         {
-            initialize();
+            return pool.borrow().proxy();
+        }
+        catch (SQLException e)
+        {
+            connectionLost.set(true);
+            log.severe("SQLException! " + e.getMessage());
+            return null;
         }
-
-        return connection;
     }
 
     /**
@@ -74,7 +94,16 @@ public class MySQLCore implements DBCore
      */
     public Boolean checkConnection()
     {
-        return getConnection() != null;
+        try
+        {
+            pool.borrow().release();
+            return true;
+        }
+        catch (SQLException e)
+        {
+            log.severe("SQLException! " + e.getMessage());
+            return false;
+        }
     }
 
     /**
@@ -82,17 +111,7 @@ public class MySQLCore implements DBCore
      */
     public void close()
     {
-        try
-        {
-            if (connection != null)
-            {
-                connection.close();
-            }
-        }
-        catch (Exception e)
-        {
-            log.severe("Failed to close database connection! " + e.getMessage());
-        }
+        pool.close();
     }
 
     /**
@@ -102,12 +121,16 @@ public class MySQLCore implements DBCore
      */
     public ResultSet select(String query)
     {
+        PooledConnection conn = null;
+
         try
         {
-            return getConnection().createStatement().executeQuery(query);
+            conn = pool.borrow();
+            return conn.track(conn.getConnection().createStatement().executeQuery(query), true);
         }
         catch (SQLException ex)
         {
+            release(conn, ex);
             log.severe("Error at SQL Query: " + ex.getMessage());
         }
 
@@ -122,7 +145,7 @@ public class MySQLCore implements DBCore
     {
         try
         {
-            getConnection().createStatement().executeUpdate(query);
+            executeUpdate(query, false);
         }
         catch (SQLException ex)
         {
@@ -141,7 +164,7 @@ public class MySQLCore implements DBCore
     {
         try
         {
-            getConnection().createStatement().executeUpdate(query);
+            executeUpdate(query, false);
         }
         catch (SQLException ex)
         {
@@ -160,7 +183,7 @@ public class MySQLCore implements DBCore
     {
         try
         {
-            getConnection().createStatement().executeUpdate(query);
+            executeUpdate(query, false);
         }
         catch (SQLException ex)
         {
@@ -171,6 +194,175 @@ public class MySQLCore implements DBCore
         }
     }
 
+    /**
+     * Execute a select statement with bound parameters
+     * @param query
+     * @param params
+     * @return
+     */
+    public ResultSet select(String query, Object... params)
+    {
+        PooledConnection conn = null;
+
+        try
+        {
+            conn = pool.borrow();
+            return conn.track(conn.getStatements().prepare(query, params).executeQuery(), false);
+        }
+        catch (SQLException ex)
+        {
+            release(conn, ex);
+            log.severe("Error at SQL Query: " + ex.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Execute a select statement whose rows are fetched as the result set is read instead of all at once.
+     * Connector/J only streams rows with a fetch size of Integer.MIN_VALUE, unless useCursorFetch is set in the connection url.
+     * @param query
+     * @param fetchSize how many rows to fetch per round trip when cursor fetching is enabled
+     * @return
+     */
+    public ResultSet stream(String query, int fetchSize)
+    {
+        PooledConnection conn = null;
+
+        try
+        {
+            conn = pool.borrow();
+            PreparedStatement statement = conn.getStatements().prepare(query);
+            statement.setFetchSize(database.contains("useCursorFetch=true") ? fetchSize : Integer.MIN_VALUE);
+            return conn.track(statement.executeQuery(), false);
+        }
+        catch (SQLException ex)
+        {
+            release(conn, ex);
+            log.severe("Error at SQL Query: " + ex.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Execute an insert statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public void insert(String query, Object... params)
+    {
+        try
+        {
+            executeUpdate(query, true, params);
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL INSERT Query: " + ex);
+        }
+    }
+
+    /**
+     * Execute an update statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public void update(String query, Object... params)
+    {
+        try
+        {
+            executeUpdate(query, true, params);
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL UPDATE Query: " + ex);
+        }
+    }
+
+    /**
+     * Execute a delete statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public void delete(String query, Object... params)
+    {
+        try
+        {
+            executeUpdate(query, true, params);
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL DELETE Query: " + ex);
+        }
+    }
+
+    /**
+     * Execute all statements of a batch, in order, in one transaction.
+     * A lost connection is only retried when nothing of the batch had been sent yet, the rows may have been committed otherwise.
+     * @param batch
+     * @return whether the batch was committed, false if it failed and was rolled back
+     */
+    public boolean executeBatch(Batch batch)
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            PooledConnection conn = null;
+            boolean sent = false;
+
+            try
+            {
+                conn = pool.borrow();
+                Connection raw = conn.getConnection();
+                raw.setAutoCommit(false);
+
+                try
+                {
+                    sent = true;
+                    batch.execute(conn.getStatements());
+                    raw.commit();
+                }
+                catch (SQLException ex)
+                {
+                    raw.rollback();
+                    throw ex;
+                }
+                finally
+                {
+                    raw.setAutoCommit(true);
+                }
+
+                conn.release();
+                return true;
+            }
+            catch (SQLException ex)
+            {
+                release(conn, ex);
+
+                if (attempt > 0 || conn == null || sent || !PooledConnection.isConnectionError(ex))
+                {
+                    if (sent && PooledConnection.isConnectionError(ex))
+                    {
+                        lostAfterSend.set(true);
+                    }
+
+                    log.severe("Error at SQL batch: " + ex);
+                    return false;
+                }
+
+                log.warning("Lost database connection, retrying on a new one");
+            }
+        }
+    }
+
+    /**
+     * Writes are spread over pooled connections, so grouped writes are simply run one after another, each committing on its own
+     * @param work
+     */
+    public void transaction(Runnable work)
+    {
+        work.run();
+    }
+
     /**
      * Execute a statement
      * @param query
@@ -178,13 +370,28 @@ public class MySQLCore implements DBCore
      */
     public Boolean execute(String query)
     {
+        PooledConnection conn = null;
+
         try
         {
-            getConnection().createStatement().execute(query);
+            conn = pool.borrow();
+            Statement statement = conn.getConnection().createStatement();
+
+            try
+            {
+                statement.execute(query);
+            }
+            finally
+            {
+                statement.close();
+            }
+
+            conn.release();
             return true;
         }
         catch (SQLException ex)
         {
+            release(conn, ex);
             log.severe(ex.getMessage());
             return false;
         }
@@ -197,15 +404,143 @@ public class MySQLCore implements DBCore
      */
     public Boolean existsTable(String table)
     {
+        PooledConnection conn = null;
+
         try
         {
-            ResultSet tables = getConnection().getMetaData().getTables(null, null, table, null);
-            return tables.next();
+            conn = pool.borrow();
+            ResultSet tables = conn.getConnection().getMetaData().getTables(null, null, table, null);
+
+            boolean exists;
+
+            try
+            {
+                exists = tables.next();
+            }
+            finally
+            {
+                tables.close();
+            }
+
+            conn.release();
+            return exists;
         }
         catch (SQLException e)
         {
+            release(conn, e);
             log.severe("Failed to check if table '" + table + "' exists: " + e.getMessage());
             return false;
         }
     }
+
+    /**
+     * Run a write, retrying once on a fresh connection if the one borrowed turned out to be dead before the write was sent.
+     * Once the write has been sent it is never retried, a lost reply does not mean the server did not apply it.
+     * @param query
+     * @param prepared whether to use a cached prepared statement
+     * @param params
+     * @throws SQLException
+     */
+    private void executeUpdate(String query, boolean prepared, Object... params) throws SQLException
+    {
+        for (int attempt = 0; ; attempt++)
+        {
+            PooledConnection conn;
+
+            try
+            {
+                conn = pool.borrow();
+            }
+            catch (SQLException ex)
+            {
+                connectionLost.set(true);
+                throw ex;
+            }
+
+            boolean sent = false;
+
+            try
+            {
+                if (!prepared)
+                {
+                    Statement statement = conn.getConnection().createStatement();
+
+                    try
+                    {
+                        sent = true;
+                        statement.executeUpdate(query);
+                    }
+                    finally
+                    {
+                        statement.close();
+                    }
+                }
+                else
+                {
+                    PreparedStatement statement = conn.getStatements().prepare(query, params);
+                    sent = true;
+                    statement.executeUpdate();
+                }
+
+                conn.release();
+                return;
+            }
+            catch (SQLException ex)
+            {
+                conn.failed(ex);
+                conn.release();
+
+                if (attempt > 0 || sent || !PooledConnection.isConnectionError(ex))
+                {
+                    if (PooledConnection.isConnectionError(ex))
+                    {
+                        connectionLost.set(true);
+
+                        if (sent)
+                        {
+                            lostAfterSend.set(true);
+                        }
+                    }
+
+                    throw ex;
+                }
+
+                log.warning("Lost database connection, retrying on a new one");
+            }
+        }
+    }
+
+    /**
+     * @return whether a statement run on this thread since the last call could not reach the database
+     */
+    public boolean takeConnectionLost()
+    {
+        boolean lost = Boolean.TRUE.equals(connectionLost.get());
+        connectionLost.remove();
+        lostAfterSend.remove();
+        return lost;
+    }
+
+    /**
+     * Cleared by takeConnectionLost, so it must be checked before it
+     * @return whether the connection was lost after a write on this thread had been sent, the write may have been applied
+     */
+    public boolean isLostAfterSend()
+    {
+        return Boolean.TRUE.equals(lostAfterSend.get());
+    }
+
+    private void release(PooledConnection conn, SQLException ex)
+    {
+        if (conn == null || PooledConnection.isConnectionError(ex))
+        {
+            connectionLost.set(true);
+        }
+
+        if (conn != null)
+        {
+            conn.failed(ex);
+            conn.release();
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.logging.Level;
+
+/**
+ * Caches the integer ids the kill log stores player names and clan tags against.
+ * Ids are generated by the database when the kill batch that first uses a name inserts it,
+ * and only enter the cache once they have been read back from a committed sc_kill_names row.
+ *
+ * @author phaed
+ */
+public class NameDictionary
+{
+    public static final String PLAYER = "p";
+    public static final String CLAN = "c";
+    private final DBCore core;
+    private final HashMap<String, Integer> players = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> clans = new HashMap<String, Integer>();
+
+    /**
+     * @param core
+     */
+    public NameDictionary(DBCore core)
+    {
+        this.core = core;
+    }
+
+    /**
+     * Read all ids from the database
+     */
+    public synchronized void load()
+    {
+        players.clear();
+        clans.clear();
+        read(core.select("SELECT id, kind, name FROM `sc_kill_names`;", new Object[0]));
+    }
+
+    /**
+     * Read the ids of names missing from the cache. Reads only see committed rows, so names whose kill batch has not been committed yet,
+     * or was rolled back, stay out of the cache and are looked up again by the next batch.
+     *
+     * @param kind PLAYER or CLAN
+     * @param names
+     */
+    public synchronized void load(String kind, Collection<String> names)
+    {
+        for (String name : names)
+        {
+            if (find(kind, name) == null)
+            {
+                read(core.select("SELECT id, kind, name FROM `sc_kill_names` WHERE kind = ? AND name = ?;", kind, name));
+            }
+        }
+    }
+
+    private void read(ResultSet res)
+    {
+        if (res == null)
+        {
+            return;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                getIds(res.getString("kind")).put(res.getString("name").toLowerCase(), res.getInt("id"));
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read kill name ids", ex);
+        }
+        finally
+        {
+            try
+            {
+                res.close();
+            }
+            catch (SQLException ex)
+            {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * @param kind PLAYER or CLAN
+     * @param name matched ignoring case
+     * @return the cached id, null if the name is not cached
+     */
+    public synchronized Integer find(String kind, String name)
+    {
+        return getIds(kind).get(name.toLowerCase());
+    }
+
+    private HashMap<String, Integer> getIds(String kind)
+    {
+        return PLAYER.equals(kind) ? players : clans;
+    }
+}
@@ -0,0 +1,234 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A physical connection owned by a ConnectionPool, along with its prepared statements
+ *
+ * @author phaed
+ */
+public class PooledConnection
+{
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final StatementCache statements;
+    private long lastUsed;
+    private boolean broken;
+
+    /**
+     * @param pool
+     * @param connection
+     */
+    PooledConnection(ConnectionPool pool, Connection connection)
+    {
+        this.pool = pool;
+        this.connection = connection;
+        this.statements = new StatementCache(connection);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the physical connection
+     */
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * @return the prepared statements of this connection
+     */
+    public StatementCache getStatements()
+    {
+        return statements;
+    }
+
+    /**
+     * @return when the connection was last handed back to the pool
+     */
+    long getLastUsed()
+    {
+        return lastUsed;
+    }
+
+    void touch()
+    {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * @return whether the connection has been marked as unusable
+     */
+    boolean isBroken()
+    {
+        return broken;
+    }
+
+    /**
+     * Mark the connection as unusable, it will be closed instead of being returned to the pool
+     */
+    public void invalidate()
+    {
+        broken = true;
+    }
+
+    /**
+     * Record a failure, invalidating the connection if it was caused by the link to the server
+     *
+     * @param ex
+     */
+    public void failed(SQLException ex)
+    {
+        if (isConnectionError(ex))
+        {
+            invalidate();
+        }
+    }
+
+    /**
+     * Close the physical connection
+     */
+    void destroy()
+    {
+        statements.clear();
+
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException ex)
+        {
+            // already closed
+        }
+    }
+
+    /**
+     * Return the connection to the pool
+     */
+    public void release()
+    {
+        pool.release(this);
+    }
+
+    /**
+     * Wrap the connection so that closing it returns it to the pool instead
+     *
+     * @return
+     */
+    public Connection proxy()
+    {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, new InvocationHandler()
+        {
+            private boolean released;
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                String name = method.getName();
+
+                if (name.equals("close"))
+                {
+                    if (!released)
+                    {
+                        released = true;
+                        release();
+                    }
+
+                    return null;
+                }
+
+                if (name.equals("isClosed") && released)
+                {
+                    return true;
+                }
+
+                if (released)
+                {
+                    throw new SQLException("Connection has been returned to the pool");
+                }
+
+                return forward(connection, method, args);
+            }
+        });
+    }
+
+    /**
+     * Wrap a result set so that closing it returns the connection to the pool
+     *
+     * @param res
+     * @param closeStatement whether the statement should be closed along with the result set, false for cached statements
+     * @return
+     */
+    public ResultSet track(final ResultSet res, final boolean closeStatement)
+    {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[]{ResultSet.class}, new InvocationHandler()
+        {
+            private boolean released;
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if (method.getName().equals("close"))
+                {
+                    if (!released)
+                    {
+                        released = true;
+
+                        try
+                        {
+                            Statement statement = res.getStatement();
+                            res.close();
+
+                            if (closeStatement && statement != null)
+                            {
+                                statement.close();
+                            }
+                        }
+                        finally
+                        {
+                            release();
+                        }
+                    }
+
+                    return null;
+                }
+
+                return forward(res, method, args);
+            }
+        });
+    }
+
+    private Object forward(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException ex)
+        {
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof SQLException)
+            {
+                failed((SQLException) cause);
+            }
+
+            throw cause;
+        }
+    }
+
+    /**
+     * @param ex
+     * @return whether the exception means the link to the server was lost
+     */
+    public static boolean isConnectionError(SQLException ex)
+    {
+        String state = ex.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+}
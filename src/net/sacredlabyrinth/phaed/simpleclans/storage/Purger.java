@@ -0,0 +1,247 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.Clan;
+import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
+import net.sacredlabyrinth.phaed.simpleclans.Helper;
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+import net.sacredlabyrinth.phaed.simpleclans.managers.SettingsManager;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Purges inactive clans and then inactive players while the server runs, a chunk at a time.
+ * Candidates are picked from storage on the storage thread, in order of last use,
+ * then checked against what is in memory and evicted on the main thread, which also queues their deletion.
+ *
+ * @author phaed
+ */
+public class Purger
+{
+    /**
+     * Each chunk deletes with IN lists, this keeps them under the SQLite limit on statement parameters
+     */
+    private static final int MAX_CHUNK = 400;
+    private final SimpleClans plugin;
+    private final StorageRepository repository;
+    private final WriteQueue writes;
+    private final int chunkSize;
+    private boolean running;
+    private volatile boolean stopped;
+    private long clanCutoff;
+    private long playerCutoff;
+    private long started;
+    private int purgedClans;
+    private int purgedPlayers;
+
+    /**
+     * @param repository
+     * @param writes the queue candidates are selected on
+     * @param chunkSize the most clans or players purged per chunk
+     */
+    public Purger(StorageRepository repository, WriteQueue writes, int chunkSize)
+    {
+        this.plugin = SimpleClans.getInstance();
+        this.repository = repository;
+        this.writes = writes;
+        this.chunkSize = Math.max(1, Math.min(MAX_CHUNK, chunkSize));
+    }
+
+    /**
+     * Start a purge, must be called from the main thread
+     *
+     * @return false if a purge is already in progress
+     */
+    public boolean start()
+    {
+        if (running || stopped)
+        {
+            return false;
+        }
+
+        SettingsManager settings = plugin.getSettingsManager();
+        long now = System.currentTimeMillis();
+
+        running = true;
+        started = now;
+        purgedClans = 0;
+        purgedPlayers = 0;
+        clanCutoff = now - (Math.min(settings.getPurgeClan(), settings.getPurgeUnverified()) + 1) * KillRollups.DAY;
+        playerCutoff = now - (settings.getPurgePlayers() + 1) * KillRollups.DAY;
+
+        writes.add(null, new Chunk(true, Long.MIN_VALUE, ""));
+        return true;
+    }
+
+    /**
+     * Stop the purge after the current chunk, used on shutdown
+     */
+    public void stop()
+    {
+        stopped = true;
+    }
+
+    /**
+     * Runs on the main thread with the candidates of one chunk
+     */
+    private void evict(Chunk chunk, List<String> names, boolean more)
+    {
+        if (stopped)
+        {
+            running = false;
+            return;
+        }
+
+        List<String> purge = chunk.clans ? evictClans(names) : evictClanPlayers(names);
+
+        if (chunk.clans)
+        {
+            purgedClans += purge.size();
+        }
+        else
+        {
+            purgedPlayers += purge.size();
+        }
+
+        if (more)
+        {
+            writes.add(null, chunk);
+        }
+        else if (chunk.clans)
+        {
+            writes.add(null, new Chunk(false, Long.MIN_VALUE, ""));
+        }
+        else
+        {
+            running = false;
+
+            if (purgedClans + purgedPlayers > 0)
+            {
+                SimpleClans.log(MessageFormat.format("Purged {0} clans and {1} players in {2} ms", purgedClans, purgedPlayers, System.currentTimeMillis() - started));
+            }
+        }
+    }
+
+    private List<String> evictClans(List<String> tags)
+    {
+        SettingsManager settings = plugin.getSettingsManager();
+        List<String> purge = new ArrayList<String>();
+
+        for (String tag : tags)
+        {
+            Clan clan = plugin.getClanManager().getClan(tag);
+
+            if (clan == null)
+            {
+                continue;
+            }
+
+            int days = clan.isVerified() ? settings.getPurgeClan() : settings.getPurgeUnverified();
+
+            if (clan.getInactiveDays() > days)
+            {
+                SimpleClans.log(MessageFormat.format(plugin.getLang().getString("purging.clan"), clan.getName()));
+                clan.purge();
+                purge.add(tag);
+            }
+        }
+
+        if (!purge.isEmpty())
+        {
+            plugin.getStorageManager().purgeClans(purge);
+        }
+
+        return purge;
+    }
+
+    private List<String> evictClanPlayers(List<String> names)
+    {
+        int days = plugin.getSettingsManager().getPurgePlayers();
+        List<String> purge = new ArrayList<String>();
+
+        for (String name : names)
+        {
+            if (Helper.isOnline(name))
+            {
+                continue;
+            }
+
+            ClanPlayer cp = plugin.getClanManager().getLoadedClanPlayer(name);
+
+            if (cp == null)
+            {
+                // not in memory, the row is current unless a write for it is still queued
+
+                if (!plugin.getSettingsManager().isLazyPlayers() || plugin.getStorageManager().isWritePending(name))
+                {
+                    continue;
+                }
+            }
+            else
+            {
+                if (cp.getInactiveDays() <= days)
+                {
+                    continue;
+                }
+
+                plugin.getClanManager().evictClanPlayer(cp);
+            }
+
+            SimpleClans.log(MessageFormat.format(plugin.getLang().getString("purging.player.data"), name));
+            purge.add(name);
+        }
+
+        if (!purge.isEmpty())
+        {
+            plugin.getStorageManager().purgeClanPlayers(purge);
+        }
+
+        return purge;
+    }
+
+    /**
+     * Selects the next chunk of candidates on the storage thread, resuming after the last row of the previous chunk
+     */
+    private class Chunk implements Runnable
+    {
+        private final boolean clans;
+        private long lastTime;
+        private String lastName;
+
+        private Chunk(boolean clans, long lastTime, String lastName)
+        {
+            this.clans = clans;
+            this.lastTime = lastTime;
+            this.lastName = lastName;
+        }
+
+        public void run()
+        {
+            if (stopped)
+            {
+                return;
+            }
+
+            final List<String> names = new ArrayList<String>();
+            List<Object[]> rows = clans ? repository.findInactiveClans(clanCutoff, lastTime, lastName, chunkSize) : repository.findInactiveClanPlayers(playerCutoff, lastTime, lastName, chunkSize);
+
+            for (Object[] row : rows)
+            {
+                lastName = (String) row[0];
+                lastTime = (Long) row[1];
+                names.add(lastName);
+            }
+
+            final boolean more = names.size() == chunkSize;
+
+            plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable()
+            {
+                public void run()
+                {
+                    evict(Chunk.this, names, more);
+                }
+            });
+        }
+    }
+}
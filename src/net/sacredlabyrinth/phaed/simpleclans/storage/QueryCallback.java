@@ -0,0 +1,14 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+/**
+ * Receives the result of a query that ran off the main thread, called back on the main thread
+ *
+ * @author phaed
+ */
+public interface QueryCallback<T>
+{
+    /**
+     * @param result
+     */
+    void done(T result);
+}
@@ -5,8 +5,11 @@ import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.util.logging.Logger;
 
 /**
@@ -17,6 +20,11 @@ public class SQLiteCore implements DBCore
 {
     private Logger log;
     private Connection connection;
+    private StatementCache statements;
+    private Connection reader;
+    private StatementCache readStatements;
+    private boolean wal;
+    private boolean inTransaction;
     private String dbLocation;
     private String dbName;
     private File file;
@@ -26,9 +34,20 @@ public class SQLiteCore implements DBCore
      * @param dbLocation
      */
     public SQLiteCore(String dbLocation)
+    {
+        this(dbLocation, false);
+    }
+
+    /**
+     *
+     * @param dbLocation
+     * @param wal whether to use write-ahead logging, with a separate connection for reads
+     */
+    public SQLiteCore(String dbLocation, boolean wal)
     {
         this.dbName = "SimpleClans";
         this.dbLocation = dbLocation;
+        this.wal = wal;
         this.log = SimpleClans.getLogger();
 
         initialize();
@@ -57,6 +76,15 @@ public class SQLiteCore implements DBCore
         {
             Class.forName("org.sqlite.JDBC");
             connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+            statements = new StatementCache(connection);
+
+            if (wal)
+            {
+                pragma(connection, "journal_mode = WAL", "synchronous = NORMAL", "temp_store = MEMORY", "cache_size = -8000", "busy_timeout = 5000");
+                reader = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+                pragma(reader, "busy_timeout = 5000", "cache_size = -8000");
+                readStatements = new StatementCache(reader);
+            }
         }
         catch (SQLException ex)
         {
@@ -68,6 +96,23 @@ public class SQLiteCore implements DBCore
         }
     }
 
+    private void pragma(Connection conn, String... pragmas) throws SQLException
+    {
+        Statement statement = conn.createStatement();
+
+        try
+        {
+            for (String pragma : pragmas)
+            {
+                statement.execute("PRAGMA " + pragma + ";");
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
     /**
      * @return connection
      */
@@ -96,8 +141,15 @@ public class SQLiteCore implements DBCore
     {
         try
         {
+            if (reader != null)
+            {
+                readStatements.clear();
+                reader.close();
+            }
+
             if (connection != null)
             {
+                statements.clear();
                 connection.close();
             }
         }
@@ -183,6 +235,247 @@ public class SQLiteCore implements DBCore
         }
     }
 
+    /**
+     * Execute a select statement with bound parameters.
+     * The rows are all read before the lock is let go, the connection is not safe to step from several threads
+     * and without write-ahead logging it is the one writes run on.
+     * @param query
+     * @param params
+     * @return
+     */
+    public ResultSet select(String query, Object... params)
+    {
+        synchronized (getReadLock())
+        {
+            try
+            {
+                return MaterializedResultSet.copy(getReadStatements().prepare(query, params).executeQuery());
+            }
+            catch (SQLException ex)
+            {
+                log.severe("Error at SQL Query: " + ex.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Execute a select statement whose rows are fetched as the result set is read instead of all at once.
+     * The rows still all have to be read under the lock, as with select.
+     * @param query
+     * @param fetchSize how many rows to fetch per round trip
+     * @return
+     */
+    public ResultSet stream(String query, int fetchSize)
+    {
+        synchronized (getReadLock())
+        {
+            try
+            {
+                PreparedStatement statement = getReadStatements().prepare(query);
+                statement.setFetchSize(fetchSize);
+                return MaterializedResultSet.copy(statement.executeQuery());
+            }
+            catch (SQLException ex)
+            {
+                log.severe("Error at SQL Query: " + ex.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Execute an insert statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public synchronized void insert(String query, Object... params)
+    {
+        try
+        {
+            getStatements().prepare(query, params).executeUpdate();
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL INSERT Query: " + ex);
+        }
+    }
+
+    /**
+     * Execute an update statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public synchronized void update(String query, Object... params)
+    {
+        try
+        {
+            getStatements().prepare(query, params).executeUpdate();
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL UPDATE Query: " + ex);
+        }
+    }
+
+    /**
+     * Execute a delete statement with bound parameters
+     * @param query
+     * @param params
+     */
+    public synchronized void delete(String query, Object... params)
+    {
+        try
+        {
+            getStatements().prepare(query, params).executeUpdate();
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL DELETE Query: " + ex);
+        }
+    }
+
+    /**
+     * Execute all statements of a batch, in order, in one transaction
+     * @param batch
+     * @return whether the batch was committed, false if it failed and was rolled back
+     */
+    public synchronized boolean executeBatch(Batch batch)
+    {
+        try
+        {
+            StatementCache cache = getStatements();
+            Connection conn = cache.getConnection();
+
+            if (inTransaction)
+            {
+                Savepoint savepoint = conn.setSavepoint();
+
+                try
+                {
+                    batch.execute(cache);
+                    conn.releaseSavepoint(savepoint);
+                }
+                catch (SQLException ex)
+                {
+                    conn.rollback(savepoint);
+                    throw ex;
+                }
+
+                return true;
+            }
+
+            conn.setAutoCommit(false);
+
+            try
+            {
+                batch.execute(cache);
+                conn.commit();
+            }
+            catch (SQLException ex)
+            {
+                conn.rollback();
+                throw ex;
+            }
+            finally
+            {
+                conn.setAutoCommit(true);
+            }
+
+            return true;
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Error at SQL batch: " + ex);
+            return false;
+        }
+    }
+
+    /**
+     * Run a group of writes in one transaction, so they share a single commit
+     * @param work
+     */
+    public synchronized void transaction(Runnable work)
+    {
+        Connection conn = getConnection();
+
+        if (conn == null || inTransaction)
+        {
+            work.run();
+            return;
+        }
+
+        try
+        {
+            conn.setAutoCommit(false);
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Failed to start transaction: " + ex);
+            work.run();
+            return;
+        }
+
+        inTransaction = true;
+
+        try
+        {
+            work.run();
+            conn.commit();
+        }
+        catch (SQLException ex)
+        {
+            log.severe("Failed to commit grouped writes: " + ex);
+
+            try
+            {
+                conn.rollback();
+            }
+            catch (SQLException e)
+            {
+                log.severe("Failed to roll back grouped writes: " + e);
+            }
+        }
+        finally
+        {
+            inTransaction = false;
+
+            try
+            {
+                conn.setAutoCommit(true);
+            }
+            catch (SQLException ex)
+            {
+                log.severe("Failed to end transaction: " + ex);
+            }
+        }
+    }
+
+    private StatementCache getStatements() throws SQLException
+    {
+        if (getConnection() == null)
+        {
+            throw new SQLException("No database connection");
+        }
+
+        return statements;
+    }
+
+    /**
+     * Reads use their own connection in WAL mode, so they are not held up by a write transaction
+     */
+    private StatementCache getReadStatements() throws SQLException
+    {
+        return readStatements != null ? readStatements : getStatements();
+    }
+
+    private Object getReadLock()
+    {
+        return readStatements != null ? readStatements : this;
+    }
+
     /**
      * Execute a statement
      * @param query
@@ -220,4 +513,22 @@ public class SQLiteCore implements DBCore
             return false;
         }
     }
+
+    /**
+     * The database is a local file, it is never out of reach
+     * @return false
+     */
+    public boolean takeConnectionLost()
+    {
+        return false;
+    }
+
+    /**
+     * The database is a local file, it is never out of reach
+     * @return false
+     */
+    public boolean isLostAfterSend()
+    {
+        return false;
+    }
 }
@@ -0,0 +1,244 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Brings the database schema up to date by applying, in order, every migration newer than the version recorded in sc_schema.
+ * On SQLite each step and its version row are written in one transaction. MySQL cannot roll back schema changes,
+ * so there every statement that already took effect is skipped, and a step that failed halfway picks up where it stopped.
+ *
+ * @author phaed
+ */
+public class SchemaMigrator
+{
+    private static final Pattern CREATE_INDEX = Pattern.compile("^CREATE INDEX `(\\w+)` ON `(\\w+)`");
+    private static final Pattern ADD_COLUMN = Pattern.compile("^ALTER TABLE `(\\w+)` ADD COLUMN `(\\w+)`");
+    private static final Pattern RENAME_TABLE = Pattern.compile("^ALTER TABLE `(\\w+)` RENAME TO `(\\w+)`");
+    private static final Pattern DROP_TABLE = Pattern.compile("^DROP TABLE `(\\w+)`");
+    private static final Pattern INSERT_SELECT = Pattern.compile("^INSERT INTO `(\\w+)` .* SELECT ");
+    private static final String INSERT_VERSION = "INSERT INTO `sc_schema` ( `version`, `applied`) VALUES ( ?, ?);";
+    private final DBCore core;
+    private final boolean useMysql;
+    private final List<Migration> migrations = new ArrayList<Migration>();
+
+    /**
+     * @param core
+     * @param useMysql
+     */
+    public SchemaMigrator(DBCore core, boolean useMysql)
+    {
+        this.core = core;
+        this.useMysql = useMysql;
+    }
+
+    /**
+     * Register a migration step
+     *
+     * @param migration
+     * @return this
+     */
+    public SchemaMigrator add(Migration migration)
+    {
+        migrations.add(migration);
+        return this;
+    }
+
+    /**
+     * @return the version recorded in the database, 0 for a database that predates versioning
+     */
+    public int getVersion()
+    {
+        return queryInt("SELECT MAX(`version`) FROM `sc_schema`;");
+    }
+
+    /**
+     * @param table
+     * @param column
+     * @return whether the MySQL table has the column
+     */
+    public boolean hasColumn(String table, String column)
+    {
+        return queryInt("SELECT COUNT(*) FROM information_schema.columns WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?;", table, column) > 0;
+    }
+
+    /**
+     * @param table
+     * @param index
+     * @return whether the MySQL table has the index
+     */
+    public boolean hasIndex(String table, String index)
+    {
+        return queryInt("SELECT COUNT(*) FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?;", table, index) > 0;
+    }
+
+    /**
+     * @param table
+     * @return whether the table exists
+     */
+    public boolean hasTable(String table)
+    {
+        return core.existsTable(table);
+    }
+
+    private int queryInt(String query, Object... params)
+    {
+        ResultSet res = core.select(query, params);
+
+        if (res == null)
+        {
+            return 0;
+        }
+
+        try
+        {
+            return res.next() ? res.getInt(1) : 0;
+        }
+        catch (SQLException ex)
+        {
+            return 0;
+        }
+        finally
+        {
+            try
+            {
+                res.close();
+            }
+            catch (SQLException ex)
+            {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Apply all pending migrations, stopping at the first one that fails
+     *
+     * @return whether the schema is now up to date
+     */
+    public boolean migrate()
+    {
+        core.execute("CREATE TABLE IF NOT EXISTS `sc_schema` ( `version` int(11) NOT NULL, `applied` bigint NOT NULL);");
+
+        Collections.sort(migrations, new Comparator<Migration>()
+        {
+            public int compare(Migration m1, Migration m2)
+            {
+                return m1.getVersion() - m2.getVersion();
+            }
+        });
+
+        int current = getVersion();
+
+        for (Migration migration : migrations)
+        {
+            if (migration.getVersion() <= current)
+            {
+                continue;
+            }
+
+            SimpleClans.log(MessageFormat.format("Updating database to version {0}: {1}", migration.getVersion(), migration.getDescription()));
+
+            if (!(useMysql ? applyResumable(migration) : applyAtomic(migration)))
+            {
+                SimpleClans.getLogger().severe(MessageFormat.format("Database update to version {0} failed, staying at version {1}", migration.getVersion(), current));
+                return false;
+            }
+
+            current = migration.getVersion();
+        }
+
+        return true;
+    }
+
+    /**
+     * Run the statements and the version row in one transaction, a failure leaves the database as it was
+     */
+    private boolean applyAtomic(Migration migration)
+    {
+        Batch batch = new Batch();
+
+        for (String statement : migration.getStatements(useMysql))
+        {
+            batch.add(statement);
+        }
+
+        batch.add(INSERT_VERSION, migration.getVersion(), System.currentTimeMillis());
+        return core.executeBatch(batch);
+    }
+
+    /**
+     * Run the statements one by one, skipping those that already took effect on an earlier attempt
+     */
+    private boolean applyResumable(Migration migration)
+    {
+        for (String statement : migration.getStatements(useMysql))
+        {
+            if (migration.isApplied(this, statement) || isApplied(statement))
+            {
+                continue;
+            }
+
+            if (!core.execute(statement))
+            {
+                return false;
+            }
+        }
+
+        core.insert(INSERT_VERSION, migration.getVersion(), System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Recognizes statements whose effect can be seen in the schema, CREATE TABLE statements are expected to use IF NOT EXISTS
+     */
+    private boolean isApplied(String statement)
+    {
+        Matcher m = CREATE_INDEX.matcher(statement);
+
+        if (m.find())
+        {
+            return hasIndex(m.group(2), m.group(1));
+        }
+
+        m = ADD_COLUMN.matcher(statement);
+
+        if (m.find())
+        {
+            return hasColumn(m.group(1), m.group(2));
+        }
+
+        m = RENAME_TABLE.matcher(statement);
+
+        if (m.find())
+        {
+            return !hasTable(m.group(1));
+        }
+
+        m = DROP_TABLE.matcher(statement);
+
+        if (m.find())
+        {
+            return !hasTable(m.group(1));
+        }
+
+        m = INSERT_SELECT.matcher(statement);
+
+        if (m.find())
+        {
+            // backfills of tables created by the same step, one INSERT ... SELECT either fills the table or leaves it empty
+            return queryInt("SELECT COUNT(*) FROM `" + m.group(1) + "`;") > 0;
+        }
+
+        return false;
+    }
+}
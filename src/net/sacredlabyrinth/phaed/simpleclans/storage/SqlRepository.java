@@ -0,0 +1,919 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.Helper;
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Keeps clans, clan players and kills in the MySQL or SQLite database behind a DBCore
+ *
+ * @author phaed
+ */
+public class SqlRepository implements StorageRepository
+{
+    private static final int FETCH_SIZE = 1000;
+    private final DBCore core;
+    private final boolean useMysql;
+    private final boolean keepPacked;
+    private final NameDictionary names;
+
+    /**
+     * @param core
+     * @param useMysql
+     * @param keepPacked whether the packed sc_clans columns are kept up to date alongside the relation and bulletin board tables
+     */
+    public SqlRepository(DBCore core, boolean useMysql, boolean keepPacked)
+    {
+        this.core = core;
+        this.useMysql = useMysql;
+        this.keepPacked = keepPacked;
+        this.names = new NameDictionary(core);
+    }
+
+    /**
+     * @return the database connection the repository runs on
+     */
+    public DBCore getCore()
+    {
+        return core;
+    }
+
+    public boolean open()
+    {
+        if (!core.checkConnection() || !getMigrator().migrate())
+        {
+            return false;
+        }
+
+        names.load();
+        unpackClanColumns();
+        return true;
+    }
+
+    public void close()
+    {
+        core.close();
+    }
+
+    public void transaction(Runnable work)
+    {
+        core.transaction(work);
+    }
+
+    /**
+     * The schema history, each step is applied once and in order, so existing steps must never be changed, only new ones added
+     */
+    private SchemaMigrator getMigrator()
+    {
+        SchemaMigrator migrator = new SchemaMigrator(core, useMysql);
+
+        migrator.add(new Migration(1, "create tables", new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20) NOT NULL auto_increment, `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, PRIMARY KEY  (`id`), UNIQUE KEY `uq_simpleclans_1` (`tag`));",
+            "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20) NOT NULL auto_increment, `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE KEY `uq_sc_players_1` (`name`));",
+            "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20) NOT NULL auto_increment, `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));"
+        }, new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_clans` ( `id` bigint(20), `verified` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `color_tag` varchar(25) NOT NULL, `name` varchar(100) NOT NULL, `friendly_fire` tinyint(1) default '0', `founded` bigint NOT NULL, `last_used` bigint NOT NULL, `packed_allies` text NOT NULL, `packed_rivals` text NOT NULL, `packed_bb` mediumtext NOT NULL, `cape_url` varchar(255) NOT NULL, `flags` text NOT NULL, PRIMARY KEY  (`id`), UNIQUE (`tag`));",
+            "CREATE TABLE IF NOT EXISTS `sc_players` ( `id` bigint(20), `name` varchar(16) NOT NULL, `leader` tinyint(1) default '0', `tag` varchar(25) NOT NULL, `friendly_fire` tinyint(1) default '0', `neutral_kills` int(11) default NULL, `rival_kills` int(11) default NULL, `civilian_kills` int(11) default NULL, `deaths` int(11) default NULL, `last_seen` bigint NOT NULL, `join_date` bigint NOT NULL, `trusted` tinyint(1) default '0', `flags` text NOT NULL, `packed_past_clans` text, PRIMARY KEY  (`id`), UNIQUE (`name`));",
+            "CREATE TABLE IF NOT EXISTS `sc_kills` ( `kill_id` bigint(20), `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, PRIMARY KEY  (`kill_id`));"
+        }));
+
+        migrator.add(new Migration(2, "index sc_kills",
+            "CREATE INDEX `ix_sc_kills_attacker_victim` ON `sc_kills` (`attacker`, `victim`);",
+            "CREATE INDEX `ix_sc_kills_attacker_victim_tag` ON `sc_kills` (`attacker`, `victim_tag`);",
+            "CREATE INDEX `ix_sc_kills_victim` ON `sc_kills` (`victim`);",
+            "CREATE INDEX `ix_sc_kills_attacker_tag` ON `sc_kills` (`attacker_tag`);",
+            "CREATE INDEX `ix_sc_kills_victim_tag` ON `sc_kills` (`victim_tag`);"));
+
+        migrator.add(new Migration(3, "kill count summaries",
+            "CREATE TABLE IF NOT EXISTS `sc_kill_counts` ( `attacker` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `kills` int(11) NOT NULL default '0', PRIMARY KEY  (`attacker`, `victim`));",
+            "CREATE TABLE IF NOT EXISTS `sc_clan_kill_counts` ( `attacker_tag` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kills` int(11) NOT NULL default '0', PRIMARY KEY  (`attacker_tag`, `victim_tag`));",
+            "CREATE INDEX `ix_sc_kill_counts_victim` ON `sc_kill_counts` (`victim`);",
+            "CREATE INDEX `ix_sc_clan_kill_counts_victim_tag` ON `sc_clan_kill_counts` (`victim_tag`);",
+            "INSERT INTO `sc_kill_counts` ( `attacker`, `victim`, `kills`) SELECT attacker, victim, count(*) FROM `sc_kills` GROUP BY attacker, victim;",
+            "INSERT INTO `sc_clan_kill_counts` ( `attacker_tag`, `victim_tag`, `kills`) SELECT attacker_tag, victim_tag, count(*) FROM `sc_kills` GROUP BY attacker_tag, victim_tag;"));
+
+        migrator.add(new Migration(4, "timestamped kills and kill buckets",
+            "ALTER TABLE `sc_kills` ADD COLUMN `created` bigint NOT NULL default '0';",
+            "CREATE INDEX `ix_sc_kills_created` ON `sc_kills` (`created`);",
+            "CREATE TABLE IF NOT EXISTS `sc_kill_buckets` ( `scope` varchar(1) NOT NULL, `name` varchar(25) NOT NULL, `resolution` varchar(1) NOT NULL, `bucket` bigint NOT NULL, `kills` int(11) NOT NULL default '0', `deaths` int(11) NOT NULL default '0', PRIMARY KEY  (`scope`, `name`, `resolution`, `bucket`));",
+            "CREATE INDEX `ix_sc_kill_buckets_bucket` ON `sc_kill_buckets` (`resolution`, `bucket`);"));
+
+        migrator.add(new Migration(5, "archived kill counts",
+            "CREATE TABLE IF NOT EXISTS `sc_kills_archive` ( `attacker` varchar(16) NOT NULL, `attacker_tag` varchar(16) NOT NULL, `victim` varchar(16) NOT NULL, `victim_tag` varchar(16) NOT NULL, `kill_type` varchar(1) NOT NULL, `kills` int(11) NOT NULL default '0', PRIMARY KEY  (`attacker`, `victim_tag`, `attacker_tag`, `victim`, `kill_type`));"));
+
+        migrator.add(new Migration(6, "index purge candidates",
+            "CREATE INDEX `ix_sc_clans_last_used` ON `sc_clans` (`last_used`, `tag`);",
+            "CREATE INDEX `ix_sc_players_last_seen` ON `sc_players` (`last_seen`, `name`);"));
+
+        migrator.add(new Migration(7, "clan relation and bulletin board tables", new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_clan_relations` ( `tag` varchar(25) NOT NULL, `relation` varchar(1) NOT NULL, `other_tag` varchar(25) NOT NULL, PRIMARY KEY  (`tag`, `relation`, `other_tag`));",
+            "CREATE TABLE IF NOT EXISTS `sc_bb` ( `id` bigint(20) NOT NULL auto_increment, `tag` varchar(25) NOT NULL, `msg` text NOT NULL, PRIMARY KEY  (`id`));",
+            "CREATE INDEX `ix_sc_bb_tag` ON `sc_bb` (`tag`, `id`);"
+        }, new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_clan_relations` ( `tag` varchar(25) NOT NULL, `relation` varchar(1) NOT NULL, `other_tag` varchar(25) NOT NULL, PRIMARY KEY  (`tag`, `relation`, `other_tag`));",
+            "CREATE TABLE IF NOT EXISTS `sc_bb` ( `id` INTEGER PRIMARY KEY, `tag` varchar(25) NOT NULL, `msg` text NOT NULL);",
+            "CREATE INDEX `ix_sc_bb_tag` ON `sc_bb` (`tag`, `id`);"
+        }));
+
+        String copyKills = "SELECT a.id, ac.id, v.id, vt.id, k.kill_type, k.created FROM `sc_kills` k JOIN `sc_kill_names` a ON a.kind = 'p' AND a.name = k.attacker JOIN `sc_kill_names` ac ON ac.kind = 'c' AND ac.name = k.attacker_tag JOIN `sc_kill_names` v ON v.kind = 'p' AND v.name = k.victim JOIN `sc_kill_names` vt ON vt.kind = 'c' AND vt.name = k.victim_tag";
+
+        migrator.add(new Migration(8, "kills by name id", new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_kill_names` ( `id` int(11) NOT NULL auto_increment, `kind` varchar(1) NOT NULL, `name` varchar(25) NOT NULL, PRIMARY KEY  (`id`), UNIQUE KEY `uq_sc_kill_names_1` (`kind`, `name`));",
+            "INSERT IGNORE INTO `sc_kill_names` ( `kind`, `name`) SELECT 'p', attacker FROM `sc_kills` UNION SELECT 'p', victim FROM `sc_kills`;",
+            "INSERT IGNORE INTO `sc_kill_names` ( `kind`, `name`) SELECT 'c', attacker_tag FROM `sc_kills` UNION SELECT 'c', victim_tag FROM `sc_kills`;",
+            "DROP TABLE IF EXISTS `sc_kills_ids`;",
+            "CREATE TABLE `sc_kills_ids` ( `kill_id` bigint(20) NOT NULL auto_increment, `attacker_id` int(11) NOT NULL, `attacker_clan_id` int(11) NOT NULL, `victim_id` int(11) NOT NULL, `victim_clan_id` int(11) NOT NULL, `kill_type` varchar(1) NOT NULL, `created` bigint NOT NULL default '0', PRIMARY KEY  (`kill_id`));",
+            "INSERT INTO `sc_kills_ids` ( `attacker_id`, `attacker_clan_id`, `victim_id`, `victim_clan_id`, `kill_type`, `created`) " + copyKills + " ORDER BY k.kill_id;",
+            "DROP TABLE `sc_kills`;",
+            "ALTER TABLE `sc_kills_ids` RENAME TO `sc_kills`;",
+            "CREATE INDEX `ix_sc_kills_attacker_id` ON `sc_kills` (`attacker_id`, `victim_clan_id`);",
+            "CREATE INDEX `ix_sc_kills_created` ON `sc_kills` (`created`);"
+        }, new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_kill_names` ( `id` INTEGER PRIMARY KEY, `kind` varchar(1) NOT NULL, `name` varchar(25) NOT NULL COLLATE NOCASE, UNIQUE (`kind`, `name`));",
+            "INSERT OR IGNORE INTO `sc_kill_names` ( `kind`, `name`) SELECT 'p', attacker FROM `sc_kills` UNION SELECT 'p', victim FROM `sc_kills`;",
+            "INSERT OR IGNORE INTO `sc_kill_names` ( `kind`, `name`) SELECT 'c', attacker_tag FROM `sc_kills` UNION SELECT 'c', victim_tag FROM `sc_kills`;",
+            "DROP TABLE IF EXISTS `sc_kills_ids`;",
+            "CREATE TABLE `sc_kills_ids` ( `kill_id` INTEGER PRIMARY KEY, `attacker_id` int(11) NOT NULL, `attacker_clan_id` int(11) NOT NULL, `victim_id` int(11) NOT NULL, `victim_clan_id` int(11) NOT NULL, `kill_type` varchar(1) NOT NULL, `created` bigint NOT NULL default '0');",
+            "INSERT INTO `sc_kills_ids` ( `attacker_id`, `attacker_clan_id`, `victim_id`, `victim_clan_id`, `kill_type`, `created`) " + copyKills + " ORDER BY k.rowid;",
+            "DROP TABLE `sc_kills`;",
+            "ALTER TABLE `sc_kills_ids` RENAME TO `sc_kills`;",
+            "CREATE INDEX `ix_sc_kills_attacker_id` ON `sc_kills` (`attacker_id`, `victim_clan_id`);",
+            "CREATE INDEX `ix_sc_kills_created` ON `sc_kills` (`created`);"
+        })
+        {
+            /**
+             * Once the old sc_kills is gone its rows are all in sc_kills_ids, only the rename and the indexes can be left to do
+             */
+            @Override
+            public boolean isApplied(SchemaMigrator migrator, String statement)
+            {
+                boolean copying = statement.startsWith("DROP TABLE") || statement.startsWith("CREATE TABLE `sc_kills_ids`") || statement.startsWith("INSERT INTO `sc_kills_ids`") || statement.contains("FROM `sc_kills`");
+                return copying && !migrator.hasColumn("sc_kills", "attacker");
+            }
+        });
+
+        migrator.add(new Migration(9, "change counter", new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_changes` ( `id` int(11) NOT NULL, `counter` bigint NOT NULL default '0', PRIMARY KEY  (`id`));",
+            "INSERT IGNORE INTO `sc_changes` ( `id`, `counter`) VALUES ( 1, 0);"
+        }, new String[]
+        {
+            "CREATE TABLE IF NOT EXISTS `sc_changes` ( `id` int(11) NOT NULL, `counter` bigint NOT NULL default '0', PRIMARY KEY  (`id`));",
+            "INSERT OR IGNORE INTO `sc_changes` ( `id`, `counter`) VALUES ( 1, 0);"
+        }));
+
+        migrator.add(new Migration(10, "row change times",
+            "ALTER TABLE `sc_clans` ADD COLUMN `changed` bigint NOT NULL default '0';",
+            "ALTER TABLE `sc_players` ADD COLUMN `changed` bigint NOT NULL default '0';",
+            "CREATE INDEX `ix_sc_clans_changed` ON `sc_clans` (`changed`);",
+            "CREATE INDEX `ix_sc_players_changed` ON `sc_players` (`changed`);",
+            "DROP TABLE IF EXISTS `sc_changes`;"));
+
+        // MySQL compares names ignoring case already, SQLite needs an index in that collation to look players up by name ignoring case
+        migrator.add(new Migration(11, "index player names ignoring case", new String[0], new String[]
+        {
+            "CREATE INDEX `ix_sc_players_name_nocase` ON `sc_players` (`name` COLLATE NOCASE);"
+        }));
+
+        return migrator;
+    }
+
+    /**
+     * Bring the relation and bulletin board tables in line with the packed allies, rivals and bulletin board columns of sc_clans.
+     * While the packed columns are kept up to date they only differ from the tables after the previous version wrote to the database,
+     * the packed values then replace the stored rows of that clan, and clans with all three columns empty get them filled from the tables.
+     * Otherwise packed values are moved into the tables and the columns emptied, after which the previous version no longer sees them.
+     */
+    private void unpackClanColumns()
+    {
+        HashMap<String, List<String>> allies = readLists("SELECT tag, other_tag AS value FROM `sc_clan_relations` WHERE relation = ?;", ALLY);
+        HashMap<String, List<String>> rivals = readLists("SELECT tag, other_tag AS value FROM `sc_clan_relations` WHERE relation = ?;", RIVAL);
+        HashMap<String, List<String>> bb = readLists("SELECT tag, msg AS value FROM `sc_bb` ORDER BY id;");
+
+        Batch batch = new Batch();
+        int moved = 0;
+        ResultSet res = core.select("SELECT tag, packed_allies, packed_rivals, packed_bb FROM `sc_clans`;", new Object[0]);
+
+        if (res == null)
+        {
+            return;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                String tag = res.getString("tag");
+                List<String> packedAllies = Helper.fromArray(res.getString("packed_allies").split("[|]"));
+                List<String> packedRivals = Helper.fromArray(res.getString("packed_rivals").split("[|]"));
+                List<String> packedBb = Helper.fromArray(res.getString("packed_bb").split("[|]"));
+                List<String> storedAllies = listOf(allies, tag);
+                List<String> storedRivals = listOf(rivals, tag);
+                List<String> storedBb = listOf(bb, tag);
+
+                if (packedAllies.isEmpty() && packedRivals.isEmpty() && packedBb.isEmpty())
+                {
+                    if (keepPacked && !(storedAllies.isEmpty() && storedRivals.isEmpty() && storedBb.isEmpty()))
+                    {
+                        batch.add("UPDATE `sc_clans` SET packed_allies = ?, packed_rivals = ?, packed_bb = ? WHERE tag = ?;", Helper.toMessage(storedAllies, "|"), Helper.toMessage(storedRivals, "|"), Helper.toMessage(storedBb, "|"), tag);
+                    }
+
+                    continue;
+                }
+
+                if (keepPacked && new HashSet<String>(packedAllies).equals(new HashSet<String>(storedAllies)) && new HashSet<String>(packedRivals).equals(new HashSet<String>(storedRivals)) && sameNewest(packedBb, storedBb))
+                {
+                    continue;
+                }
+
+                batch.add("DELETE FROM `sc_clan_relations` WHERE `tag` = ?;", tag);
+                batch.add("DELETE FROM `sc_bb` WHERE `tag` = ?;", tag);
+                batch.add("UPDATE `sc_clans` SET changed = ? WHERE tag = ?;", System.currentTimeMillis(), tag);
+
+                for (String ally : packedAllies)
+                {
+                    batch.add(insertRelationQuery(), tag, ALLY, ally);
+                }
+
+                for (String rival : packedRivals)
+                {
+                    batch.add(insertRelationQuery(), tag, RIVAL, rival);
+                }
+
+                for (String msg : packedBb)
+                {
+                    batch.add("INSERT INTO `sc_bb` ( `tag`, `msg`) VALUES ( ?, ?);", tag, msg);
+                }
+
+                if (!keepPacked)
+                {
+                    batch.add("UPDATE `sc_clans` SET packed_allies = '', packed_rivals = '', packed_bb = '' WHERE tag = ?;", tag);
+                }
+
+                moved++;
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read packed clan columns", ex);
+            return;
+        }
+        finally
+        {
+            close(res);
+        }
+
+        if (batch.size() > 0)
+        {
+            core.executeBatch(batch);
+        }
+
+        if (moved > 0)
+        {
+            SimpleClans.log(MessageFormat.format("Moved the allies, rivals and bulletin boards of {0} clans into their own tables", moved));
+        }
+    }
+
+    private List<String> listOf(HashMap<String, List<String>> lists, String tag)
+    {
+        List<String> values = lists.get(tag);
+        return values == null ? new ArrayList<String>() : values;
+    }
+
+    /**
+     * The packed bulletin board holds one message more than the table keeps, so only the newest messages both have are compared
+     */
+    private boolean sameNewest(List<String> packed, List<String> stored)
+    {
+        int n = Math.min(packed.size(), stored.size());
+        return packed.size() - stored.size() <= 1 && packed.subList(packed.size() - n, packed.size()).equals(stored.subList(stored.size() - n, stored.size()));
+    }
+
+    /**
+     * Clan rows carry the allies, rivals and bulletin board packed the way Clan imports them
+     */
+    public void readClans(RowHandler handler)
+    {
+        readClans("SELECT * FROM  `sc_clans`;", handler);
+    }
+
+    public void readClansChangedSince(long time, RowHandler handler)
+    {
+        readClans("SELECT * FROM  `sc_clans` WHERE changed > " + time + ";", handler);
+    }
+
+    public void readClanLists(RowHandler handler)
+    {
+        HashMap<String, List<String>> allies = readLists("SELECT tag, other_tag AS value FROM `sc_clan_relations` WHERE relation = ?;", ALLY);
+        HashMap<String, List<String>> rivals = readLists("SELECT tag, other_tag AS value FROM `sc_clan_relations` WHERE relation = ?;", RIVAL);
+        HashMap<String, List<String>> bb = readLists("SELECT tag, msg AS value FROM `sc_bb` ORDER BY id;");
+
+        HashSet<String> tags = new HashSet<String>(allies.keySet());
+        tags.addAll(rivals.keySet());
+        tags.addAll(bb.keySet());
+
+        for (String tag : tags)
+        {
+            handler.handle(new Object[]{tag, pack(allies.get(tag), ""), pack(rivals.get(tag), ""), pack(bb.get(tag), "")});
+        }
+    }
+
+    private void readClans(String query, RowHandler handler)
+    {
+        HashMap<String, List<String>> allies = readLists("SELECT tag, other_tag AS value FROM `sc_clan_relations` WHERE relation = ?;", ALLY);
+        HashMap<String, List<String>> rivals = readLists("SELECT tag, other_tag AS value FROM `sc_clan_relations` WHERE relation = ?;", RIVAL);
+        HashMap<String, List<String>> bb = readLists("SELECT tag, msg AS value FROM `sc_bb` ORDER BY id;");
+
+        ResultSet res = core.stream(query, FETCH_SIZE);
+
+        if (res == null)
+        {
+            return;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                String tag = res.getString("tag");
+                handler.handle(new Object[]{res.getBoolean("verified"), tag, res.getString("color_tag"), res.getString("name"), res.getBoolean("friendly_fire"), res.getLong("founded"), res.getLong("last_used"), pack(allies.get(tag), res.getString("packed_allies")), pack(rivals.get(tag), res.getString("packed_rivals")), pack(bb.get(tag), res.getString("packed_bb")), res.getString("cape_url"), res.getString("flags")});
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read clans", ex);
+        }
+        finally
+        {
+            close(res);
+        }
+    }
+
+    /**
+     * Read a query returning tag and value columns into lists of values by tag
+     */
+    private HashMap<String, List<String>> readLists(String query, Object... params)
+    {
+        HashMap<String, List<String>> out = new HashMap<String, List<String>>();
+        ResultSet res = core.select(query, params);
+
+        if (res == null)
+        {
+            return out;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                String tag = res.getString("tag");
+                List<String> values = out.get(tag);
+
+                if (values == null)
+                {
+                    values = new ArrayList<String>();
+                    out.put(tag, values);
+                }
+
+                values.add(res.getString("value"));
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            close(res);
+        }
+
+        return out;
+    }
+
+    private String pack(List<String> values, String packed)
+    {
+        return values == null ? packed : Helper.toMessage(values, "|");
+    }
+
+    public void insertClan(Map<String, Object> columns)
+    {
+        insert("sc_clans", columns);
+    }
+
+    public void insertRelation(String tag, String relation, String otherTag)
+    {
+        core.insert(insertRelationQuery(), tag, relation, otherTag);
+    }
+
+    private String insertRelationQuery()
+    {
+        return (useMysql ? "INSERT IGNORE" : "INSERT OR IGNORE") + " INTO `sc_clan_relations` ( `tag`, `relation`, `other_tag`) VALUES ( ?, ?, ?);";
+    }
+
+    public void deleteRelation(String tag, String relation, String otherTag)
+    {
+        core.delete("DELETE FROM `sc_clan_relations` WHERE `tag` = ? AND `relation` = ? AND `other_tag` = ?;", tag, relation, otherTag);
+    }
+
+    /**
+     * Appends the message, then drops everything older than the newest keep messages with one ranged delete
+     */
+    public void insertBb(String tag, String msg, int keep)
+    {
+        core.insert("INSERT INTO `sc_bb` ( `tag`, `msg`) VALUES ( ?, ?);", tag, msg);
+
+        // the cutoff is found inside the delete so it runs on the writer and sees the message just inserted,
+        // the derived table lets MySQL select from the table it deletes from
+        core.delete("DELETE FROM `sc_bb` WHERE tag = ? AND id <= (SELECT id FROM (SELECT id FROM `sc_bb` WHERE tag = ? ORDER BY id DESC LIMIT 1 OFFSET ?) AS cutoff);", tag, tag, keep);
+    }
+
+    public void updateClan(String tag, Map<String, Object> changed)
+    {
+        update("sc_clans", "tag", tag, changed);
+    }
+
+    public void deleteClans(List<String> tags)
+    {
+        String in = placeholders(tags.size());
+        Object[] params = tags.toArray();
+
+        Batch batch = new Batch();
+        batch.add("DELETE FROM `sc_clan_relations` WHERE `tag` IN " + in + ";", params);
+        batch.add("DELETE FROM `sc_clan_relations` WHERE `other_tag` IN " + in + ";", params);
+        batch.add("DELETE FROM `sc_bb` WHERE `tag` IN " + in + ";", params);
+        batch.add("DELETE FROM `sc_clans` WHERE `tag` IN " + in + ";", params);
+        core.executeBatch(batch);
+    }
+
+    public void readClanPlayers(boolean membersOnly, RowHandler handler)
+    {
+        readClanPlayers(membersOnly ? "SELECT * FROM  `sc_players` WHERE tag <> '';" : "SELECT * FROM  `sc_players`;", handler);
+    }
+
+    public void readClanPlayersChangedSince(long time, RowHandler handler)
+    {
+        readClanPlayers("SELECT * FROM  `sc_players` WHERE changed > " + time + ";", handler);
+    }
+
+    public long readLastChange()
+    {
+        long clans = readLastChange("SELECT MAX(changed) AS changed FROM `sc_clans`;");
+        long players = readLastChange("SELECT MAX(changed) AS changed FROM `sc_players`;");
+        return clans < 0 || players < 0 ? -1 : Math.max(clans, players);
+    }
+
+    /**
+     * @return the change time a query returns, 0 when there are no rows, -1 if it failed
+     */
+    private long readLastChange(String query)
+    {
+        ResultSet res = core.select(query, new Object[0]);
+
+        if (res == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return res.next() ? res.getLong("changed") : 0;
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, null, ex);
+            return -1;
+        }
+        finally
+        {
+            close(res);
+        }
+    }
+
+    private void readClanPlayers(String query, RowHandler handler)
+    {
+        ResultSet res = core.stream(query, FETCH_SIZE);
+
+        if (res == null)
+        {
+            return;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                handler.handle(readClanPlayerRow(res));
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read clan players", ex);
+        }
+        finally
+        {
+            close(res);
+        }
+    }
+
+    public int countClans()
+    {
+        return count("SELECT count(*) AS count FROM `sc_clans`;");
+    }
+
+    public int countClanPlayers(boolean membersOnly)
+    {
+        return count(membersOnly ? "SELECT count(*) AS count FROM `sc_players` WHERE tag <> '';" : "SELECT count(*) AS count FROM `sc_players`;");
+    }
+
+    /**
+     * @return the count a query returns, -1 if it failed
+     */
+    private int count(String query)
+    {
+        ResultSet res = core.select(query, new Object[0]);
+
+        if (res == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return res.next() ? res.getInt("count") : -1;
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, null, ex);
+            return -1;
+        }
+        finally
+        {
+            close(res);
+        }
+    }
+
+    public Object[] readClanPlayer(String playerName)
+    {
+        if (useMysql)
+        {
+            return selectClanPlayer("SELECT * FROM  `sc_players` WHERE name = ?;", playerName);
+        }
+
+        // names differing only in case can both be stored on SQLite, the exact match wins
+        return selectClanPlayer("SELECT * FROM  `sc_players` WHERE name = ? COLLATE NOCASE ORDER BY name = ? DESC LIMIT 1;", playerName, playerName);
+    }
+
+    private Object[] selectClanPlayer(String query, Object... params)
+    {
+        ResultSet res = core.select(query, params);
+
+        if (res == null)
+        {
+            return UNREADABLE;
+        }
+
+        try
+        {
+            return res.next() ? readClanPlayerRow(res) : null;
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read clan player", ex);
+            return UNREADABLE;
+        }
+        finally
+        {
+            close(res);
+        }
+    }
+
+    private Object[] readClanPlayerRow(ResultSet res) throws SQLException
+    {
+        return new Object[]{res.getString("name"), res.getBoolean("leader"), res.getString("tag"), res.getBoolean("friendly_fire"), res.getInt("neutral_kills"), res.getInt("rival_kills"), res.getInt("civilian_kills"), res.getInt("deaths"), res.getLong("last_seen"), res.getLong("join_date"), res.getString("packed_past_clans"), res.getBoolean("trusted"), res.getString("flags")};
+    }
+
+    public void insertClanPlayer(Map<String, Object> columns)
+    {
+        insert("sc_players", columns);
+    }
+
+    public void updateClanPlayer(String playerName, Map<String, Object> changed)
+    {
+        update("sc_players", "name", playerName, changed);
+    }
+
+    public void deleteClanPlayers(List<String> playerNames)
+    {
+        Batch batch = new Batch();
+        addKillDeletes(batch, playerNames);
+        batch.add("DELETE FROM `sc_players` WHERE `name` IN " + placeholders(playerNames.size()) + ";", playerNames.toArray());
+        core.executeBatch(batch);
+    }
+
+    public List<Object[]> findInactiveClans(long cutoff, long afterTime, String afterTag, int limit)
+    {
+        return findInactive("SELECT tag AS name, last_used AS time FROM `sc_clans` WHERE last_used < ? AND (last_used > ? OR (last_used = ? AND tag > ?)) ORDER BY last_used, tag LIMIT ?;", cutoff, afterTime, afterTag, limit);
+    }
+
+    public List<Object[]> findInactiveClanPlayers(long cutoff, long afterTime, String afterName, int limit)
+    {
+        return findInactive("SELECT name, last_seen AS time FROM `sc_players` WHERE last_seen < ? AND (last_seen > ? OR (last_seen = ? AND name > ?)) ORDER BY last_seen, name LIMIT ?;", cutoff, afterTime, afterName, limit);
+    }
+
+    private List<Object[]> findInactive(String query, long cutoff, long afterTime, String afterName, int limit)
+    {
+        List<Object[]> out = new ArrayList<Object[]>();
+        ResultSet res = core.select(query, cutoff, afterTime, afterTime, afterName, limit);
+
+        if (res == null)
+        {
+            return out;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                out.add(new Object[]{res.getString("name"), res.getLong("time")});
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, "Could not read purge candidates", ex);
+            out.clear();
+        }
+        finally
+        {
+            close(res);
+        }
+
+        return out;
+    }
+
+    /**
+     * Writes the kills, by name id, together with the matching changes to the kill count summaries.
+     * Names without a cached id are inserted into sc_kill_names in the same transaction and their kills look the id up by name,
+     * the new ids are cached once the batch is done.
+     */
+    public void insertKills(List<Object[]> kills)
+    {
+        HashMap<List<Object>, Integer> playerCounts = new HashMap<List<Object>, Integer>();
+        HashMap<List<Object>, Integer> clanCounts = new HashMap<List<Object>, Integer>();
+        List<Object[]> rows = new ArrayList<Object[]>(kills.size());
+        List<Object[]> namedRows = new ArrayList<Object[]>();
+        LinkedHashSet<String> newPlayers = new LinkedHashSet<String>();
+        LinkedHashSet<String> newClans = new LinkedHashSet<String>();
+
+        for (Object[] row : kills)
+        {
+            count(playerCounts, Arrays.asList(row[0], row[2]));
+            count(clanCounts, Arrays.asList(row[1], row[3]));
+
+            Integer attacker = names.find(NameDictionary.PLAYER, (String) row[0]);
+            Integer attackerClan = names.find(NameDictionary.CLAN, (String) row[1]);
+            Integer victim = names.find(NameDictionary.PLAYER, (String) row[2]);
+            Integer victimClan = names.find(NameDictionary.CLAN, (String) row[3]);
+
+            if (attacker != null && attackerClan != null && victim != null && victimClan != null)
+            {
+                rows.add(new Object[]{attacker, attackerClan, victim, victimClan, row[4], row[5]});
+                continue;
+            }
+
+            addIfNull(newPlayers, attacker, (String) row[0]);
+            addIfNull(newClans, attackerClan, (String) row[1]);
+            addIfNull(newPlayers, victim, (String) row[2]);
+            addIfNull(newClans, victimClan, (String) row[3]);
+            namedRows.add(row);
+        }
+
+        String ignore = useMysql ? "INSERT IGNORE" : "INSERT OR IGNORE";
+        String id = "(SELECT id FROM `sc_kill_names` WHERE kind = ? AND name = ?)";
+
+        Batch batch = new Batch();
+
+        for (String name : newPlayers)
+        {
+            batch.add(ignore + " INTO `sc_kill_names` ( `kind`, `name`) VALUES ( ?, ?);", NameDictionary.PLAYER, name);
+        }
+
+        for (String name : newClans)
+        {
+            batch.add(ignore + " INTO `sc_kill_names` ( `kind`, `name`) VALUES ( ?, ?);", NameDictionary.CLAN, name);
+        }
+
+        batch.addAll("INSERT INTO `sc_kills` (  `attacker_id`, `attacker_clan_id`, `victim_id`, `victim_clan_id`, `kill_type`, `created`) VALUES ( ?, ?, ?, ?, ?, ?);", rows);
+
+        for (Object[] row : namedRows)
+        {
+            batch.add("INSERT INTO `sc_kills` (  `attacker_id`, `attacker_clan_id`, `victim_id`, `victim_clan_id`, `kill_type`, `created`) VALUES ( " + id + ", " + id + ", " + id + ", " + id + ", ?, ?);", NameDictionary.PLAYER, row[0], NameDictionary.CLAN, row[1], NameDictionary.PLAYER, row[2], NameDictionary.CLAN, row[3], row[4], row[5]);
+        }
+
+        addCounts(batch, "sc_kill_counts", "attacker", "victim", playerCounts);
+        addCounts(batch, "sc_clan_kill_counts", "attacker_tag", "victim_tag", clanCounts);
+
+        if (core.executeBatch(batch))
+        {
+            names.load(NameDictionary.PLAYER, newPlayers);
+            names.load(NameDictionary.CLAN, newClans);
+        }
+    }
+
+    private void addIfNull(LinkedHashSet<String> out, Integer id, String name)
+    {
+        if (id == null)
+        {
+            out.add(name);
+        }
+    }
+
+    private void count(HashMap<List<Object>, Integer> counts, List<Object> pair)
+    {
+        Integer count = counts.get(pair);
+        counts.put(pair, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Add the statements that raise the kill counts of a summary table, creating missing rows first
+     */
+    private void addCounts(Batch batch, String table, String attackerColumn, String victimColumn, HashMap<List<Object>, Integer> counts)
+    {
+        String ignore = useMysql ? "INSERT IGNORE" : "INSERT OR IGNORE";
+        String create = ignore + " INTO `" + table + "` ( `" + attackerColumn + "`, `" + victimColumn + "`, `kills`) VALUES ( ?, ?, 0);";
+        String raise = "UPDATE `" + table + "` SET kills = kills + ? WHERE `" + attackerColumn + "` = ? AND `" + victimColumn + "` = ?;";
+
+        for (List<Object> pair : counts.keySet())
+        {
+            batch.add(create, pair.get(0), pair.get(1));
+        }
+
+        for (Map.Entry<List<Object>, Integer> entry : counts.entrySet())
+        {
+            batch.add(raise, entry.getValue(), entry.getKey().get(0), entry.getKey().get(1));
+        }
+    }
+
+    public void deleteKills(List<String> attackers)
+    {
+        Batch batch = new Batch();
+        addKillDeletes(batch, attackers);
+        core.executeBatch(batch);
+    }
+
+    private void addKillDeletes(Batch batch, List<String> playerNames)
+    {
+        String in = placeholders(playerNames.size());
+        Object[] attackers = playerNames.toArray();
+
+        // ids are looked up by name in the database, a name first used in a batch that is still uncommitted has no cached id yet
+        String idIn = "(SELECT id FROM `sc_kill_names` WHERE kind = 'p' AND name IN " + in + ")";
+        List<Object> params = new ArrayList<Object>(playerNames);
+        params.addAll(playerNames);
+
+        batch.add("UPDATE `sc_clan_kill_counts` SET kills = kills - (SELECT count(*) FROM `sc_kills` k JOIN `sc_kill_names` ac ON ac.id = k.attacker_clan_id JOIN `sc_kill_names` vt ON vt.id = k.victim_clan_id WHERE k.attacker_id IN " + idIn + " AND ac.name = `sc_clan_kill_counts`.attacker_tag AND vt.name = `sc_clan_kill_counts`.victim_tag) - (SELECT COALESCE(SUM(kills), 0) FROM `sc_kills_archive` WHERE `sc_kills_archive`.attacker IN " + in + " AND `sc_kills_archive`.attacker_tag = `sc_clan_kill_counts`.attacker_tag AND `sc_kills_archive`.victim_tag = `sc_clan_kill_counts`.victim_tag);", params.toArray());
+        batch.add("DELETE FROM `sc_kills` WHERE `attacker_id` IN " + idIn + ";", attackers);
+
+        batch.add("DELETE FROM `sc_clan_kill_counts` WHERE kills <= 0;");
+        batch.add("DELETE FROM `sc_kill_counts` WHERE `attacker` IN " + in + ";", attackers);
+        batch.add("DELETE FROM `sc_kills_archive` WHERE `attacker` IN " + in + ";", attackers);
+    }
+
+    public HashMap<String, Integer> getKillsPerPlayer(String playerName, int min)
+    {
+        return counts("SELECT victim AS name, kills FROM `sc_kill_counts` WHERE attacker = ? AND kills > ? ORDER BY victim;", playerName, min);
+    }
+
+    public HashMap<String, Integer> getKillsPerClan(String playerName)
+    {
+        return counts("SELECT victim_tag AS name, SUM(kills) AS kills FROM (SELECT n.name AS victim_tag, k.kills FROM (SELECT victim_clan_id, count(*) AS kills FROM `sc_kills` WHERE attacker_id = (SELECT id FROM `sc_kill_names` WHERE kind = 'p' AND name = ?) GROUP BY victim_clan_id) AS k JOIN `sc_kill_names` n ON n.id = k.victim_clan_id UNION ALL SELECT victim_tag, SUM(kills) AS kills FROM `sc_kills_archive` WHERE attacker = ? GROUP BY victim_tag) AS t GROUP BY victim_tag ORDER BY victim_tag;", playerName, playerName);
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerClan()
+    {
+        return counts("SELECT victim_tag AS name, SUM(kills) AS kills FROM `sc_clan_kill_counts` GROUP BY victim_tag ORDER BY victim_tag;");
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerClan()
+    {
+        return counts("SELECT attacker_tag AS name, SUM(kills) AS kills FROM `sc_clan_kill_counts` GROUP BY attacker_tag ORDER BY attacker_tag;");
+    }
+
+    public HashMap<String, Integer> getTotalKillsPerPlayer()
+    {
+        return counts("SELECT attacker AS name, SUM(kills) AS kills FROM `sc_kill_counts` GROUP BY attacker ORDER BY attacker;");
+    }
+
+    public HashMap<String, Integer> getTotalDeathsPerPlayer()
+    {
+        return counts("SELECT victim AS name, SUM(kills) AS kills FROM `sc_kill_counts` GROUP BY victim ORDER BY victim;");
+    }
+
+    /**
+     * Read a query returning name and kills columns into a map
+     */
+    private HashMap<String, Integer> counts(String query, Object... params)
+    {
+        HashMap<String, Integer> out = new HashMap<String, Integer>();
+        ResultSet res = core.select(query, params);
+
+        if (res == null)
+        {
+            return out;
+        }
+
+        try
+        {
+            while (res.next())
+            {
+                out.put(res.getString("name"), res.getInt("kills"));
+            }
+        }
+        catch (SQLException ex)
+        {
+            SimpleClans.getLogger().log(Level.SEVERE, null, ex);
+        }
+        finally
+        {
+            close(res);
+        }
+
+        return out;
+    }
+
+    /**
+     * Inserts and updates stamp the row with its change time, so a startup snapshot only has to read the rows changed after it
+     */
+    private void insert(String table, Map<String, Object> columns)
+    {
+        StringBuilder names = new StringBuilder();
+        List<Object> params = new ArrayList<Object>(columns.values());
+
+        for (String column : columns.keySet())
+        {
+            names.append("`").append(column).append("`, ");
+        }
+
+        names.append("`changed`");
+        params.add(System.currentTimeMillis());
+        core.insert("INSERT INTO `" + table + "` ( " + names + ") VALUES " + placeholders(params.size()) + ";", params.toArray());
+    }
+
+    private void update(String table, String keyColumn, Object keyValue, Map<String, Object> changed)
+    {
+        StringBuilder query = new StringBuilder("UPDATE `").append(table).append("` SET ");
+        Object[] params = new Object[changed.size() + 2];
+        int i = 0;
+
+        for (Map.Entry<String, Object> column : changed.entrySet())
+        {
+            query.append(column.getKey()).append(" = ?, ");
+            params[i++] = column.getValue();
+        }
+
+        query.append("changed = ? WHERE ").append(keyColumn).append(" = ?;");
+        params[i++] = System.currentTimeMillis();
+        params[i] = keyValue;
+        core.update(query.toString(), params);
+    }
+
+    private String placeholders(int count)
+    {
+        StringBuilder sb = new StringBuilder("(");
+
+        for (int i = 0; i < count; i++)
+        {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+
+        return sb.append(")").toString();
+    }
+
+    private void close(ResultSet res)
+    {
+        try
+        {
+            res.close();
+        }
+        catch (SQLException ex)
+        {
+            // already closed
+        }
+    }
+}
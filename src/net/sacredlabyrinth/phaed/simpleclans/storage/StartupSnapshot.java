@@ -0,0 +1,319 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.Clan;
+import net.sacredlabyrinth.phaed.simpleclans.ClanPlayer;
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * A versioned binary copy of the clans and clan players, written on a clean shutdown and read back through a memory mapping on the next start.
+ * It records the latest change time in the database when it was written, rows changed after that are read on top of it.
+ *
+ * @author phaed
+ */
+public class StartupSnapshot
+{
+    private static final int MAGIC = 0x5343534E;
+    private static final int VERSION = 3;
+
+    /**
+     * magic, version, watermark, members only, body length, body checksum
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 4 + 8;
+    private final File file;
+    private long watermark;
+    private final List<Clan> clans = new ArrayList<Clan>();
+    private final List<ClanPlayer> clanPlayers = new ArrayList<ClanPlayer>();
+    private final List<String> clanPlayerTags = new ArrayList<String>();
+
+    /**
+     * @param file
+     */
+    public StartupSnapshot(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Write the snapshot, replacing any earlier one
+     *
+     * @param clans
+     * @param clanPlayers
+     * @param membersOnly whether only clan members are written, a start that loads all players will not use the snapshot
+     * @param watermark the latest change time in the database once all writes had reached it
+     * @return whether it was written
+     */
+    public boolean write(Collection<Clan> clans, Collection<ClanPlayer> clanPlayers, boolean membersOnly, long watermark)
+    {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeInt(clans.size());
+
+            for (Clan clan : clans)
+            {
+                clan.writeSnapshot(body);
+            }
+
+            body.writeInt(clanPlayers.size());
+
+            for (ClanPlayer cp : clanPlayers)
+            {
+                body.writeUTF(cp.getClan() == null ? "" : cp.getClan().getTag());
+                cp.writeSnapshot(body);
+            }
+
+            body.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(watermark);
+                out.writeBoolean(membersOnly);
+                out.writeInt(bytes.size());
+                out.writeLong(crc.getValue());
+                bytes.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (file.exists() && !file.delete())
+            {
+                return false;
+            }
+
+            return temp.renameTo(file);
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.WARNING, "Could not write the startup snapshot", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Read the snapshot. The file is removed afterwards, usable or not, so a snapshot is only ever used by the start following the shutdown that wrote it.
+     *
+     * @param membersOnly whether only clan members are being loaded
+     * @return whether the snapshot exists, is intact and was written for the same kind of load
+     */
+    public boolean read(boolean membersOnly)
+    {
+        if (!file.exists())
+        {
+            return false;
+        }
+
+        try
+        {
+            return readMapped(membersOnly);
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.WARNING, "Could not read the startup snapshot", ex);
+            return false;
+        }
+        catch (RuntimeException ex)
+        {
+            SimpleClans.getLogger().log(Level.WARNING, "The startup snapshot is corrupt", ex);
+            return false;
+        }
+        finally
+        {
+            discard();
+        }
+    }
+
+    /**
+     * Remove the file, or when it is still mapped and cannot be removed, clear its magic number so it is never read again
+     */
+    private void discard()
+    {
+        if (file.delete())
+        {
+            return;
+        }
+
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try
+            {
+                raf.writeInt(0);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            SimpleClans.getLogger().log(Level.WARNING, "Could not remove the startup snapshot " + file.getPath(), ex);
+        }
+    }
+
+    private boolean readMapped(boolean membersOnly) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+
+        try
+        {
+            if (raf.length() < HEADER_SIZE)
+            {
+                return false;
+            }
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+        {
+            return false;
+        }
+
+        watermark = buffer.getLong();
+
+        if ((buffer.get() != 0) != membersOnly)
+        {
+            return false;
+        }
+
+        int length = buffer.getInt();
+        long checksum = buffer.getLong();
+
+        if (length != buffer.remaining() || checksum(buffer.duplicate()) != checksum)
+        {
+            SimpleClans.getLogger().warning("The startup snapshot is corrupt");
+            return false;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferInput(buffer));
+
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            Clan clan = new Clan();
+            clan.readSnapshot(in);
+            clans.add(clan);
+        }
+
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            clanPlayerTags.add(in.readUTF());
+            ClanPlayer cp = new ClanPlayer();
+            cp.readSnapshot(in);
+            clanPlayers.add(cp);
+        }
+
+        return true;
+    }
+
+    private long checksum(ByteBuffer buffer)
+    {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+
+        while (buffer.hasRemaining())
+        {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * @return the latest change time in the database when the snapshot was written
+     */
+    public long getWatermark()
+    {
+        return watermark;
+    }
+
+    /**
+     * @return the clans read, with no members
+     */
+    public List<Clan> getClans()
+    {
+        return clans;
+    }
+
+    /**
+     * @return the clan players read, not linked to their clans
+     */
+    public List<ClanPlayer> getClanPlayers()
+    {
+        return clanPlayers;
+    }
+
+    /**
+     * @return the clan tag of each clan player read, in the same order, empty for players without a clan
+     */
+    public List<String> getClanPlayerTags()
+    {
+        return clanPlayerTags;
+    }
+
+    /**
+     * Reads a buffer as a stream
+     */
+    private static class BufferInput extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        private BufferInput(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (!buffer.hasRemaining())
+            {
+                return -1;
+            }
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
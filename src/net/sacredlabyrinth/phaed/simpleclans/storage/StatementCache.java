@@ -0,0 +1,160 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the prepared statements of one connection so that each query is only parsed once
+ *
+ * @author phaed
+ */
+public class StatementCache
+{
+    private static final int MAX_STATEMENTS = 64;
+    private final Connection connection;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * @param connection
+     */
+    public StatementCache(Connection connection)
+    {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+            {
+                if (size() > MAX_STATEMENTS)
+                {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the connection the statements belong to
+     */
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
+    /**
+     * Returns the cached statement for the query, preparing it if needed, with the parameters bound
+     *
+     * @param query
+     * @param params
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String query, Object... params) throws SQLException
+    {
+        PreparedStatement statement = statements.get(query);
+
+        if (statement == null)
+        {
+            statement = connection.prepareStatement(query);
+            statements.put(query, statement);
+        }
+
+        statement.clearParameters();
+
+        for (int i = 0; i < params.length; i++)
+        {
+            bind(statement, i + 1, params[i]);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Returns the cached statement for the query with one batch entry added per row of parameters
+     *
+     * @param query
+     * @param rows
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepareBatch(String query, List<Object[]> rows) throws SQLException
+    {
+        PreparedStatement statement = prepare(query);
+        statement.clearBatch();
+
+        for (Object[] row : rows)
+        {
+            statement.clearParameters();
+
+            for (int i = 0; i < row.length; i++)
+            {
+                bind(statement, i + 1, row[i]);
+            }
+
+            statement.addBatch();
+        }
+
+        return statement;
+    }
+
+    /**
+     * Close all cached statements
+     */
+    public void clear()
+    {
+        for (PreparedStatement statement : statements.values())
+        {
+            closeQuietly(statement);
+        }
+
+        statements.clear();
+    }
+
+    private static void bind(PreparedStatement statement, int index, Object param) throws SQLException
+    {
+        if (param == null)
+        {
+            statement.setNull(index, Types.VARCHAR);
+        }
+        else if (param instanceof Boolean)
+        {
+            statement.setInt(index, (Boolean) param ? 1 : 0);
+        }
+        else if (param instanceof Integer)
+        {
+            statement.setInt(index, (Integer) param);
+        }
+        else if (param instanceof Long)
+        {
+            statement.setLong(index, (Long) param);
+        }
+        else if (param instanceof String)
+        {
+            statement.setString(index, (String) param);
+        }
+        else
+        {
+            statement.setObject(index, param);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement)
+    {
+        try
+        {
+            statement.close();
+        }
+        catch (SQLException ex)
+        {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where clans, clan players and kills are persisted. Every method may block and is called from the storage thread,
+ * except the kill statistics, which are also read from the main thread.
+ * Rows are passed around as arrays holding the columns in the order of CLAN_COLUMNS or PLAYER_COLUMNS.
+ *
+ * @author phaed
+ */
+public interface StorageRepository
+{
+    /**
+     * The columns of a clan row, in order: Boolean, String, String, String, Boolean, Long, Long, then five Strings
+     */
+    String[] CLAN_COLUMNS = {"verified", "tag", "color_tag", "name", "friendly_fire", "founded", "last_used", "packed_allies", "packed_rivals", "packed_bb", "cape_url", "flags"};
+
+    /**
+     * The columns of a clan player row, in order: String, Boolean, String, Boolean, four Integers, Long, Long, String, Boolean, String
+     */
+    String[] PLAYER_COLUMNS = {"name", "leader", "tag", "friendly_fire", "neutral_kills", "rival_kills", "civilian_kills", "deaths", "last_seen", "join_date", "packed_past_clans", "trusted", "flags"};
+
+    /**
+     * Returned by readClanPlayer when the row could not be read, so it is not mistaken for a player that is not stored
+     */
+    Object[] UNREADABLE = new Object[0];
+
+    /**
+     * Relation kinds between two clans
+     */
+    String ALLY = "a";
+    String RIVAL = "r";
+
+    /**
+     * Receives rows one at a time while they are read
+     */
+    interface RowHandler
+    {
+        void handle(Object[] row);
+    }
+
+    /**
+     * Bring the storage up to date so it can be used
+     *
+     * @return whether it is usable
+     */
+    boolean open();
+
+    /**
+     * Release the storage, nothing may be called afterwards
+     */
+    void close();
+
+    /**
+     * Run work so that all its writes are applied together, writes of a transaction already in progress join it
+     *
+     * @param work
+     */
+    void transaction(Runnable work);
+
+    /**
+     * Pass every clan row to the handler, with the allies, rivals and bulletin board of the clan in the packed columns
+     *
+     * @param handler
+     */
+    void readClans(RowHandler handler);
+
+    /**
+     * Pass the rows of the clans inserted or updated after the given change time to the handler, as readClans does
+     *
+     * @param time
+     * @param handler
+     */
+    void readClansChangedSince(long time, RowHandler handler);
+
+    /**
+     * Pass the tag, packed allies, packed rivals and packed bulletin board of every clan that has any of them to the handler.
+     * Relations and bulletin boards do not change the clan row, so they are read in full on top of a snapshot.
+     *
+     * @param handler
+     */
+    void readClanLists(RowHandler handler);
+
+    /**
+     * @return how many clans are stored, -1 if unknown
+     */
+    int countClans();
+
+    /**
+     * @param columns the values of all clan columns
+     */
+    void insertClan(Map<String, Object> columns);
+
+    /**
+     * @param tag
+     * @param changed the columns to change and their new values
+     */
+    void updateClan(String tag, Map<String, Object> changed);
+
+    /**
+     * Delete clans along with their relations and bulletin boards
+     *
+     * @param tags
+     */
+    void deleteClans(List<String> tags);
+
+    /**
+     * @param tag
+     * @param relation ALLY or RIVAL
+     * @param otherTag
+     */
+    void insertRelation(String tag, String relation, String otherTag);
+
+    /**
+     * @param tag
+     * @param relation ALLY or RIVAL
+     * @param otherTag
+     */
+    void deleteRelation(String tag, String relation, String otherTag);
+
+    /**
+     * Append a message to the bulletin board of a clan
+     *
+     * @param tag
+     * @param msg
+     * @param keep how many of the newest messages to keep
+     */
+    void insertBb(String tag, String msg, int keep);
+
+    /**
+     * Pass every clan player row to the handler
+     *
+     * @param membersOnly whether to skip players who are not in a clan
+     * @param handler
+     */
+    void readClanPlayers(boolean membersOnly, RowHandler handler);
+
+    /**
+     * Pass the rows of the clan players inserted or updated after the given change time to the handler, members or not
+     *
+     * @param time
+     * @param handler
+     */
+    void readClanPlayersChangedSince(long time, RowHandler handler);
+
+    /**
+     * Inserts and updates of clans and clan players stamp the row with the time of the server that made them
+     *
+     * @return the latest change time of any clan or clan player row, 0 when nothing is stored, -1 if unknown
+     */
+    long readLastChange();
+
+    /**
+     * @param membersOnly whether to leave out players who are not in a clan
+     * @return how many clan players are stored, -1 if unknown
+     */
+    int countClanPlayers(boolean membersOnly);
+
+    /**
+     * @param playerName matched ignoring case
+     * @return the row, null if there is none, UNREADABLE if it could not be read
+     */
+    Object[] readClanPlayer(String playerName);
+
+    /**
+     * @param columns the values of all clan player columns
+     */
+    void insertClanPlayer(Map<String, Object> columns);
+
+    /**
+     * @param playerName
+     * @param changed the columns to change and their new values
+     */
+    void updateClanPlayer(String playerName, Map<String, Object> changed);
+
+    /**
+     * Delete clan players along with their kills
+     *
+     * @param playerNames
+     */
+    void deleteClanPlayers(List<String> playerNames);
+
+    /**
+     * Clans last used before the cutoff, ordered by last used time then tag, starting after the given position
+     *
+     * @param cutoff
+     * @param afterTime
+     * @param afterTag
+     * @param limit
+     * @return rows of {tag, Long last used}
+     */
+    List<Object[]> findInactiveClans(long cutoff, long afterTime, String afterTag, int limit);
+
+    /**
+     * Clan players last seen before the cutoff, ordered by last seen time then name, starting after the given position
+     *
+     * @param cutoff
+     * @param afterTime
+     * @param afterName
+     * @param limit
+     * @return rows of {name, Long last seen}
+     */
+    List<Object[]> findInactiveClanPlayers(long cutoff, long afterTime, String afterName, int limit);
+
+    /**
+     * @param kills rows of {attacker, attacker tag, victim, victim tag, kill type, Long time}
+     */
+    void insertKills(List<Object[]> kills);
+
+    /**
+     * Delete all kills made by the players
+     *
+     * @param attackers
+     */
+    void deleteKills(List<String> attackers);
+
+    /**
+     * @param playerName
+     * @param min
+     * @return victim->count of the player's kills, only victims killed more than min times
+     */
+    HashMap<String, Integer> getKillsPerPlayer(String playerName, int min);
+
+    /**
+     * @param playerName
+     * @return victim tag->count of the player's kills
+     */
+    HashMap<String, Integer> getKillsPerClan(String playerName);
+
+    /**
+     * @return tag->count of deaths of each clan
+     */
+    HashMap<String, Integer> getTotalDeathsPerClan();
+
+    /**
+     * @return tag->count of kills of each clan
+     */
+    HashMap<String, Integer> getTotalKillsPerClan();
+
+    /**
+     * @return name->count of kills of each player
+     */
+    HashMap<String, Integer> getTotalKillsPerPlayer();
+
+    /**
+     * @return name->count of deaths of each player
+     */
+    HashMap<String, Integer> getTotalDeathsPerPlayer();
+}
@@ -0,0 +1,399 @@
+package net.sacredlabyrinth.phaed.simpleclans.storage;
+
+import net.sacredlabyrinth.phaed.simpleclans.SimpleClans;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Write-behind queue, runs database writes on a dedicated I/O thread in the order they were queued.
+ * Writes queued under the same key are merged into one as long as the earlier one has not started yet.
+ * When given a database core, writes that pile up are run in groups that share one transaction.
+ *
+ * @author phaed
+ */
+public class WriteQueue implements Runnable
+{
+    private static final long JOIN_GRACE_MS = 1000;
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private final HashMap<String, Entry> mergeable = new HashMap<String, Entry>();
+    private final HashMap<String, Integer> pending = new HashMap<String, Integer>();
+    private final Thread thread;
+    private final DBCore core;
+    private final long commitWindow;
+    private final int maxGroup;
+    private boolean running = true;
+    private boolean busy;
+    private int inFlight;
+
+    /**
+     * @param name the name of the I/O thread
+     */
+    public WriteQueue(String name)
+    {
+        this(name, null, 0, 1);
+    }
+
+    /**
+     * @param name the name of the I/O thread
+     * @param core the database writes are grouped into transactions on, null to run each write on its own
+     * @param commitWindow how long to wait for more writes to join a group, in milliseconds
+     * @param maxGroup the most writes to run in one transaction
+     */
+    public WriteQueue(String name, DBCore core, long commitWindow, int maxGroup)
+    {
+        this.core = core;
+        this.commitWindow = commitWindow;
+        this.maxGroup = core == null ? 1 : Math.max(1, maxGroup);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a write that replaces any write still waiting under the same key, keeping its place in the queue
+     *
+     * @param key
+     * @param task
+     */
+    public void merge(String key, Runnable task)
+    {
+        synchronized (this)
+        {
+            if (running)
+            {
+                Entry waiting = mergeable.get(key);
+
+                if (waiting != null)
+                {
+                    waiting.task = task;
+                    return;
+                }
+
+                Entry entry = new Entry(key, task);
+                mergeable.put(key, entry);
+                enqueue(entry);
+                return;
+            }
+        }
+
+        task.run();
+    }
+
+    /**
+     * Queue a write that must not be merged with anything, writes queued later under the same key will be kept behind it
+     *
+     * @param key the key this write acts as a barrier for, can be null
+     * @param task
+     */
+    public void add(String key, Runnable task)
+    {
+        synchronized (this)
+        {
+            if (running)
+            {
+                if (key != null)
+                {
+                    mergeable.remove(key);
+                }
+
+                enqueue(new Entry(key, task));
+                return;
+            }
+        }
+
+        task.run();
+    }
+
+    private void enqueue(Entry entry)
+    {
+        if (entry.key != null)
+        {
+            Integer count = pending.get(entry.key);
+            pending.put(entry.key, count == null ? 1 : count + 1);
+        }
+
+        queue.add(entry);
+        notifyAll();
+    }
+
+    /**
+     * @param key
+     * @return whether a write queued under the key has not finished yet
+     */
+    public synchronized boolean isPending(String key)
+    {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * Block until the writes queued under the key have been run, without waiting for the rest of the queue to drain
+     *
+     * @param key
+     * @param timeout in milliseconds
+     * @return whether they were run before the timeout
+     */
+    public synchronized boolean await(String key, long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (pending.containsKey(key))
+        {
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0 || !thread.isAlive())
+            {
+                return false;
+            }
+
+            try
+            {
+                wait(left);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the number of writes waiting to be run
+     */
+    public synchronized int size()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Block until all queued writes have been run
+     *
+     * @param timeout in milliseconds
+     * @return whether the queue was drained before the timeout
+     */
+    public synchronized boolean flush(long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (!queue.isEmpty() || busy)
+        {
+            long left = deadline - System.currentTimeMillis();
+
+            if (left <= 0 || !thread.isAlive())
+            {
+                return false;
+            }
+
+            try
+            {
+                wait(left);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Drain the queue and stop the I/O thread, writes queued afterwards are run on the caller's thread.
+     * The I/O thread is given until the timeout, and at least a short grace period, to finish the group it is running.
+     *
+     * @param timeout in milliseconds
+     * @return the number of writes that could not be run before the timeout, including a group still running
+     */
+    public int shutdown(long timeout)
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        flush(timeout);
+        int dropped;
+
+        synchronized (this)
+        {
+            running = false;
+            dropped = queue.size();
+            queue.clear();
+            mergeable.clear();
+            pending.clear();
+            notifyAll();
+        }
+
+        try
+        {
+            thread.join(Math.max(JOIN_GRACE_MS, deadline - System.currentTimeMillis()));
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this)
+        {
+            if (busy)
+            {
+                dropped += inFlight;
+            }
+        }
+
+        return dropped;
+    }
+
+    public void run()
+    {
+        List<Entry> group = new ArrayList<Entry>();
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                for (Entry entry : group)
+                {
+                    done(entry);
+                }
+
+                group.clear();
+                busy = false;
+                inFlight = 0;
+                notifyAll();
+
+                while (running && queue.isEmpty())
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                }
+
+                if (!running)
+                {
+                    return;
+                }
+
+                busy = true;
+                take(group);
+
+                long deadline = System.currentTimeMillis() + commitWindow;
+
+                while (running && group.size() < maxGroup && commitWindow > 0)
+                {
+                    long left = deadline - System.currentTimeMillis();
+
+                    if (left <= 0)
+                    {
+                        break;
+                    }
+
+                    if (queue.isEmpty())
+                    {
+                        try
+                        {
+                            wait(left);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            break;
+                        }
+                    }
+
+                    take(group);
+                }
+
+                inFlight = group.size();
+            }
+
+            final List<Entry> tasks = group;
+
+            if (core == null || tasks.size() == 1)
+            {
+                runAll(tasks);
+            }
+            else
+            {
+                core.transaction(new Runnable()
+                {
+                    public void run()
+                    {
+                        runAll(tasks);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Move waiting writes into the group, up to the group limit
+     */
+    private void take(List<Entry> group)
+    {
+        while (!queue.isEmpty() && group.size() < maxGroup)
+        {
+            Entry entry = queue.removeFirst();
+
+            if (entry.key != null && mergeable.get(entry.key) == entry)
+            {
+                mergeable.remove(entry.key);
+            }
+
+            group.add(entry);
+        }
+    }
+
+    private void done(Entry entry)
+    {
+        if (entry.key == null)
+        {
+            return;
+        }
+
+        Integer count = pending.get(entry.key);
+
+        if (count == null || count <= 1)
+        {
+            pending.remove(entry.key);
+        }
+        else
+        {
+            pending.put(entry.key, count - 1);
+        }
+    }
+
+    private void runAll(List<Entry> tasks)
+    {
+        for (Entry entry : tasks)
+        {
+            try
+            {
+                entry.task.run();
+            }
+            catch (Throwable ex)
+            {
+                SimpleClans.getLogger().log(Level.SEVERE, "Queued database write failed", ex);
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final String key;
+        private Runnable task;
+
+        private Entry(String key, Runnable task)
+        {
+            this.key = key;
+            this.task = task;
+        }
+    }
+}